@@ -0,0 +1,403 @@
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// Stage 1 of all four queries from a single scan of train.csv.
+//
+// The separate stage-1 jobs each read and parse the whole dataset and apply
+// the same 2013 filter. Here one mapper parses every row once and tags its
+// output for each query that accepts it, using the same filters as
+// PopularRoutesByMonth, ExpensiveRoutesByMonth, PopularLocationsByMonth and
+// NightlifeSpotsByMonth, and counts the rows each query drops per reason
+// (see TaskMetrics.forQuery). The reducers write each query's rows through
+// MultipleOutputs, and the driver moves them into the usual per-query stage-1
+// directories, so the TopK* jobs run on them unchanged.
+public class AllQueriesByMonth {
+
+    // Named outputs by query tag (QueryKey.ROUTES .. QueryKey.NIGHTLIFE)
+    private static final String[] NAMED_OUTPUTS = {null, "routes", "fares", "locations", "nightlife"};
+
+    public static class TripMapper extends Mapper<Object, Writable, QueryKey, DoubleWritable> {
+        private final static DoubleWritable one = new DoubleWritable(1);
+        private int targetYear;
+        private SpatialQuantizer routeCells;
+        private SpatialQuantizer locationCells;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final QueryKey outKey = new QueryKey();
+        private final DoubleWritable fare = new DoubleWritable();
+
+        // In-mapper combining for the three counting queries; the tag packs
+        // query, month and location type
+        private final DoubleWritable count = new DoubleWritable();
+        private PackedKeyIntMap counts;
+        private int maxEntries;
+
+        // Skips that drop a row for every query, then each query's own
+        private TaskMetrics metrics;
+        private TaskMetrics routes;
+        private TaskMetrics fares;
+        private TaskMetrics locations;
+        private TaskMetrics nightlife;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            targetYear = TargetYear.get(conf);
+            routeCells = SpatialQuantizer.get(conf, RouteKey.DECIMALS);
+            locationCells = SpatialQuantizer.get(conf, LocationKey.DECIMALS);
+            if (InMapperCombining.isEnabled(conf)) {
+                counts = InMapperCombining.newCountTable(conf);
+                maxEntries = InMapperCombining.maxEntries(conf);
+            }
+            metrics = TaskMetrics.forMapper(context);
+            routes = TaskMetrics.forQuery(context, NAMED_OUTPUTS[QueryKey.ROUTES]);
+            fares = TaskMetrics.forQuery(context, NAMED_OUTPUTS[QueryKey.FARES]);
+            locations = TaskMetrics.forQuery(context, NAMED_OUTPUTS[QueryKey.LOCATIONS]);
+            nightlife = TaskMetrics.forQuery(context, NAMED_OUTPUTS[QueryKey.NIGHTLIFE]);
+        }
+
+        @Override
+        public void map(Object key, Writable value, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            // Skip header and short rows
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
+
+            int month;
+            try {
+                // Filter for the target year (2013 unless -Dtaxi.target.year)
+                if (row.year() != targetYear) {
+                    metrics.skip(TaskMetrics.Skip.OTHER_YEAR);
+                    return;
+                }
+                month = row.month();
+            } catch (Exception e) {
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+                return;
+            }
+
+            // Parse every column once. A value that fails to parse is NaN, and
+            // each query below checks its columns in the order its own mapper
+            // does, so it drops the row for the same reason.
+            double plon = parseOrNaN(row, TripCsvScanner.PICKUP_LONGITUDE);
+            double plat = parseOrNaN(row, TripCsvScanner.PICKUP_LATITUDE);
+            double dlon = parseOrNaN(row, TripCsvScanner.DROPOFF_LONGITUDE);
+            double dlat = parseOrNaN(row, TripCsvScanner.DROPOFF_LATITUDE);
+            double fareAmount = parseOrNaN(row, TripCsvScanner.FARE);
+            boolean parsed = !(Double.isNaN(plon) || Double.isNaN(plat) || Double.isNaN(dlon) || Double.isNaN(dlat));
+            boolean allNonZero = plon != 0.0 && plat != 0.0 && dlon != 0.0 && dlat != 0.0;
+            long emitting = metrics.parsed(started);
+
+            // Q1 + Q2: route cells (5 decimals by default); Q2 reads the fare first
+            if (!parsed || !allNonZero) {
+                TaskMetrics.Skip reason = parsed ? TaskMetrics.Skip.ZERO_COORDINATE : TaskMetrics.Skip.MALFORMED;
+                routes.skip(reason);
+                fares.skip(Double.isNaN(fareAmount) ? TaskMetrics.Skip.MALFORMED : reason);
+            } else {
+                try {
+                    long pickup = routeCells.pickup(row);
+                    long dropoff = routeCells.dropoff(row);
+
+                    count(QueryKey.ROUTES, month, LocationKey.NONE, pickup, dropoff, context);
+
+                    // Filter invalid fares (negative or extremely high)
+                    if (Double.isNaN(fareAmount)) {
+                        fares.skip(TaskMetrics.Skip.MALFORMED);
+                    } else if (fareAmount <= 0.0 || fareAmount > 2000.0) {
+                        fares.skip(TaskMetrics.Skip.BAD_FARE);
+                    } else {
+                        outKey.setRoute(QueryKey.FARES, month, pickup, dropoff);
+                        fare.set(fareAmount);
+                        context.write(outKey, fare);
+                    }
+                } catch (Exception e) {
+                    // Skip malformed lines
+                    routes.skip(TaskMetrics.Skip.MALFORMED);
+                    fares.skip(TaskMetrics.Skip.MALFORMED);
+                }
+            }
+
+            // Q3: pickup and dropoff cells (4 decimals by default), NYC only
+            if (!parsed) {
+                locations.skip(TaskMetrics.Skip.MALFORMED);
+            } else if (!allNonZero) {
+                locations.skip(TaskMetrics.Skip.ZERO_COORDINATE);
+            } else if (!inNyc(plon, plat) || !inNyc(dlon, dlat)) {
+                locations.skip(TaskMetrics.Skip.OUT_OF_BOUNDS);
+            } else {
+                try {
+                    long pickup = locationCells.pickup(row);
+                    long dropoff = locationCells.dropoff(row);
+                    count(QueryKey.LOCATIONS, month, LocationKey.PICKUP, pickup, 0L, context);
+                    count(QueryKey.LOCATIONS, month, LocationKey.DROPOFF, dropoff, 0L, context);
+                } catch (Exception e) {
+                    // Skip malformed lines
+                    locations.skip(TaskMetrics.Skip.MALFORMED);
+                }
+            }
+
+            // Q4: dropoffs between 20:00 and 02:59, NYC only
+            try {
+                int hour = row.hour();
+                if (!((hour >= 20 && hour <= 23) || (hour >= 0 && hour <= 2))) {
+                    nightlife.skip(TaskMetrics.Skip.OUTSIDE_HOURS);
+                } else if (Double.isNaN(dlon) || Double.isNaN(dlat)) {
+                    nightlife.skip(TaskMetrics.Skip.MALFORMED);
+                } else if (dlon == 0.0 || dlat == 0.0) {
+                    nightlife.skip(TaskMetrics.Skip.ZERO_COORDINATE);
+                } else if (!inNyc(dlon, dlat)) {
+                    nightlife.skip(TaskMetrics.Skip.OUT_OF_BOUNDS);
+                } else {
+                    long dropoff = locationCells.dropoff(row);
+                    count(QueryKey.NIGHTLIFE, month, LocationKey.NONE, dropoff, 0L, context);
+                }
+            } catch (Exception e) {
+                // Skip malformed lines
+                nightlife.skip(TaskMetrics.Skip.MALFORMED);
+            }
+            metrics.finished(emitting);
+
+            if (counts != null && counts.size() >= maxEntries) {
+                flush(context);
+            }
+        }
+
+        private static double parseOrNaN(TripRow row, int field) {
+            try {
+                switch (field) {
+                    case TripCsvScanner.FARE: return row.fare();
+                    case TripCsvScanner.PICKUP_LONGITUDE: return row.pickupLongitude();
+                    case TripCsvScanner.PICKUP_LATITUDE: return row.pickupLatitude();
+                    case TripCsvScanner.DROPOFF_LONGITUDE: return row.dropoffLongitude();
+                    default: return row.dropoffLatitude();
+                }
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        // NYC bounds check used by Q3 and Q4
+        private static boolean inNyc(double lon, double lat) {
+            return lon >= -75.0 && lon <= -72.0 && lat >= 39.0 && lat <= 42.0;
+        }
+
+        private void count(byte query, int month, byte type, long first, long second, Context context)
+                throws IOException, InterruptedException {
+            if (counts != null) {
+                counts.add((query << 16) | (month << 8) | type, first, second, 1);
+            } else {
+                setKey(query, month, type, first, second);
+                context.write(outKey, one);
+            }
+        }
+
+        private void setKey(byte query, int month, byte type, long first, long second) {
+            if (QueryKey.isRouteQuery(query)) {
+                outKey.setRoute(query, month, first, second);
+            } else {
+                outKey.setLocation(query, month, type, first);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (counts != null) {
+                flush(context);
+            }
+            metrics.close(context);
+            routes.close(context);
+            fares.close(context);
+            locations.close(context);
+            nightlife.close(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int slot = 0; slot < counts.capacity(); slot++) {
+                if (!counts.isUsed(slot)) continue;
+                int tag = counts.tagAt(slot);
+                setKey((byte) (tag >>> 16), (tag >>> 8) & 0xFF, (byte) tag,
+                        counts.firstAt(slot), counts.secondAt(slot));
+                count.set(counts.valueAt(slot));
+                context.write(outKey, count);
+            }
+            counts.clear();
+        }
+    }
+
+    // Max fare for Q2, total count for the other queries
+    static double aggregate(QueryKey key, Iterable<DoubleWritable> values) {
+        if (key.getQuery() == QueryKey.FARES) {
+            double maxFare = Double.NEGATIVE_INFINITY;
+            for (DoubleWritable val : values) {
+                if (val.get() > maxFare) {
+                    maxFare = val.get();
+                }
+            }
+            return maxFare;
+        }
+        double sum = 0;
+        for (DoubleWritable val : values) {
+            sum += val.get();
+        }
+        return sum;
+    }
+
+    public static class QueryCombiner extends Reducer<QueryKey, DoubleWritable, QueryKey, DoubleWritable> {
+        private DoubleWritable result = new DoubleWritable();
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(QueryKey key, Iterable<DoubleWritable> values, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            result.set(aggregate(key, values));
+            context.write(key, result);
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
+    }
+
+    // Writes each query's rows in that query's stage-1 format:
+    // "MM__route\tcount", "MM__route\tmaxFare", "MM__TYPE__lon,lat\tcount"
+    // and "MM__lon,lat\tcount"
+    public static class QueryReducer extends Reducer<QueryKey, DoubleWritable, Text, Text> {
+        private MultipleOutputs<Text, Text> outputs;
+        private final IntWritable count = new IntWritable();
+        private final DoubleWritable maxFare = new DoubleWritable();
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            outputs = new MultipleOutputs<Text, Text>(context);
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(QueryKey key, Iterable<DoubleWritable> values, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            int query = key.getQuery();
+            String name = NAMED_OUTPUTS[query];
+            double result = aggregate(key, values);
+
+            if (query == QueryKey.FARES) {
+                maxFare.set(result);
+                outputs.write(name, key.getRoute(), maxFare, name + "/part");
+            } else {
+                count.set((int) result);
+                Object outKey = QueryKey.isRouteQuery(query) ? key.getRoute() : key.getLocation();
+                outputs.write(name, outKey, count, name + "/part");
+            }
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+            metrics.close(context);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: AllQueriesByMonth <input> <q1_output> <q2_output> <q3_output> <q4_output> [num_reducers]");
+            System.exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dinmapper.combine=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int numReducers = (args.length >= 6) ? Integer.parseInt(args[5]) : 12;
+
+        Path[] outputs = {null, new Path(args[1]), new Path(args[2]), new Path(args[3]), new Path(args[4])};
+        Path tempPath = new Path(args[1] + "_all");
+
+        // Fail before scanning the input, as a single-query job would
+        FileSystem fs = tempPath.getFileSystem(conf);
+        for (int query = QueryKey.ROUTES; query <= QueryKey.NIGHTLIFE; query++) {
+            if (fs.exists(outputs[query])) {
+                throw new FileAlreadyExistsException("Output directory " + outputs[query] + " already exists");
+            }
+        }
+
+        Job job = Job.getInstance(conf, "all queries by month 2013");
+        job.setJarByClass(AllQueriesByMonth.class);
+        job.setMapperClass(TripMapper.class);
+        job.setCombinerClass(QueryCombiner.class);
+        job.setReducerClass(QueryReducer.class);
+        job.setNumReduceTasks(numReducers);
+
+        job.setMapOutputKeyClass(QueryKey.class);
+        job.setMapOutputValueClass(DoubleWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        // Everything goes through the named outputs; no empty part files
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        // Named outputs render their keys without a String per row
+        MultipleOutputs.addNamedOutput(job, NAMED_OUTPUTS[QueryKey.ROUTES], StageTextOutputFormat.class,
+                RouteKey.class, IntWritable.class);
+        MultipleOutputs.addNamedOutput(job, NAMED_OUTPUTS[QueryKey.FARES], StageTextOutputFormat.class,
+                RouteKey.class, DoubleWritable.class);
+        MultipleOutputs.addNamedOutput(job, NAMED_OUTPUTS[QueryKey.LOCATIONS], StageTextOutputFormat.class,
+                LocationKey.class, IntWritable.class);
+        MultipleOutputs.addNamedOutput(job, NAMED_OUTPUTS[QueryKey.NIGHTLIFE], StageTextOutputFormat.class,
+                LocationKey.class, IntWritable.class);
+
+        // train.csv minus pruned splits, or the target year of a trip store
+        TripStoreInputFormat.addInput(job, new Path(args[0]),
+                TripStore.FARE, TripStore.PICKUP_TIME, TripStore.PICKUP_LONGITUDE, TripStore.PICKUP_LATITUDE,
+                TripStore.DROPOFF_LONGITUDE, TripStore.DROPOFF_LATITUDE);
+        // Each month over its own range of reducers (sampled with -Dpartition.sample.rows)
+        MonthRangePartitioner.configure(job);
+        FileOutputFormat.setOutputPath(job, tempPath);
+
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        TaskMetrics.report(job);
+
+        // Move <temp>/<name>/part-r-* into each query's stage-1 directory
+        for (int query = QueryKey.ROUTES; query <= QueryKey.NIGHTLIFE; query++) {
+            Path produced = new Path(tempPath, NAMED_OUTPUTS[query]);
+            fs.mkdirs(outputs[query].getParent());
+            if (fs.exists(produced)) {
+                if (!fs.rename(produced, outputs[query])) {
+                    throw new IOException("Could not move " + produced + " to " + outputs[query]);
+                }
+            } else {
+                fs.mkdirs(outputs[query]);
+            }
+            fs.create(new Path(outputs[query], "_SUCCESS")).close();
+        }
+        fs.delete(tempPath, true);
+        System.exit(0);
+    }
+}
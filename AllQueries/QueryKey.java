@@ -0,0 +1,125 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+// Map output key of the one-scan AllQueriesByMonth job.
+//
+// A one-byte query tag followed by the stage-1 key that query uses on its
+// own: a RouteKey for Q1/Q2 and a LocationKey for Q3/Q4. Keys sort by query
+// first, so each reducer sees the four queries as contiguous runs in the
+// same order the separate jobs would have produced.
+public class QueryKey implements WritableComparable<QueryKey>, MonthKey {
+    public static final byte ROUTES = 1;     // Q1: route counts
+    public static final byte FARES = 2;      // Q2: max fare per route
+    public static final byte LOCATIONS = 3;  // Q3: pickup/dropoff counts
+    public static final byte NIGHTLIFE = 4;  // Q4: nightlife dropoff counts
+
+    private byte query;
+    private final RouteKey route = new RouteKey();
+    private final LocationKey location = new LocationKey();
+
+    public QueryKey() {
+    }
+
+    public static boolean isRouteQuery(int query) {
+        return query == ROUTES || query == FARES;
+    }
+
+    public void setRoute(byte query, int month, long pickup, long dropoff) {
+        this.query = query;
+        route.set(month, pickup, dropoff);
+    }
+
+    public void setLocation(byte query, int month, byte type, long point) {
+        this.query = query;
+        location.set(month, type, point);
+    }
+
+    public byte getQuery() {
+        return query;
+    }
+
+    // Valid for ROUTES and FARES keys
+    public RouteKey getRoute() {
+        return route;
+    }
+
+    // Valid for LOCATIONS and NIGHTLIFE keys
+    public LocationKey getLocation() {
+        return location;
+    }
+
+    public int getMonth() {
+        return isRouteQuery(query) ? route.getMonth() : location.getMonth();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(query);
+        if (isRouteQuery(query)) {
+            route.write(out);
+        } else {
+            location.write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        query = in.readByte();
+        if (isRouteQuery(query)) {
+            route.readFields(in);
+        } else {
+            location.readFields(in);
+        }
+    }
+
+    // Query, then the inner key's own order
+    @Override
+    public int compareTo(QueryKey other) {
+        int cmp = Integer.compare(query, other.query);
+        if (cmp != 0) return cmp;
+        return isRouteQuery(query) ? route.compareTo(other.route) : location.compareTo(other.location);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof QueryKey)) return false;
+        return compareTo((QueryKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * query + (isRouteQuery(query) ? route.hashCode() : location.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return query + "__" + (isRouteQuery(query) ? route : location);
+    }
+
+    // Sorts serialized keys without deserializing them
+    public static class Comparator extends WritableComparator {
+        private final RouteKey.Comparator routes = new RouteKey.Comparator();
+        private final LocationKey.Comparator locations = new LocationKey.Comparator();
+
+        public Comparator() {
+            super(QueryKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(b1[s1], b2[s2]);
+            if (cmp != 0) return cmp;
+            if (isRouteQuery(b1[s1])) {
+                return routes.compare(b1, s1 + 1, l1 - 1, b2, s2 + 1, l2 - 1);
+            }
+            return locations.compare(b1, s1 + 1, l1 - 1, b2, s2 + 1, l2 - 1);
+        }
+    }
+
+    static {
+        WritableComparator.define(QueryKey.class, new Comparator());
+    }
+}
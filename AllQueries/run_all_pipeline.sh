@@ -0,0 +1,81 @@
+#!/bin/bash
+# File: run_all_pipeline.sh
+# Stage 1 of Q1-Q4 from one scan of train.csv, then each query's Stage 2.
+# Stage 2 uses the TopK* jars built in /Q1../Q4 (see each Instructions.md).
+
+# Configuration
+YEAR="2013"
+# train.csv, or the trip store written by Ingest/run_ingest.sh (e.g. /user/root/Data/tripstore)
+INPUT_CSV=${INPUT_CSV:-/user/root/Data/train.csv}
+Q1_STAGE1="/user/root/Q1/stage1_monthly_counts"
+Q1_STAGE2="/user/root/Q1/stage2_top5_routes"
+Q2_STAGE1="/user/root/Q2/stage1_monthly_maxfares"
+Q2_STAGE2="/user/root/Q2/stage2_top5_expensive"
+Q3_STAGE1="/user/root/Q3/stage1_monthly_locations"
+Q3_STAGE2="/user/root/Q3/stage2_top5_locations"
+Q4_STAGE1="/user/root/Q4/stage1_monthly_nightlife"
+Q4_STAGE2="/user/root/Q4/stage2_top5_nightlife"
+NUM_REDUCERS=12
+TOP_K=5
+
+echo "======================================"
+echo "All Queries Pipeline: NYC Taxi ${YEAR}"
+echo "======================================"
+
+# Clean up previous outputs
+echo "[1/4] Cleaning up previous outputs..."
+for DIR in ${Q1_STAGE1} ${Q1_STAGE2} ${Q2_STAGE1} ${Q2_STAGE2} \
+           ${Q3_STAGE1} ${Q3_STAGE2} ${Q4_STAGE1} ${Q4_STAGE2}; do
+    hdfs dfs -rm -r -f ${DIR}
+    hdfs dfs -rm -r -f ${DIR}_temp
+done
+hdfs dfs -rm -r -f ${Q1_STAGE1}_all
+
+# Stage 1: one scan, four monthly outputs
+echo "[2/4] Running Stage 1 for Q1-Q4 (single scan)..."
+echo "  Input: ${INPUT_CSV}"
+echo "  Reducers: ${NUM_REDUCERS}"
+
+START_TIME=$(date +%s)
+hadoop jar /AllQueries/AllQueriesByMonth.jar AllQueriesByMonth \
+    ${INPUT_CSV} ${Q1_STAGE1} ${Q2_STAGE1} ${Q3_STAGE1} ${Q4_STAGE1} ${NUM_REDUCERS}
+STAGE1_EXIT=$?
+END_TIME=$(date +%s)
+STAGE1_DURATION=$((END_TIME - START_TIME))
+
+if [ $STAGE1_EXIT -ne 0 ]; then
+    echo "ERROR: Stage 1 failed!"
+    exit 1
+fi
+
+echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
+
+# Stage 2: per-query top K on the monthly outputs
+echo "[3/4] Running Stage 2 for Q1-Q4..."
+START_TIME=$(date +%s)
+hadoop jar /Q1/TopKRoutes.jar TopKRoutes ${Q1_STAGE1} ${Q1_STAGE2} ${TOP_K} &&
+hadoop jar /Q2/TopKExpensiveRoutes.jar TopKExpensiveRoutes ${Q2_STAGE1} ${Q2_STAGE2} ${TOP_K} &&
+hadoop jar /Q3/TopKLocations.jar TopKLocations ${Q3_STAGE1} ${Q3_STAGE2} ${TOP_K} &&
+hadoop jar /Q4/TopKNightlifeSpots.jar TopKNightlifeSpots ${Q4_STAGE1} ${Q4_STAGE2} ${TOP_K}
+STAGE2_EXIT=$?
+END_TIME=$(date +%s)
+STAGE2_DURATION=$((END_TIME - START_TIME))
+
+if [ $STAGE2_EXIT -ne 0 ]; then
+    echo "ERROR: Stage 2 failed!"
+    exit 1
+fi
+
+echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+
+# Display results
+echo "[4/4] Top ${TOP_K} results for ${YEAR}:"
+for OUT in ${Q1_STAGE2} ${Q2_STAGE2} ${Q3_STAGE2} ${Q4_STAGE2}; do
+    echo "========================================"
+    echo "${OUT}"
+    hdfs dfs -cat ${OUT}/part-r-*
+done
+
+echo ""
+echo "Pipeline completed successfully!"
+echo "Total execution time: $((STAGE1_DURATION + STAGE2_DURATION)) seconds"
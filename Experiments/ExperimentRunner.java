@@ -0,0 +1,430 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobCounter;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskReport;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.jobhistory.JobHistoryParser;
+import org.apache.hadoop.mapreduce.v2.jobhistory.JobHistoryUtils;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// Runs the stage-1 job of Q1-Q4 over a grid of settings and writes one CSV
+// row per run with its phase times and shuffle counters.
+//
+// The grid is the cross product of these comma-separated -D lists (each one
+// defaults to the single value the job would use anyway):
+//   experiment.queries    q1,q2,q3,q4
+//   experiment.reducers   number of reduce tasks (12)
+//   experiment.slowstart  mapreduce.job.reduce.slowstart.completedmaps
+//   experiment.sort.mb    mapreduce.task.io.sort.mb
+//   experiment.compress   mapreduce.map.output.compress (codec from
+//                         mapreduce.map.output.compress.codec)
+//   experiment.combiner   in-mapper combining, plus the map-side combiner
+//                         for Q2 (false drops both)
+// and the whole grid runs experiment.repeats times (3), one grid pass after
+// the other so drift on the cluster spreads over every setting.
+//
+// Phase times come from the job history file the MapReduce AM writes
+// (mapreduce.jobhistory.intermediate-done-dir or done-dir): per successful
+// attempt, map = start to finish, shuffle = reduce start to shuffle finish,
+// merge = shuffle finish to sort finish, reduce = sort finish to finish.
+// shuffle_tail is the part of the shuffle after the last map finished, i.e.
+// what slow start could not hide. Without a history file (LocalJobRunner, or
+// none found within experiment.history.wait.sec) only the map times from the
+// task reports are filled in. wall_ms is submission to completion as the
+// client sees it (polled every 100 ms). Spills, shuffle bytes, GC and CPU
+// come from the job counters. Times are in ms; empty cells mean not measured.
+//
+// Rows are appended to <results.csv> as runs finish, and the mean/stddev of
+// each setting over its repeats goes to <results>_summary.csv at the end.
+public class ExperimentRunner {
+    public static final String QUERIES = "experiment.queries";
+    public static final String REDUCERS = "experiment.reducers";
+    public static final String SLOWSTART = "experiment.slowstart";
+    public static final String SORT_MB = "experiment.sort.mb";
+    public static final String COMPRESS = "experiment.compress";
+    public static final String COMBINER = "experiment.combiner";
+    public static final String REPEATS = "experiment.repeats";
+    public static final String HISTORY_WAIT_SEC = "experiment.history.wait.sec";
+    public static final String KEEP_OUTPUT = "experiment.keep.output";
+
+    private static final String[] SETTINGS = {
+        "query", "reducers", "slowstart", "sort_mb", "compress", "combiner"
+    };
+
+    private static final String[] METRICS = {
+        "wall_ms", "startup_ms", "map_tasks", "map_phase_ms", "map_avg_ms", "map_max_ms",
+        "shuffle_avg_ms", "shuffle_max_ms", "shuffle_tail_avg_ms", "merge_avg_ms",
+        "reduce_avg_ms", "reduce_max_ms", "failed_attempts", "killed_attempts",
+        "map_output_records", "map_output_bytes", "map_output_materialized_bytes",
+        "combine_input_records", "spilled_records", "shuffle_bytes", "reduce_input_groups", "gc_ms", "cpu_ms"
+    };
+
+    // Summarized over the repeats of one setting
+    private static final String[] SUMMARY = {
+        "wall_ms", "map_phase_ms", "shuffle_avg_ms", "shuffle_tail_avg_ms", "merge_avg_ms",
+        "reduce_avg_ms", "spilled_records", "shuffle_bytes"
+    };
+
+    // One job run: its settings and what was measured (-1 = not measured)
+    private static class Run {
+        final Map<String, String> settings = new LinkedHashMap<String, String>();
+        final Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        int repeat;
+        boolean succeeded;
+        String source = "none";
+
+        Run() {
+            for (String metric : METRICS) {
+                metrics.put(metric, -1L);
+            }
+        }
+
+        String key() {
+            return String.join(",", settings.values());
+        }
+    }
+
+    // Stage 1 of the query named by `query`
+    private static Job stage1(String query, Configuration conf, Path input, Path output, int numReducers)
+            throws IOException, InterruptedException {
+        switch (query) {
+            case "q1": return PopularRoutesByMonth.createJob(conf, input, output, numReducers);
+            case "q2": return ExpensiveRoutesByMonth.createJob(conf, input, output, numReducers);
+            case "q3": return PopularLocationsByMonth.createJob(conf, input, output, numReducers);
+            case "q4": return NightlifeSpotsByMonth.createJob(conf, input, output, numReducers);
+            default: throw new IllegalArgumentException("Unknown " + QUERIES + " entry: " + query);
+        }
+    }
+
+    // Every combination of the grid lists, in the order they vary slowest first
+    private static List<Map<String, String>> grid(Configuration conf) {
+        Map<String, String[]> axes = new LinkedHashMap<String, String[]>();
+        axes.put("query", conf.getTrimmedStrings(QUERIES, "q1", "q2", "q3", "q4"));
+        axes.put("reducers", conf.getTrimmedStrings(REDUCERS, "12"));
+        axes.put("slowstart", conf.getTrimmedStrings(SLOWSTART,
+                conf.get(MRJobConfig.COMPLETED_MAPS_FOR_REDUCE_SLOWSTART, "0.05")));
+        axes.put("sort_mb", conf.getTrimmedStrings(SORT_MB,
+                String.valueOf(conf.getInt(MRJobConfig.IO_SORT_MB, MRJobConfig.DEFAULT_IO_SORT_MB))));
+        axes.put("compress", conf.getTrimmedStrings(COMPRESS,
+                String.valueOf(conf.getBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, false))));
+        axes.put("combiner", conf.getTrimmedStrings(COMBINER,
+                String.valueOf(InMapperCombining.isEnabled(conf))));
+
+        List<Map<String, String>> points = new ArrayList<Map<String, String>>();
+        points.add(new LinkedHashMap<String, String>());
+        for (Map.Entry<String, String[]> axis : axes.entrySet()) {
+            List<Map<String, String>> next = new ArrayList<Map<String, String>>();
+            for (Map<String, String> point : points) {
+                for (String value : axis.getValue()) {
+                    Map<String, String> extended = new LinkedHashMap<String, String>(point);
+                    extended.put(axis.getKey(), value);
+                    next.add(extended);
+                }
+            }
+            points = next;
+        }
+        return points;
+    }
+
+    private static Run runOnce(Configuration conf, Map<String, String> point, int repeat, Path input, Path output)
+            throws Exception {
+        Run run = new Run();
+        run.settings.putAll(point);
+        run.repeat = repeat;
+
+        Configuration runConf = new Configuration(conf);
+        runConf.set(MRJobConfig.COMPLETED_MAPS_FOR_REDUCE_SLOWSTART, point.get("slowstart"));
+        runConf.setInt(MRJobConfig.IO_SORT_MB, Integer.parseInt(point.get("sort_mb")));
+        runConf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, Boolean.parseBoolean(point.get("compress")));
+        boolean combiner = Boolean.parseBoolean(point.get("combiner"));
+        runConf.setBoolean(InMapperCombining.ENABLED, combiner);
+        // waitForCompletion() polls every 5 s by default, which would round
+        // every wall time up to the next poll
+        if (conf.get(Job.COMPLETION_POLL_INTERVAL_KEY) == null) {
+            runConf.setInt(Job.COMPLETION_POLL_INTERVAL_KEY, 100);
+        }
+
+        FileSystem fs = output.getFileSystem(runConf);
+        fs.delete(output, true);
+        Job job = stage1(point.get("query"), runConf, input, output, Integer.parseInt(point.get("reducers")));
+        job.setJobName(job.getJobName() + " [experiment " + run.key() + " #" + repeat + "]");
+        if (!combiner) {
+            // Q2 also combines map-side; the others have no combiner to drop
+            job.getConfiguration().unset(MRJobConfig.COMBINE_CLASS_ATTR);
+        }
+
+        long start = System.nanoTime();
+        run.succeeded = job.waitForCompletion(false);
+        run.metrics.put("wall_ms", (System.nanoTime() - start) / 1000000L);
+
+        readCounters(job, run);
+        if (!readHistory(job, runConf, run)) {
+            readTaskReports(job, run);
+        }
+        if (!conf.getBoolean(KEEP_OUTPUT, false)) {
+            fs.delete(output, true);
+        }
+        return run;
+    }
+
+    private static void readCounters(Job job, Run run) throws IOException {
+        Counters counters = job.getCounters();
+        if (counters == null) return;
+        run.metrics.put("failed_attempts", counters.findCounter(JobCounter.NUM_FAILED_MAPS).getValue()
+                + counters.findCounter(JobCounter.NUM_FAILED_REDUCES).getValue());
+        run.metrics.put("killed_attempts", counters.findCounter(JobCounter.NUM_KILLED_MAPS).getValue()
+                + counters.findCounter(JobCounter.NUM_KILLED_REDUCES).getValue());
+        run.metrics.put("map_output_records", counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue());
+        // Serialized map output, then what was written to disk after the
+        // combiner and (if on) compression
+        run.metrics.put("map_output_bytes", counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue());
+        run.metrics.put("map_output_materialized_bytes",
+                counters.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue());
+        run.metrics.put("combine_input_records",
+                counters.findCounter(TaskCounter.COMBINE_INPUT_RECORDS).getValue());
+        run.metrics.put("spilled_records", counters.findCounter(TaskCounter.SPILLED_RECORDS).getValue());
+        run.metrics.put("shuffle_bytes", counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue());
+        run.metrics.put("reduce_input_groups", counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS).getValue());
+        run.metrics.put("gc_ms", counters.findCounter(TaskCounter.GC_TIME_MILLIS).getValue());
+        run.metrics.put("cpu_ms", counters.findCounter(TaskCounter.CPU_MILLISECONDS).getValue());
+    }
+
+    // The job's .jhist file, waiting for the AM (or the history server) to
+    // move it out of the staging directory; null when there is none
+    private static Path findHistoryFile(Job job, Configuration conf) throws IOException, InterruptedException {
+        if (MRConfig.LOCAL_FRAMEWORK_NAME.equals(conf.get(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME))) {
+            return null;
+        }
+        String name = job.getJobID() + "*" + JobHistoryUtils.JOB_HISTORY_FILE_EXTENSION;
+        Path[] patterns = {
+            new Path(JobHistoryUtils.getHistoryIntermediateDoneDirForUser(conf), name),
+            // done-dir/yyyy/mm/dd/serial/
+            new Path(JobHistoryUtils.getConfiguredHistoryServerDoneDirPrefix(conf), "*/*/*/*/" + name)
+        };
+        long deadline = System.currentTimeMillis() + conf.getInt(HISTORY_WAIT_SEC, 30) * 1000L;
+        while (true) {
+            for (Path pattern : patterns) {
+                FileSystem fs = pattern.getFileSystem(conf);
+                FileStatus[] found = fs.globStatus(fs.makeQualified(pattern));
+                if (found != null && found.length > 0) {
+                    return found[0].getPath();
+                }
+            }
+            if (System.currentTimeMillis() > deadline) return null;
+            Thread.sleep(1000);
+        }
+    }
+
+    private static boolean readHistory(Job job, Configuration conf, Run run) throws IOException, InterruptedException {
+        Path file = findHistoryFile(job, conf);
+        if (file == null) return false;
+        JobHistoryParser.JobInfo info = new JobHistoryParser(file.getFileSystem(conf), file).parse();
+
+        List<JobHistoryParser.TaskAttemptInfo> maps = new ArrayList<JobHistoryParser.TaskAttemptInfo>();
+        List<JobHistoryParser.TaskAttemptInfo> reduces = new ArrayList<JobHistoryParser.TaskAttemptInfo>();
+        for (JobHistoryParser.TaskInfo task : info.getAllTasks().values()) {
+            JobHistoryParser.TaskAttemptInfo attempt = task.getAllTaskAttempts().get(task.getSuccessfulAttemptId());
+            if (attempt == null) continue;
+            if (task.getTaskType() == TaskType.MAP) {
+                maps.add(attempt);
+            } else if (task.getTaskType() == TaskType.REDUCE) {
+                reduces.add(attempt);
+            }
+        }
+
+        long firstMapStart = Long.MAX_VALUE;
+        long lastMapFinish = 0;
+        long[] mapTimes = new long[maps.size()];
+        for (int i = 0; i < maps.size(); i++) {
+            JobHistoryParser.TaskAttemptInfo attempt = maps.get(i);
+            firstMapStart = Math.min(firstMapStart, attempt.getStartTime());
+            lastMapFinish = Math.max(lastMapFinish, attempt.getFinishTime());
+            mapTimes[i] = attempt.getFinishTime() - attempt.getStartTime();
+        }
+        long[] shuffle = new long[reduces.size()];
+        long[] tail = new long[reduces.size()];
+        long[] merge = new long[reduces.size()];
+        long[] reduce = new long[reduces.size()];
+        for (int i = 0; i < reduces.size(); i++) {
+            JobHistoryParser.TaskAttemptInfo attempt = reduces.get(i);
+            shuffle[i] = attempt.getShuffleFinishTime() - attempt.getStartTime();
+            tail[i] = Math.max(0L, attempt.getShuffleFinishTime() - Math.max(lastMapFinish, attempt.getStartTime()));
+            merge[i] = attempt.getSortFinishTime() - attempt.getShuffleFinishTime();
+            reduce[i] = attempt.getFinishTime() - attempt.getSortFinishTime();
+        }
+
+        run.source = "history";
+        run.metrics.put("startup_ms", info.getLaunchTime() - info.getSubmitTime());
+        run.metrics.put("map_tasks", (long) maps.size());
+        if (!maps.isEmpty()) {
+            run.metrics.put("map_phase_ms", lastMapFinish - firstMapStart);
+        }
+        run.metrics.put("map_avg_ms", mean(mapTimes));
+        run.metrics.put("map_max_ms", max(mapTimes));
+        run.metrics.put("shuffle_avg_ms", mean(shuffle));
+        run.metrics.put("shuffle_max_ms", max(shuffle));
+        run.metrics.put("shuffle_tail_avg_ms", mean(tail));
+        run.metrics.put("merge_avg_ms", mean(merge));
+        run.metrics.put("reduce_avg_ms", mean(reduce));
+        run.metrics.put("reduce_max_ms", max(reduce));
+        return true;
+    }
+
+    // Map times only: task reports carry no shuffle or sort finish times
+    private static void readTaskReports(Job job, Run run) throws IOException, InterruptedException {
+        TaskReport[] maps = job.getTaskReports(TaskType.MAP);
+        if (maps == null || maps.length == 0) return;
+        long firstStart = Long.MAX_VALUE;
+        long lastFinish = 0;
+        long[] times = new long[maps.length];
+        for (int i = 0; i < maps.length; i++) {
+            firstStart = Math.min(firstStart, maps[i].getStartTime());
+            lastFinish = Math.max(lastFinish, maps[i].getFinishTime());
+            times[i] = maps[i].getFinishTime() - maps[i].getStartTime();
+        }
+        run.source = "tasks";
+        run.metrics.put("map_tasks", (long) maps.length);
+        run.metrics.put("map_phase_ms", lastFinish - firstStart);
+        run.metrics.put("map_avg_ms", mean(times));
+        run.metrics.put("map_max_ms", max(times));
+    }
+
+    private static long mean(long[] values) {
+        if (values.length == 0) return -1;
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static long max(long[] values) {
+        if (values.length == 0) return -1;
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    private static String cell(long value) {
+        return value < 0 ? "" : String.valueOf(value);
+    }
+
+    private static void writeRow(PrintWriter out, Run run) {
+        StringBuilder row = new StringBuilder(run.key());
+        row.append(',').append(run.repeat).append(',').append(run.succeeded ? "SUCCEEDED" : "FAILED")
+                .append(',').append(run.source);
+        for (long value : run.metrics.values()) {
+            row.append(',').append(cell(value));
+        }
+        out.println(row);
+        out.flush();
+    }
+
+    // Mean of every SUMMARY metric and the stddev of the wall time over the
+    // successful repeats of each setting
+    private static void writeSummary(File file, List<Run> runs) throws IOException {
+        Map<String, List<Run>> bySetting = new LinkedHashMap<String, List<Run>>();
+        for (Run run : runs) {
+            if (!run.succeeded) continue;
+            if (!bySetting.containsKey(run.key())) bySetting.put(run.key(), new ArrayList<Run>());
+            bySetting.get(run.key()).add(run);
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            StringBuilder header = new StringBuilder(String.join(",", SETTINGS)).append(",runs");
+            for (String metric : SUMMARY) {
+                header.append(',').append(metric).append("_mean");
+                if (metric.equals("wall_ms")) header.append(",wall_ms_stddev,wall_ms_min,wall_ms_max");
+            }
+            out.println(header);
+            for (Map.Entry<String, List<Run>> setting : bySetting.entrySet()) {
+                List<Run> repeats = setting.getValue();
+                StringBuilder row = new StringBuilder(setting.getKey()).append(',').append(repeats.size());
+                for (String metric : SUMMARY) {
+                    double sum = 0;
+                    int n = 0;
+                    long min = Long.MAX_VALUE;
+                    long max = Long.MIN_VALUE;
+                    for (Run run : repeats) {
+                        long value = run.metrics.get(metric);
+                        if (value < 0) continue;
+                        sum += value;
+                        n++;
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                    double mean = n == 0 ? -1 : sum / n;
+                    row.append(',').append(n == 0 ? "" : String.format("%.0f", mean));
+                    if (metric.equals("wall_ms")) {
+                        double squares = 0;
+                        for (Run run : repeats) {
+                            squares += Math.pow(run.metrics.get(metric) - mean, 2);
+                        }
+                        // Sample stddev; empty with a single repeat
+                        row.append(',').append(n < 2 ? "" : String.format("%.0f", Math.sqrt(squares / (n - 1))))
+                                .append(',').append(n == 0 ? "" : String.valueOf(min))
+                                .append(',').append(n == 0 ? "" : String.valueOf(max));
+                    }
+                }
+                out.println(row);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ExperimentRunner <input> <work_dir> <results.csv>");
+            System.exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dexperiment.reducers=6,8,12,16
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path input = new Path(args[0]);
+        Path workDir = new Path(args[1]);
+        File results = new File(args[2]);
+        String base = results.getName().endsWith(".csv")
+                ? results.getName().substring(0, results.getName().length() - 4) : results.getName();
+        File summary = new File(results.getAbsoluteFile().getParentFile(), base + "_summary.csv");
+
+        List<Map<String, String>> points = grid(conf);
+        int repeats = Math.max(1, conf.getInt(REPEATS, 3));
+        System.out.println(points.size() + " settings x " + repeats + " repeats = "
+                + points.size() * repeats + " runs");
+
+        List<Run> runs = new ArrayList<Run>();
+        try (PrintWriter out = new PrintWriter(new FileWriter(results))) {
+            out.println(String.join(",", SETTINGS) + ",repeat,status,source," + String.join(",", METRICS));
+            for (int repeat = 1; repeat <= repeats; repeat++) {
+                for (Map<String, String> point : points) {
+                    Path output = new Path(workDir, String.join("_", point.values()) + "_" + repeat);
+                    Run run = runOnce(conf, point, repeat, input, output);
+                    runs.add(run);
+                    writeRow(out, run);
+                    System.out.printf("%s #%d: %s in %d ms (%s)%n", Arrays.toString(point.values().toArray()),
+                            repeat, run.succeeded ? "succeeded" : "FAILED", run.metrics.get("wall_ms"), run.source);
+                }
+            }
+        }
+        writeSummary(summary, runs);
+        System.out.println("Results: " + results + ", " + summary);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,55 @@
+#!/bin/bash
+# File: run_experiment_grid.sh
+# Stage 1 of Q1-Q4 over a grid of reducers, slow start, sort buffer,
+# compression and combiner settings, with per-phase times from the job history.
+
+cd /Experiments
+
+# Configuration
+INPUT_CSV=${INPUT_CSV:-/user/root/Data/train.csv}
+WORK_DIR="/user/root/Experiments/runs"
+RESULTS="experiment_results.csv"
+QUERIES=${QUERIES:-q1,q2,q3,q4}
+REDUCERS=${REDUCERS:-6,8,12,16}
+SLOWSTART=${SLOWSTART:-0.05,0.25,0.50,0.75,0.95}
+SORT_MB=${SORT_MB:-100}
+COMPRESS=${COMPRESS:-false}
+COMBINER=${COMBINER:-true}
+REPEATS=${REPEATS:-3}
+
+echo "=========================================="
+echo "Stage 1 Experiment Grid"
+echo "=========================================="
+echo "  Queries: ${QUERIES}"
+echo "  Reducers: ${REDUCERS}"
+echo "  Slow start: ${SLOWSTART}"
+echo "  Sort buffer (MB): ${SORT_MB}"
+echo "  Map output compression: ${COMPRESS}"
+echo "  Combiner: ${COMBINER}"
+echo "  Repeats: ${REPEATS}"
+echo ""
+
+hdfs dfs -rm -r -f ${WORK_DIR}
+
+hadoop jar ExperimentRunner.jar ExperimentRunner \
+    -Dexperiment.queries=${QUERIES} \
+    -Dexperiment.reducers=${REDUCERS} \
+    -Dexperiment.slowstart=${SLOWSTART} \
+    -Dexperiment.sort.mb=${SORT_MB} \
+    -Dexperiment.compress=${COMPRESS} \
+    -Dexperiment.combiner=${COMBINER} \
+    -Dexperiment.repeats=${REPEATS} \
+    ${INPUT_CSV} ${WORK_DIR} ${RESULTS}
+
+if [ $? -ne 0 ]; then
+    echo "ERROR: Experiment run failed!"
+    exit 1
+fi
+
+echo ""
+echo "=========================================="
+echo "Experiments completed!"
+echo "=========================================="
+echo "Results saved to:"
+echo "  - /Experiments/experiment_results.csv (one row per run)"
+echo "  - /Experiments/experiment_results_summary.csv (mean/stddev per setting)"
@@ -0,0 +1,170 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// One-off job that builds the PickupTimeIndex sidecar of a train.csv file.
+//
+// Every line is assigned to the chunk (-Dpickup.index.chunk.bytes, 16 MB by
+// default) its first byte falls in, and the job records the earliest and
+// latest pickup time per chunk. PrunedTextInputFormat then skips the splits
+// of the query jobs whose chunks lie entirely outside the target year.
+public class PickupTimeIndexer {
+
+    // Min/max pickup time in epoch seconds
+    public static class TimeRange implements Writable {
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        public void set(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public void include(long from, long to) {
+            min = Math.min(min, from);
+            max = Math.max(max, to);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeLong(min);
+            out.writeLong(max);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            min = in.readLong();
+            max = in.readLong();
+        }
+
+        // "min<TAB>max", the value part of an index line
+        @Override
+        public String toString() {
+            return min + "\t" + max;
+        }
+    }
+
+    // Keeps one range per chunk seen by this split and emits them at the end
+    public static class IndexMapper extends Mapper<LongWritable, Text, LongWritable, TimeRange> {
+        private final TripCsvScanner row = new TripCsvScanner();
+        private final Map<Long, TimeRange> ranges = new TreeMap<Long, TimeRange>();
+        private long chunkBytes;
+
+        @Override
+        protected void setup(Context context) {
+            chunkBytes = context.getConfiguration().getLong(
+                    PickupTimeIndex.CHUNK_BYTES, PickupTimeIndex.DEFAULT_CHUNK_BYTES);
+        }
+
+        @Override
+        public void map(LongWritable offset, Text value, Context context) {
+            // Skip header and short rows; no query reads them either
+            if (!row.scan(value)) return;
+
+            long from;
+            long to;
+            try {
+                from = row.pickupEpochSecond();
+                to = from;
+            } catch (NumberFormatException e) {
+                // A row with a readable year but a broken datetime still passes
+                // the year filter, so it stands for its whole year
+                int year = row.year();
+                if (year < 0) return;
+                from = TargetYear.firstSecond(year);
+                to = TargetYear.firstSecond(year + 1) - 1;
+            }
+
+            Long chunk = offset.get() / chunkBytes;
+            TimeRange range = ranges.get(chunk);
+            if (range == null) {
+                range = new TimeRange();
+                ranges.put(chunk, range);
+            }
+            range.include(from, to);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            LongWritable chunk = new LongWritable();
+            for (Map.Entry<Long, TimeRange> entry : ranges.entrySet()) {
+                chunk.set(entry.getKey());
+                context.write(chunk, entry.getValue());
+            }
+        }
+    }
+
+    // Combiner/Reducer: merge the ranges of a chunk split across map tasks
+    public static class RangeReducer extends Reducer<LongWritable, TimeRange, LongWritable, TimeRange> {
+        private final TimeRange result = new TimeRange();
+
+        @Override
+        public void reduce(LongWritable chunk, Iterable<TimeRange> ranges, Context context)
+                throws IOException, InterruptedException {
+            result.set(Long.MAX_VALUE, Long.MIN_VALUE);
+            for (TimeRange range : ranges) {
+                result.include(range.min, range.max);
+            }
+            context.write(chunk, result);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PickupTimeIndexer <input_csv>");
+            System.exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dpickup.index.chunk.bytes=33554432
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path input = new Path(args[0]);
+        Path indexPath = PickupTimeIndex.sidecar(input);
+        long chunkBytes = conf.getLong(PickupTimeIndex.CHUNK_BYTES, PickupTimeIndex.DEFAULT_CHUNK_BYTES);
+
+        FileSystem fs = input.getFileSystem(conf);
+        FileStatus indexed = fs.getFileStatus(input);
+        if (indexed.isDirectory()) {
+            System.err.println("PickupTimeIndexer indexes a single file, not " + input);
+            System.exit(1);
+        }
+        // The index is derived data; rebuild it from scratch
+        fs.delete(indexPath, true);
+
+        Job job = Job.getInstance(conf, "pickup time index");
+        job.setJarByClass(PickupTimeIndexer.class);
+        job.setInputFormatClass(TextInputFormat.class);
+        job.setMapperClass(IndexMapper.class);
+        job.setCombinerClass(RangeReducer.class);
+        job.setReducerClass(RangeReducer.class);
+        job.setNumReduceTasks(1);
+
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(TimeRange.class);
+
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, indexPath);
+
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        PickupTimeIndex.writeMeta(fs, input, indexed, chunkBytes);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// One-off conversion of train.csv into the columnar TripStore.
+//
+// Every trip is keyed by its pickup year and month, so each reducer receives
+// whole months and writes them to <store>/year=YYYY/month=MM/. The query jobs
+// then list only the 2013 directories and read only the columns they use
+// instead of scanning and parsing the full 5 GB CSV on every run.
+public class TripStoreIngest {
+
+    public static class IngestMapper extends Mapper<LongWritable, Text, IntWritable, TripRecord> {
+        private final TripCsvScanner row = new TripCsvScanner();
+        private final IntWritable yearMonth = new IntWritable();
+        private final TripRecord trip = new TripRecord();
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            // Skip header and short rows
+            if (!row.scan(value)) return;
+
+            // Rows are partitioned by year and month, which is all the CSV
+            // mappers of Q1-Q3 read; without them no query uses the row
+            int year = row.year();
+            int month;
+            try {
+                month = row.month();
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (year < 0) return;
+
+            // A row whose full datetime does not parse (e.g. "2013-03-05" or a
+            // one-digit hour) still counts for Q1-Q3, so it is kept without a
+            // pickup time and Q4's hour() rejects it, as on the CSV path
+            int pickupTime = TripRecord.NO_TIME;
+            try {
+                long seconds = row.pickupEpochSecond();
+                if (seconds > TripRecord.NO_TIME && seconds <= Integer.MAX_VALUE) {
+                    pickupTime = (int) seconds;
+                }
+            } catch (NumberFormatException e) {
+                // Stored as NO_TIME
+            }
+
+            trip.setPartition(year, month);
+            trip.setPickupTime(pickupTime);
+            trip.setFare(parseOrNaN(TripCsvScanner.FARE));
+            trip.setPickup(parseOrNaN(TripCsvScanner.PICKUP_LONGITUDE),
+                    parseOrNaN(TripCsvScanner.PICKUP_LATITUDE));
+            trip.setDropoff(parseOrNaN(TripCsvScanner.DROPOFF_LONGITUDE),
+                    parseOrNaN(TripCsvScanner.DROPOFF_LATITUDE));
+
+            yearMonth.set(year * 100 + month);
+            context.write(yearMonth, trip);
+        }
+
+        // Unparseable values are kept as NaN so the row still counts for the
+        // queries that do not read that column
+        private double parseOrNaN(int field) {
+            try {
+                switch (field) {
+                    case TripCsvScanner.FARE: return row.fare();
+                    case TripCsvScanner.PICKUP_LONGITUDE: return row.pickupLongitude();
+                    case TripCsvScanner.PICKUP_LATITUDE: return row.pickupLatitude();
+                    case TripCsvScanner.DROPOFF_LONGITUDE: return row.dropoffLongitude();
+                    default: return row.dropoffLatitude();
+                }
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+    }
+
+    // Writes each month to its own year=/month= directory
+    public static class PartitionReducer extends Reducer<IntWritable, TripRecord, NullWritable, TripRecord> {
+        private MultipleOutputs<NullWritable, TripRecord> outputs;
+
+        @Override
+        protected void setup(Context context) {
+            outputs = new MultipleOutputs<NullWritable, TripRecord>(context);
+        }
+
+        @Override
+        public void reduce(IntWritable yearMonth, Iterable<TripRecord> trips, Context context)
+                throws IOException, InterruptedException {
+            String path = TripStore.partition(yearMonth.get() / 100, yearMonth.get() % 100) + "/part";
+            for (TripRecord trip : trips) {
+                outputs.write(NullWritable.get(), trip, path);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TripStoreIngest <input_csv> <store_output> [num_reducers]");
+            System.exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int numReducers = (args.length >= 3) ? Integer.parseInt(args[2]) : 12;
+        Path storePath = new Path(args[1]);
+
+        Job job = Job.getInstance(conf, "trip store ingest");
+        job.setJarByClass(TripStoreIngest.class);
+        job.setMapperClass(IngestMapper.class);
+        job.setReducerClass(PartitionReducer.class);
+        job.setNumReduceTasks(numReducers);
+
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(TripRecord.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(TripRecord.class);
+        LazyOutputFormat.setOutputFormatClass(job, TripStoreOutputFormat.class);
+
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, storePath);
+
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+
+        // Marks the directory as a complete store for TripStoreInputFormat.addInput
+        FileSystem fs = storePath.getFileSystem(conf);
+        fs.create(new Path(storePath, TripStore.MARKER)).close();
+        System.exit(0);
+    }
+}
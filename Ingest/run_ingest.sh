@@ -0,0 +1,45 @@
+#!/bin/bash
+# File: run_ingest.sh
+# Converts train.csv once into the columnar trip store read by the query jobs.
+
+# Configuration
+INPUT_CSV="/user/root/Data/train.csv"
+STORE_OUTPUT="/user/root/Data/tripstore"
+NUM_REDUCERS=12
+
+echo "======================================"
+echo "Trip Store Ingestion"
+echo "======================================"
+
+# Clean up previous store
+echo "[1/3] Cleaning up previous store..."
+hdfs dfs -rm -r -f ${STORE_OUTPUT}
+
+# Convert train.csv into year=/month= partitions
+echo "[2/3] Running ingestion..."
+echo "  Input: ${INPUT_CSV}"
+echo "  Output: ${STORE_OUTPUT}"
+echo "  Reducers: ${NUM_REDUCERS}"
+
+START_TIME=$(date +%s)
+hadoop jar /Ingest/TripStoreIngest.jar TripStoreIngest \
+    ${INPUT_CSV} ${STORE_OUTPUT} ${NUM_REDUCERS}
+INGEST_EXIT=$?
+END_TIME=$(date +%s)
+INGEST_DURATION=$((END_TIME - START_TIME))
+
+if [ $INGEST_EXIT -ne 0 ]; then
+    echo "ERROR: Ingestion failed!"
+    exit 1
+fi
+
+echo "  Ingestion completed in ${INGEST_DURATION} seconds"
+
+# Show partition sizes
+echo "[3/3] 2013 partitions:"
+echo "========================================"
+hdfs dfs -du -h ${STORE_OUTPUT}/year=2013
+
+echo ""
+echo "Run a query on the store with, e.g.:"
+echo "  INPUT_CSV=${STORE_OUTPUT} ./run_q1_pipeline.sh"
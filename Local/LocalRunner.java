@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// Runs both stages of Q1-Q4 inside one JVM, without YARN or HDFS.
+//
+// The jobs are the usual ones (each query's createJob() and TopK*.run()),
+// submitted to Hadoop's in-process LocalJobRunner on the local filesystem.
+// LocalJobRunner runs map and reduce tasks on thread pools; this sizes those
+// pools to the machine's cores (-Dlocal.threads to override), cuts train.csv
+// into about two splits per thread and reads them memory-mapped (see
+// MappedCsvInputFormat; -Dcsv.mmap=false for the usual line reader), so every
+// core has a share of the input and there is no container start-up at all.
+// Every -D option of the cluster jobs applies here too.
+//
+// On a cluster each map task has a container to itself; here all of them
+// share one heap. Each concurrent map task holds a sort buffer (io.sort.mb,
+// 64 MB here), an in-mapper table of up to inmapper.combine.memory.mb and an
+// mmap window of csv.mmap.window.mb, so unless set, the last two defaults
+// (128 and 64 MB per task) are divided by the thread count. The total is
+// printed before the first job, with a warning above half the heap.
+//
+// Output goes to <output>/q1/stage1, <output>/q1/stage2, ... <output>/q4/stage2;
+// -Dlocal.queries=q1,q3 runs a subset, and -Dincremental.state=<dir> keeps
+// each query's state in <dir>/q1 ... <dir>/q4.
+public class LocalRunner {
+    public static final String THREADS = "local.threads";
+    public static final String QUERIES = "local.queries";
+
+    private static final int SPLITS_PER_THREAD = 2;
+
+    // Stage 1 of the query named by `query`
+    private static Job stage1(String query, Configuration conf, Path input, Path output, int numReducers)
+            throws IOException, InterruptedException {
+        switch (query) {
+            case "q1": return PopularRoutesByMonth.createJob(conf, input, output, numReducers);
+            case "q2": return ExpensiveRoutesByMonth.createJob(conf, input, output, numReducers);
+            case "q3": return PopularLocationsByMonth.createJob(conf, input, output, numReducers);
+            case "q4": return NightlifeSpotsByMonth.createJob(conf, input, output, numReducers);
+            default: throw new IllegalArgumentException("Unknown " + QUERIES + " entry: " + query);
+        }
+    }
+
+    // Stage 2 of the query named by `query`
+    private static boolean stage2(String query, Configuration conf, Path input, Path output, int k)
+            throws Exception {
+        switch (query) {
+            case "q1": return TopKRoutes.run(conf, input, output, k);
+            case "q2": return TopKExpensiveRoutes.run(conf, input, output, k);
+            case "q3": return TopKLocations.run(conf, input, output, k);
+            case "q4": return TopKNightlifeSpots.run(conf, input, output, k);
+            default: throw new IllegalArgumentException("Unknown " + QUERIES + " entry: " + query);
+        }
+    }
+
+    // In-process execution over the local filesystem, sized to the cores
+    static void configureLocal(Configuration conf, Path input) throws IOException {
+        int threads = conf.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+        conf.set(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME);
+        conf.set(FileSystem.FS_DEFAULT_NAME_KEY, "file:///");
+        conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, threads);
+        conf.setInt(LocalJobRunner.LOCAL_MAX_REDUCES, threads);
+        // Every map task holds its own sort buffer
+        if (conf.get(MRJobConfig.IO_SORT_MB) == null) {
+            conf.setInt(MRJobConfig.IO_SORT_MB, 64);
+        }
+        // Memory-mapped train.csv (see MappedCsvInputFormat)
+        if (conf.get(MappedCsvInputFormat.ENABLED) == null) {
+            conf.setBoolean(MappedCsvInputFormat.ENABLED, true);
+        }
+        // Every map task also holds its in-mapper table and mmap window
+        if (conf.get(InMapperCombining.MEMORY_MB) == null) {
+            conf.setInt(InMapperCombining.MEMORY_MB, Math.max(1, InMapperCombining.DEFAULT_MEMORY_MB / threads));
+        }
+        if (conf.get(MappedCsvInputFormat.WINDOW_MB) == null) {
+            conf.setInt(MappedCsvInputFormat.WINDOW_MB,
+                    Math.max(1, MappedCsvInputFormat.DEFAULT_WINDOW_MB / threads));
+        }
+        if (conf.get(FileInputFormat.SPLIT_MAXSIZE) == null) {
+            long length = input.getFileSystem(conf).getContentSummary(input).getLength();
+            long splitSize = Math.max(1L << 20, length / (threads * SPLITS_PER_THREAD) + 1);
+            conf.setLong(FileInputFormat.SPLIT_MAXSIZE, splitSize);
+        }
+    }
+
+    // MB of heap the concurrent map tasks hold at most: sort buffer,
+    // in-mapper table and mmap window per thread
+    static long mapTaskMemoryMb(Configuration conf) {
+        long perTask = conf.getInt(MRJobConfig.IO_SORT_MB, MRJobConfig.DEFAULT_IO_SORT_MB);
+        if (InMapperCombining.isEnabled(conf)) {
+            perTask += conf.getInt(InMapperCombining.MEMORY_MB, InMapperCombining.DEFAULT_MEMORY_MB);
+        }
+        if (conf.getBoolean(MappedCsvInputFormat.ENABLED, false)) {
+            perTask += conf.getInt(MappedCsvInputFormat.WINDOW_MB, MappedCsvInputFormat.DEFAULT_WINDOW_MB);
+        }
+        return perTask * conf.getInt(LocalJobRunner.LOCAL_MAX_MAPS, 1);
+    }
+
+    private static void checkMemory(Configuration conf) {
+        long needed = mapTaskMemoryMb(conf);
+        long heap = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        System.out.printf("%d map threads hold up to %d MB of the %d MB heap%n",
+                conf.getInt(LocalJobRunner.LOCAL_MAX_MAPS, 1), needed, heap);
+        if (needed > heap / 2) {
+            System.err.println("WARNING: the map tasks may run out of heap; raise -Xmx or lower "
+                    + THREADS + ", " + MRJobConfig.IO_SORT_MB + " or " + InMapperCombining.MEMORY_MB);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LocalRunner <input> <output_dir> [k] [num_reducers]");
+            System.exit(1);
+        }
+
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dlocal.threads=8 or -Dinmapper.combine=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path input = new Path(args[0]);
+        Path output = new Path(args[1]);
+        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+        int numReducers = (args.length >= 4) ? Integer.parseInt(args[3]) : 12;
+        configureLocal(conf, input);
+        checkMemory(conf);
+        List<String> queries = Arrays.asList(conf.getTrimmedStrings(QUERIES, "q1", "q2", "q3", "q4"));
+
+        for (String query : queries) {
+            Path stage1Output = new Path(output, query + "/stage1");
+            Path stage2Output = new Path(output, query + "/stage2");
+            // TopK*.run() sets topk.k on the Configuration it gets
+            Configuration queryConf = new Configuration(conf);
+            if (conf.get(IncrementalState.DIR) != null) {
+                // One state directory per query
+                queryConf.set(IncrementalState.DIR, new Path(conf.get(IncrementalState.DIR), query).toString());
+            }
+
+            long start = System.nanoTime();
+            Job job = stage1(query, queryConf, input, stage1Output, numReducers);
+            if (!job.waitForCompletion(true)) {
+                System.exit(1);
+            }
+            MonthlyTopK.finish(job);
+            IncrementalState.commit(job);
+            TaskMetrics.report(job);
+            long stage1Done = System.nanoTime();
+
+            if (!stage2(query, queryConf, stage1Output, stage2Output, k)) {
+                System.exit(1);
+            }
+            long stage2Done = System.nanoTime();
+            System.out.printf("%s: stage 1 %.1f s, stage 2 %.1f s%n", query,
+                    (stage1Done - start) / 1e9, (stage2Done - stage1Done) / 1e9);
+        }
+        System.exit(0);
+    }
+}
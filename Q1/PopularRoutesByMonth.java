@@ -2,92 +2,353 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class PopularRoutesByMonth {
 
-    public static class RouteMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
-        private final static IntWritable one = new IntWritable(1);
-        private static final String TARGET_YEAR = "2013";
+    // Row -> route key filter shared by RouteMapper and SketchMapper, so the
+    // exact and the approximate job skip the same rows. accept() counts the
+    // reason a row is skipped; parse errors propagate to the mapper, which
+    // counts them as MALFORMED
+    static final class RouteFilter {
+        private final int targetYear;
+        private final SpatialQuantizer cells;
+
+        // Key of the last accepted row
+        int month;
+        long pickup;
+        long dropoff;
+
+        RouteFilter(Configuration conf) {
+            targetYear = TargetYear.get(conf);
+            cells = SpatialQuantizer.get(conf, RouteKey.DECIMALS);
+        }
 
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] fields = line.split(",");
+        boolean accept(TripRow row, TaskMetrics metrics) {
+            // FILTER: Only process the target year (2013 unless -Dtaxi.target.year)
+            if (row.year() != targetYear) {
+                metrics.skip(TaskMetrics.Skip.OTHER_YEAR);
+                return false;
+            }
+            
+            // Extract month (01-12)
+            month = row.month();
+            
+            // Parse coordinates
+            double plon = row.pickupLongitude();
+            double plat = row.pickupLatitude();
+            double dlon = row.dropoffLongitude();
+            double dlat = row.dropoffLatitude();
             
-            // Skip header line by content
-            if (fields[0].equalsIgnoreCase("key")) return;
+            // FILTER OUT INVALID COORDINATES
+            // Skip if any coordinate is exactly 0 (invalid data)
+            if (plon == 0.0 || plat == 0.0 || dlon == 0.0 || dlat == 0.0) {
+                metrics.skip(TaskMetrics.Skip.ZERO_COORDINATE);
+                return false;
+            }
             
-            if (fields.length < 7) return;
+            // NYC bounds check (optional but recommended)
+            // if (plon < -75.0 || plon > -72.0 || plat < 39.0 || plat > 42.0 ||
+            //     dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
+            //     return false;
+            // }
+            
+            // Composite key: month + route cells (rounded to 5 decimals by default)
+            pickup = cells.pickup(row);
+            dropoff = cells.dropoff(row);
+            return true;
+        }
+    }
+
+    public static class RouteMapper extends Mapper<Object, Writable, RouteKey, IntWritable> {
+        private final static IntWritable one = new IntWritable(1);
+        private RouteFilter filter;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final RouteKey route = new RouteKey();
+        
+        // In-mapper combining: counts per distinct route, flushed when full
+        private final IntWritable count = new IntWritable();
+        private PackedKeyIntMap counts;
+        private int maxEntries;
+        
+        // Skip reasons and sampled timings (see TaskMetrics)
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            filter = new RouteFilter(conf);
+            if (InMapperCombining.isEnabled(conf)) {
+                counts = InMapperCombining.newCountTable(conf);
+                maxEntries = InMapperCombining.maxEntries(conf);
+            }
+            metrics = TaskMetrics.forMapper(context);
+        }
+
+        @Override
+        public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            long started = metrics.start();
+            // Skip header line and short rows
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                // Extract pickup_datetime (field[2])
-                String pickupDatetime = fields[2];
-                
-                // FILTER: Only process TARGET_YEAR (2013)
-                String year = pickupDatetime.substring(0, 4);
-                if (!year.equals(TARGET_YEAR)) return;
-                
-                // Extract month (01-12)
-                String month = pickupDatetime.substring(5, 7);
-                
-                // Parse coordinates
-                double plon = Double.parseDouble(fields[3]);
-                double plat = Double.parseDouble(fields[4]);
-                double dlon = Double.parseDouble(fields[5]);
-                double dlat = Double.parseDouble(fields[6]);
-                
-                // FILTER OUT INVALID COORDINATES
-                // Skip if any coordinate is exactly 0 (invalid data)
-                if (plon == 0.0 || plat == 0.0 || dlon == 0.0 || dlat == 0.0) {
+                if (!filter.accept(row, metrics)) {
                     return;
                 }
+                long emitting = metrics.parsed(started);
                 
-                // NYC bounds check (optional but recommended)
-                // if (plon < -75.0 || plon > -72.0 || plat < 39.0 || plat > 42.0 ||
-                //     dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
-                //     return;
-                // }
-                
-                String rounded = String.format("%.5f,%.5f,%.5f,%.5f", plon, plat, dlon, dlat);
-                Text compositeKey = new Text(month + "__" + rounded);
-                context.write(compositeKey, one);
+                if (counts != null) {
+                    counts.add(filter.month, filter.pickup, filter.dropoff, 1);
+                } else {
+                    route.set(filter.month, filter.pickup, filter.dropoff);
+                    context.write(route, one);
+                }
+                metrics.finished(emitting);
             } catch (Exception e) {
                 // Ignore parse errors
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+            }
+            
+            if (counts != null && counts.size() >= maxEntries) {
+                flush(context);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (counts != null) {
+                flush(context);
             }
+            metrics.close(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int slot = 0; slot < counts.capacity(); slot++) {
+                if (!counts.isUsed(slot)) continue;
+                route.set(counts.tagAt(slot), counts.firstAt(slot), counts.secondAt(slot));
+                count.set(counts.valueAt(slot));
+                context.write(route, count);
+            }
+            counts.clear();
         }
     }
 
-    public static class MonthPartitioner extends Partitioner<Text, IntWritable> {
+    // Approximate mode (-Dapprox.heavy.hitters=true): one HeavyHitters summary
+    // per month, shipped once from cleanup()
+    public static class SketchMapper extends Mapper<Object, Writable, RouteKey, HeavyHitters> {
+        private RouteFilter filter;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final RouteKey route = new RouteKey();
+        private final HeavyHitters[] months = new HeavyHitters[13];
+        private TaskMetrics metrics;
+
         @Override
-        public int getPartition(Text key, IntWritable value, int numPartitions) {
-            String month = key.toString().split("__")[0];
-            int monthNum = Integer.parseInt(month);
-            return (monthNum - 1) % numPartitions;
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            filter = new RouteFilter(conf);
+            for (int month = 1; month <= 12; month++) {
+                months[month] = new HeavyHitters(conf);
+            }
+            metrics = TaskMetrics.forMapper(context);
+        }
+
+        @Override
+        public void map(Object key, Writable value, Context context) {
+            long started = metrics.start();
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
+            
+            try {
+                if (!filter.accept(row, metrics)) {
+                    return;
+                }
+                long emitting = metrics.parsed(started);
+                months[filter.month].add(filter.pickup, filter.dropoff);
+                metrics.finished(emitting);
+            } catch (Exception e) {
+                // Ignore parse errors and months outside 1-12
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (int month = 1; month <= 12; month++) {
+                if (months[month].getTotal() == 0) continue;
+                route.set(month, 0L, 0L);
+                context.write(route, months[month]);
+            }
+            metrics.close(context);
         }
     }
 
-    public static class RouteReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+    public static class RouteReducer extends Reducer<RouteKey, IntWritable, RouteKey, IntWritable> {
         private IntWritable result = new IntWritable();
+        
+        // Binary yearly copy of each row for PopularRoutesPipeline (see YearlyOutput)
+        private MultipleOutputs<RouteKey, IntWritable> yearly;
+        private final RouteKey yearlyKey = new RouteKey();
+
+        // Binary aggregate state for -Dincremental.state (see IncrementalState)
+        private MultipleOutputs<RouteKey, IntWritable> state;
+
+        // Per-month top K for -Dmonthly.topk (see MonthlyTopK)
+        private MonthlyTopK monthlyTop;
+        
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            if (MonthlyTopK.isEnabled(context.getConfiguration())) {
+                monthlyTop = new MonthlyTopK(context);
+            }
+            if (YearlyOutput.isEnabled(context.getConfiguration())) {
+                yearly = new MultipleOutputs<RouteKey, IntWritable>(context);
+            }
+            if (IncrementalState.isEnabled(context.getConfiguration())) {
+                state = new MultipleOutputs<RouteKey, IntWritable>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
 
         @Override
-        public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        public void reduce(RouteKey key, Iterable<IntWritable> values, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             int sum = 0;
             for (IntWritable val : values) {
                 sum += val.get();
             }
             result.set(sum);
             context.write(key, result);
+            if (state != null) {
+                state.write(IncrementalState.NAMED_OUTPUT, key, result, IncrementalState.BASE_PATH);
+            }
+            if (monthlyTop != null) {
+                monthlyTop.offer(key.getMonth(), key, sum);
+            }
+            
+            if (yearly != null) {
+                yearlyKey.set(RouteKey.ALL_MONTHS, key.getPickup(), key.getDropoff());
+                yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, result, YearlyOutput.BASE_PATH);
+            }
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (monthlyTop != null) {
+                monthlyTop.close();
+            }
+            if (yearly != null) {
+                yearly.close();
+            }
+            if (state != null) {
+                state.close();
+            }
+            metrics.close(context);
+        }
+    }
+
+    // Merges a month's summaries and writes its candidate routes with their
+    // estimated counts, highest first
+    public static class SketchReducer extends Reducer<RouteKey, HeavyHitters, RouteKey, IntWritable> {
+        private final RouteKey route = new RouteKey();
+        private final IntWritable estimate = new IntWritable();
+        private MultipleOutputs<RouteKey, IntWritable> yearly;
+        private final RouteKey yearlyKey = new RouteKey();
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            if (YearlyOutput.isEnabled(context.getConfiguration())) {
+                yearly = new MultipleOutputs<RouteKey, IntWritable>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(RouteKey key, Iterable<HeavyHitters> summaries, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            HeavyHitters month = new HeavyHitters(context.getConfiguration());
+            for (HeavyHitters summary : summaries) {
+                month.merge(summary);
+            }
+            
+            long maxOvercount = 0;
+            for (int i : month.byEstimate()) {
+                long count = month.estimateAt(i);
+                maxOvercount = Math.max(maxOvercount, count - month.lowerBoundAt(i));
+                route.set(key.getMonth(), month.firstAt(i), month.secondAt(i));
+                estimate.set((int) count);
+                context.write(route, estimate);
+                
+                if (yearly != null) {
+                    yearlyKey.set(RouteKey.ALL_MONTHS, route.getPickup(), route.getDropoff());
+                    yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, estimate, YearlyOutput.BASE_PATH);
+                }
+            }
+            // Every reported count is at most this much above the true count
+            context.getCounter(HeavyHitters.COUNTER_GROUP, String.format("%02d", key.getMonth()))
+                    .increment(maxOvercount);
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (yearly != null) {
+                yearly.close();
+            }
+            metrics.close(context);
         }
     }
 
+    public static Job createJob(Configuration conf, Path input, Path output, int numReducers)
+            throws IOException, InterruptedException {
+        Job job = Job.getInstance(conf, "popular routes by month 2013");
+        job.setJarByClass(PopularRoutesByMonth.class);
+        if (HeavyHitters.isEnabled(conf)) {
+            // Approximate top routes from per-month summaries (see HeavyHitters)
+            job.setMapperClass(SketchMapper.class);
+            job.setReducerClass(SketchReducer.class);
+            job.setMapOutputValueClass(HeavyHitters.class);
+        } else {
+            job.setMapperClass(RouteMapper.class);
+            job.setReducerClass(RouteReducer.class);
+        }
+        job.setNumReduceTasks(numReducers);
+        
+        job.setOutputKeyClass(RouteKey.class);
+        // Same text as TextOutputFormat, without a String per row
+        job.setOutputFormatClass(StageTextOutputFormat.class);
+        job.setOutputValueClass(IntWritable.class);
+        // train.csv minus pruned splits, or the target year's columns of a trip store
+        TripStoreInputFormat.addInput(job, input,
+                TripStore.PICKUP_LONGITUDE, TripStore.PICKUP_LATITUDE,
+                TripStore.DROPOFF_LONGITUDE, TripStore.DROPOFF_LATITUDE);
+        // Each month over its own range of reducers (sampled with -Dpartition.sample.rows)
+        MonthRangePartitioner.configure(job);
+        MonthlyTopK.configure(job);
+        // Merge a new delta into the saved aggregates with -Dincremental.state
+        IncrementalState.configure(job);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
             System.err.println("Usage: PopularRoutesByMonth <input> <output> [num_reducers]");
@@ -95,19 +356,16 @@ public class PopularRoutesByMonth {
         }
         
         Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf, "popular routes by month 2013");
-        job.setJarByClass(PopularRoutesByMonth.class);
-        job.setMapperClass(RouteMapper.class);
-        job.setReducerClass(RouteReducer.class);
-        job.setPartitionerClass(MonthPartitioner.class);
-        
+        // Picks up -D options such as -Dinmapper.combine=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
         int numReducers = (args.length >= 3) ? Integer.parseInt(args[2]) : 12;
-        job.setNumReduceTasks(numReducers);
-        
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(IntWritable.class);
-        FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        Job job = createJob(conf, new Path(args[0]), new Path(args[1]), numReducers);
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        MonthlyTopK.finish(job);
+        IncrementalState.commit(job);
+        TaskMetrics.report(job);
+        System.exit(0);
     }
 }
@@ -12,88 +12,181 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class TopKRoutes {
     
     // Mapper: Extract route (without month) and emit route -> count
     public static class TopKMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+        // Reused for every line: the scanner reads the input Text in place
+        // and the route bytes are copied into one output key
+        private final StageLineScanner line = new StageLineScanner();
+        private final Text route = new Text();
+        private final IntWritable count = new IntWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context) 
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            
-            // Skip empty lines
-            if (line.isEmpty()) return;
+            long started = metrics.start();
             
             // Parse: "03__-73.977,40.745,-73.981,40.743    1425"
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            // Skip empty lines and lines without a count
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String routeWithMonth = parts[0];  // "03__-73.977,40.745,-73.981,40.743"
-                int count = Integer.parseInt(parts[1]);
+                count.set(line.valueInt());
                 
                 // Extract just the route (remove month prefix)
-                String[] routeParts = routeWithMonth.split("__");
-                if (routeParts.length < 2) return;
-                String route = routeParts[1];  // "-73.977,40.745,-73.981,40.743"
+                int routeStart = line.field(1);
+                if (routeStart < 0) {
+                    metrics.skip(TaskMetrics.Skip.MALFORMED);
+                    return;
+                }
+                line.copy(routeStart, line.fieldEnd(routeStart), route);  // "-73.977,40.745,-73.981,40.743"
                 
                 // Emit route -> count (will be aggregated by reducer)
-                context.write(new Text(route), new IntWritable(count));
+                long emitting = metrics.parsed(started);
+                context.write(route, count);
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip malformed lines
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
     // Combiner/Reducer: Sum counts for each route across all months
     public static class SumReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         private IntWritable result = new IntWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forReducer(context);
+        }
         
         @Override
         public void reduce(Text route, Iterable<IntWritable> counts, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             int sum = 0;
             for (IntWritable count : counts) {
                 sum += count.get();
             }
             result.set(sum);
             context.write(route, result);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
+    }
+    
+    // Single-pass reducer: sum each route and keep only this reducer's top K
+    public static class HeapTopKReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+        private TopKHeap heap;
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            heap = new TopKHeap(context.getConfiguration().getInt("topk.k", 5));
+            metrics = TaskMetrics.forReducer(context);
+        }
+        
+        @Override
+        public void reduce(Text route, Iterable<IntWritable> counts, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            int sum = 0;
+            for (IntWritable count : counts) {
+                sum += count.get();
+            }
+            heap.offer(route, sum);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            IntWritable count = new IntWritable();
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                count.set((int) entry.getScore());
+                context.write(entry.getLabel(), count);
+            }
+            metrics.close(context);
         }
     }
     
     // Mapper 2: Swap route and total count for sorting
     public static class SortMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
+        private final StageLineScanner line = new StageLineScanner();
+        private final IntWritable totalCount = new IntWritable();
+        private final Text route = new Text();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            long started = metrics.start();
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String route = parts[0];
-                int totalCount = Integer.parseInt(parts[1]);
+                totalCount.set(line.valueInt());
+                line.copy(line.keyStart(), line.keyEnd(), route);
                 
                 // Emit count -> route (for sorting by count)
-                context.write(new IntWritable(totalCount), new Text(route));
+                long emitting = metrics.parsed(started);
+                context.write(totalCount, route);
+                metrics.finished(emitting);
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
-    // Comparator: Sort counts in DESCENDING order
+    // Comparator: Sort counts in DESCENDING order, straight on the serialized
+    // 4-byte ints so the shuffle sort never deserializes a key
     public static class DescendingIntComparator extends WritableComparator {
         protected DescendingIntComparator() {
-            super(IntWritable.class, true);
+            super(IntWritable.class);
         }
         
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Integer.compare(readInt(b2, s2), readInt(b1, s1));
+        }
+        
+        // Deserialized keys, e.g. TotalOrderSort's sampled split points
         @Override
         public int compare(WritableComparable a, WritableComparable b) {
             return -1 * a.compareTo(b);
@@ -104,34 +197,60 @@ public class TopKRoutes {
     public static class TopKReducer extends Reducer<IntWritable, Text, Text, IntWritable> {
         private int K = 5;
         private int count = 0;
+        private TaskMetrics metrics;
         
         @Override
         protected void setup(Context context) {
             K = context.getConfiguration().getInt("topk.k", 5);
+            metrics = TaskMetrics.forReducer(context);
         }
         
         @Override
         public void reduce(IntWritable totalCount, Iterable<Text> routes, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             
             for (Text route : routes) {
-                if (this.count >= K) return;
+                if (this.count >= K) break;
                 context.write(route, totalCount);
                 this.count++;
             }
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
         }
     }
     
-    public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: TopKRoutes <input_path> <output_path> [k]");
-            System.exit(1);
-        }
-        
-        Configuration conf = new Configuration();
-        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+    // Runs stage 2 in the mode the options select; also used by LocalRunner
+    public static boolean run(Configuration conf, Path input, Path output, int k) throws Exception {
         conf.setInt("topk.k", k);
         
+        Path tempPath = new Path(output + "_temp");
+        
+        if (conf.getBoolean("topk.single.pass", true)) {
+            // Single job: aggregate across months, keep each reducer's top K,
+            // then merge the few partial rows in the driver
+            Job job = Job.getInstance(conf, "top k routes (single pass)");
+            job.setJarByClass(TopKRoutes.class);
+            job.setMapperClass(TopKMapper.class);
+            job.setCombinerClass(SumReducer.class);
+            job.setReducerClass(HeapTopKReducer.class);
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(IntWritable.class);
+            
+            FileInputFormat.addInputPath(job, input);
+            FileOutputFormat.setOutputPath(job, tempPath);
+            
+            if (!job.waitForCompletion(true)) {
+                return false;
+            }
+            TopKMerge.merge(conf, tempPath, output, k);
+            return true;
+        }
+        
         // Job 1: Aggregate counts across all months
         Job job1 = Job.getInstance(conf, "aggregate route counts");
         job1.setJarByClass(TopKRoutes.class);
@@ -141,12 +260,11 @@ public class TopKRoutes {
         job1.setOutputKeyClass(Text.class);
         job1.setOutputValueClass(IntWritable.class);
         
-        Path tempPath = new Path(args[1] + "_temp");
-        FileInputFormat.addInputPath(job1, new Path(args[0]));
+        FileInputFormat.addInputPath(job1, input);
         FileOutputFormat.setOutputPath(job1, tempPath);
         
         if (!job1.waitForCompletion(true)) {
-            System.exit(1);
+            return false;
         }
         
         // Job 2: Sort by count and select top K
@@ -163,8 +281,25 @@ public class TopKRoutes {
         job2.setOutputValueClass(IntWritable.class);
         
         FileInputFormat.addInputPath(job2, tempPath);
-        FileOutputFormat.setOutputPath(job2, new Path(args[1]));
+        if (TotalOrderSort.isEnabled(conf)) {
+            // Range-partitioned sort over -Dtopk.sort.reducers reducers
+            return TotalOrderSort.run(job2, output, k);
+        }
+        FileOutputFormat.setOutputPath(job2, output);
         
-        System.exit(job2.waitForCompletion(true) ? 0 : 1);
+        return job2.waitForCompletion(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TopKRoutes <input_path> <output_path> [k]");
+            System.exit(1);
+        }
+        
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dtopk.single.pass=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+        System.exit(run(conf, new Path(args[0]), new Path(args[1]), k) ? 0 : 1);
     }
 }
@@ -3,13 +3,16 @@
 
 # Configuration
 YEAR="2013"
-INPUT_CSV="/user/root/Data/train.csv"
+# train.csv, or the trip store written by Ingest/run_ingest.sh (e.g. /user/root/Data/tripstore)
+INPUT_CSV=${INPUT_CSV:-/user/root/Data/train.csv}
 Q1_DIR="/user/root/Q1"
 STAGE1_OUTPUT="${Q1_DIR}/stage1_monthly_counts"
 STAGE2_OUTPUT="${Q1_DIR}/stage2_top5_routes"
 STAGE2_TEMP_DIR="${Q1_DIR}/stage2_top5_routes_temp"
 NUM_REDUCERS=12
 TOP_K=5
+# 1 = run both stages from one submission (PopularRoutesPipeline), 0 = two hadoop jar runs
+FUSED=${FUSED:-1}
 
 echo "======================================"
 echo "Query 1 Pipeline: Popular Routes 2013"
@@ -20,47 +23,73 @@ echo "[1/5] Cleaning up previous outputs..."
 hdfs dfs -rm -r -f ${STAGE1_OUTPUT}
 hdfs dfs -rm -r -f ${STAGE2_OUTPUT}
 
-# Stage 1: Count routes by month
-echo "[2/5] Running Stage 1: Monthly Route Counts..."
-echo "  Input: ${INPUT_CSV}"
-echo "  Output: ${STAGE1_OUTPUT}"
-echo "  Reducers: ${NUM_REDUCERS}"
-
-START_TIME=$(date +%s)
-hadoop jar /Q1/PopularRoutesByMonth.jar PopularRoutesByMonth \
-    ${INPUT_CSV} ${STAGE1_OUTPUT} ${NUM_REDUCERS}
-STAGE1_EXIT=$?
-END_TIME=$(date +%s)
-STAGE1_DURATION=$((END_TIME - START_TIME))
-
-if [ $STAGE1_EXIT -ne 0 ]; then
-    echo "ERROR: Stage 1 failed!"
-    exit 1
-fi
+if [ "${FUSED}" = "1" ]; then
+    # Stage 1 + Stage 2 in one submission: stage 2 reads stage 1's binary
+    # _yearly output instead of re-parsing the monthly text files
+    echo "[2/5] Running Stages 1+2: Monthly Route Counts + Top-K Routes (fused)..."
+    echo "  Input: ${INPUT_CSV}"
+    echo "  Output: ${STAGE1_OUTPUT}, ${STAGE2_OUTPUT}"
+    echo "  Reducers: ${NUM_REDUCERS}"
+    echo "  K: ${TOP_K}"
+    hdfs dfs -rm -r -f ${STAGE2_OUTPUT}_temp
 
-echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
-
-# Stage 2: Extract top K routes
-echo "[3/5] Running Stage 2: Top-K Route Selection..."
-echo "Cleaning up previous temp outputs..."
-hdfs dfs -rm -r -f ${STAGE2_TEMP_DIR}
-echo "  Input: ${STAGE1_OUTPUT}"
-echo "  Output: ${STAGE2_OUTPUT}"
-echo "  K: ${TOP_K}"
-
-START_TIME=$(date +%s)
-hadoop jar /Q1/TopKRoutes.jar TopKRoutes \
-    ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${TOP_K}
-STAGE2_EXIT=$?
-END_TIME=$(date +%s)
-STAGE2_DURATION=$((END_TIME - START_TIME))
-
-if [ $STAGE2_EXIT -ne 0 ]; then
-    echo "ERROR: Stage 2 failed!"
-    exit 1
-fi
+    START_TIME=$(date +%s)
+    hadoop jar /Q1/PopularRoutesPipeline.jar PopularRoutesPipeline \
+        ${INPUT_CSV} ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${NUM_REDUCERS} ${TOP_K}
+    PIPELINE_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE1_DURATION=$((END_TIME - START_TIME))
+    STAGE2_DURATION=0
+
+    if [ $PIPELINE_EXIT -ne 0 ]; then
+        echo "ERROR: Pipeline failed!"
+        exit 1
+    fi
+
+    echo "  Stages 1+2 completed in ${STAGE1_DURATION} seconds"
+else
+    # Stage 1: Count routes by month
+    echo "[2/5] Running Stage 1: Monthly Route Counts..."
+    echo "  Input: ${INPUT_CSV}"
+    echo "  Output: ${STAGE1_OUTPUT}"
+    echo "  Reducers: ${NUM_REDUCERS}"
+
+    START_TIME=$(date +%s)
+    hadoop jar /Q1/PopularRoutesByMonth.jar PopularRoutesByMonth \
+        ${INPUT_CSV} ${STAGE1_OUTPUT} ${NUM_REDUCERS}
+    STAGE1_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE1_DURATION=$((END_TIME - START_TIME))
+
+    if [ $STAGE1_EXIT -ne 0 ]; then
+        echo "ERROR: Stage 1 failed!"
+        exit 1
+    fi
 
-echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+    echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
+
+    # Stage 2: Extract top K routes
+    echo "[3/5] Running Stage 2: Top-K Route Selection..."
+    echo "Cleaning up previous temp outputs..."
+    hdfs dfs -rm -r -f ${STAGE2_TEMP_DIR}
+    echo "  Input: ${STAGE1_OUTPUT}"
+    echo "  Output: ${STAGE2_OUTPUT}"
+    echo "  K: ${TOP_K}"
+
+    START_TIME=$(date +%s)
+    hadoop jar /Q1/TopKRoutes.jar TopKRoutes \
+        ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${TOP_K}
+    STAGE2_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE2_DURATION=$((END_TIME - START_TIME))
+
+    if [ $STAGE2_EXIT -ne 0 ]; then
+        echo "ERROR: Stage 2 failed!"
+        exit 1
+    fi
+
+    echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+fi
 
 # Display results
 echo "[4/5] Displaying Top ${TOP_K} Routes for ${YEAR}:"
@@ -2,100 +2,346 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class ExpensiveRoutesByMonth {
 
-    public static class RouteMapper extends Mapper<LongWritable, Text, Text, DoubleWritable> {
-        private static final String TARGET_YEAR = "2013";
+    // Row -> (route key, fare) filter shared by RouteMapper and
+    // FareStatsMapper, so the max-fare and the fare statistics jobs skip the
+    // same rows. accept() counts the reason a row is skipped; parse errors
+    // propagate to the mapper, which counts them as MALFORMED
+    static final class FareFilter {
+        private final int targetYear;
+        private final SpatialQuantizer cells;
 
-        public void map(LongWritable key, Text value, Context context) 
-                throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] fields = line.split(",");
+        // Key and fare of the last accepted row
+        int month;
+        long pickup;
+        long dropoff;
+        double fare;
+
+        FareFilter(Configuration conf) {
+            targetYear = TargetYear.get(conf);
+            cells = SpatialQuantizer.get(conf, RouteKey.DECIMALS);
+        }
+
+        boolean accept(TripRow row, TaskMetrics metrics) {
+            // Extract fare_amount (field[1])
+            fare = row.fare();
+            
+            // Filter for the target year (2013 unless -Dtaxi.target.year)
+            if (row.year() != targetYear) {
+                metrics.skip(TaskMetrics.Skip.OTHER_YEAR);
+                return false;
+            }
+            
+            // Extract month
+            month = row.month();
+            
+            // Extract coordinates
+            double plon = row.pickupLongitude();
+            double plat = row.pickupLatitude();
+            double dlon = row.dropoffLongitude();
+            double dlat = row.dropoffLatitude();
+            
+            // Filter invalid coordinates
+            if (plon == 0.0 || plat == 0.0 || dlon == 0.0 || dlat == 0.0) {
+                metrics.skip(TaskMetrics.Skip.ZERO_COORDINATE);
+                return false;
+            }
+            
+            // // NYC bounds check
+            // if (plon < -75.0 || plon > -72.0 || plat < 39.0 || plat > 42.0 ||
+            //     dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
+            //     return false;
+            // }
             
-            // Skip header
-            if (fields[0].equalsIgnoreCase("key")) return;
+            // Filter invalid fares (negative or extremely high)
+            if (fare <= 0.0 || fare > 2000.0) {
+                metrics.skip(TaskMetrics.Skip.BAD_FARE);
+                return false;
+            }
             
-            // Need at least 7 fields (key, fare, datetime, 4 coordinates)
-            if (fields.length < 7) return;
+            // Composite key: month + route cells (rounded to 5 decimals by default)
+            pickup = cells.pickup(row);
+            dropoff = cells.dropoff(row);
+            return true;
+        }
+    }
+
+    public static class RouteMapper extends Mapper<Object, Writable, RouteKey, DoubleWritable> {
+        private FareFilter filter;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final RouteKey route = new RouteKey();
+        private final DoubleWritable fare = new DoubleWritable();
+        
+        // In-mapper combining: highest fare per distinct route, flushed when full
+        private PackedKeyDoubleMap maxFares;
+        private int maxEntries;
+        
+        // Skip reasons and sampled timings (see TaskMetrics)
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            filter = new FareFilter(conf);
+            if (InMapperCombining.isEnabled(conf)) {
+                maxFares = InMapperCombining.newMaxTable(conf);
+                maxEntries = InMapperCombining.maxDoubleEntries(conf);
+            }
+            metrics = TaskMetrics.forMapper(context);
+        }
+
+        @Override
+        public void map(Object key, Writable value, Context context) 
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            // Skip header and rows without the 7 fields we need
+            // (key, fare, datetime, 4 coordinates)
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                // Extract fare_amount (field[1])
-                double fareAmount = Double.parseDouble(fields[1]);
-                
-                // Extract pickup_datetime (field[2])
-                String pickupDatetime = fields[2];
-                
-                // Filter for TARGET_YEAR
-                String year = pickupDatetime.substring(0, 4);
-                if (!year.equals(TARGET_YEAR)) return;
-                
-                // Extract month
-                String month = pickupDatetime.substring(5, 7);
-                
-                // Extract coordinates
-                double plon = Double.parseDouble(fields[3]);
-                double plat = Double.parseDouble(fields[4]);
-                double dlon = Double.parseDouble(fields[5]);
-                double dlat = Double.parseDouble(fields[6]);
-                
-                // Filter invalid coordinates
-                if (plon == 0.0 || plat == 0.0 || dlon == 0.0 || dlat == 0.0) {
+                if (!filter.accept(row, metrics)) {
                     return;
                 }
+                long emitting = metrics.parsed(started);
                 
-                // // NYC bounds check
-                // if (plon < -75.0 || plon > -72.0 || plat < 39.0 || plat > 42.0 ||
-                //     dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
-                //     return;
-                // }
-                
-                // Filter invalid fares (negative or extremely high)
-                if (fareAmount <= 0.0 || fareAmount > 2000.0) {
+                if (maxFares != null) {
+                    maxFares.max(filter.month, filter.pickup, filter.dropoff, filter.fare);
+                } else {
+                    // Emit route with fare amount
+                    route.set(filter.month, filter.pickup, filter.dropoff);
+                    fare.set(filter.fare);
+                    context.write(route, fare);
+                }
+                metrics.finished(emitting);
+            } catch (Exception e) {
+                // Skip malformed lines
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+            }
+            
+            if (maxFares != null && maxFares.size() >= maxEntries) {
+                flush(context);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (maxFares != null) {
+                flush(context);
+            }
+            metrics.close(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int slot = 0; slot < maxFares.capacity(); slot++) {
+                if (!maxFares.isUsed(slot)) continue;
+                route.set(maxFares.tagAt(slot), maxFares.firstAt(slot), maxFares.secondAt(slot));
+                fare.set(maxFares.valueAt(slot));
+                context.write(route, fare);
+            }
+            maxFares.clear();
+        }
+    }
+
+    // Combiner: max fare per route within a map task (MaxFareReducer also
+    // writes the yearly side output, so it cannot run map-side)
+    public static class MaxFareCombiner extends Reducer<RouteKey, DoubleWritable, RouteKey, DoubleWritable> {
+        private final DoubleWritable result = new DoubleWritable();
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(RouteKey key, Iterable<DoubleWritable> fares, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            double maxFare = Double.NEGATIVE_INFINITY;
+            for (DoubleWritable fare : fares) {
+                if (fare.get() > maxFare) {
+                    maxFare = fare.get();
+                }
+            }
+            result.set(maxFare);
+            context.write(key, result);
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
+    }
+
+    // Fare statistics mode (-Dfare.stats=true): each valid fare wrapped in a
+    // FareStats, merged by FareStatsCombiner and FareStatsReducer
+    public static class FareStatsMapper extends Mapper<Object, Writable, RouteKey, FareStats> {
+        private FareFilter filter;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final RouteKey route = new RouteKey();
+        private FareStats stats;
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            filter = new FareFilter(conf);
+            stats = new FareStats(conf);
+            metrics = TaskMetrics.forMapper(context);
+        }
+
+        @Override
+        public void map(Object key, Writable value, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
+            
+            try {
+                if (!filter.accept(row, metrics)) {
                     return;
                 }
-                
-                // Create route string with 4 decimal precision
-                String route = String.format("%.5f,%.5f,%.5f,%.5f", plon, plat, dlon, dlat);
-                
-                // Composite key: month__route
-                Text compositeKey = new Text(month + "__" + route);
-                
-                // Emit route with fare amount
-                context.write(compositeKey, new DoubleWritable(fareAmount));
-                
+                route.set(filter.month, filter.pickup, filter.dropoff);
+                long emitting = metrics.parsed(started);
+                stats.clear();
+                stats.add(filter.fare);
+                context.write(route, stats);
+                metrics.finished(emitting);
             } catch (Exception e) {
                 // Skip malformed lines
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
 
-    public static class MonthPartitioner extends Partitioner<Text, DoubleWritable> {
+    // Combiner for fare statistics, also used by the Q2 stage-2 jobs
+    public static class FareStatsCombiner extends Reducer<RouteKey, FareStats, RouteKey, FareStats> {
+        private FareStats result;
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            result = new FareStats(context.getConfiguration());
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(RouteKey key, Iterable<FareStats> values, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            result.clear();
+            for (FareStats stats : values) {
+                result.merge(stats);
+            }
+            context.write(key, result);
+            metrics.finished(started);
+        }
+
         @Override
-        public int getPartition(Text key, DoubleWritable value, int numPartitions) {
-            String month = key.toString().split("__")[0];
-            int monthNum = Integer.parseInt(month);
-            return (monthNum - 1) % numPartitions;
+        protected void cleanup(Context context) {
+            metrics.close(context);
         }
     }
 
-    public static class MaxFareReducer extends Reducer<Text, DoubleWritable, Text, DoubleWritable> {
+    // Writes "MM__route<TAB>max count=... mean=... min=... p50=... p95=... p99=..."
+    // and the binary yearly copy TopKExpensiveRoutes merges the digests from
+    public static class FareStatsReducer extends Reducer<RouteKey, FareStats, RouteKey, FareStats> {
+        private FareStats result;
+        private MultipleOutputs<RouteKey, FareStats> yearly;
+        private final RouteKey yearlyKey = new RouteKey();
+        private MultipleOutputs<RouteKey, FareStats> state;
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            result = new FareStats(context.getConfiguration());
+            yearly = new MultipleOutputs<RouteKey, FareStats>(context);
+            if (IncrementalState.isEnabled(context.getConfiguration())) {
+                state = new MultipleOutputs<RouteKey, FareStats>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(RouteKey key, Iterable<FareStats> values, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            result.clear();
+            for (FareStats stats : values) {
+                result.merge(stats);
+            }
+            context.write(key, result);
+            if (state != null) {
+                state.write(IncrementalState.NAMED_OUTPUT, key, result, IncrementalState.BASE_PATH);
+            }
+            
+            yearlyKey.set(RouteKey.ALL_MONTHS, key.getPickup(), key.getDropoff());
+            yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, result, YearlyOutput.BASE_PATH);
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            yearly.close();
+            if (state != null) {
+                state.close();
+            }
+            metrics.close(context);
+        }
+    }
+
+    public static class MaxFareReducer extends Reducer<RouteKey, DoubleWritable, RouteKey, DoubleWritable> {
         private DoubleWritable result = new DoubleWritable();
+        
+        // Binary yearly copy of each row for ExpensiveRoutesPipeline (see YearlyOutput)
+        private MultipleOutputs<RouteKey, DoubleWritable> yearly;
+        private final RouteKey yearlyKey = new RouteKey();
+
+        // Binary aggregate state for -Dincremental.state (see IncrementalState)
+        private MultipleOutputs<RouteKey, DoubleWritable> state;
+        
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            if (YearlyOutput.isEnabled(context.getConfiguration())) {
+                yearly = new MultipleOutputs<RouteKey, DoubleWritable>(context);
+            }
+            if (IncrementalState.isEnabled(context.getConfiguration())) {
+                state = new MultipleOutputs<RouteKey, DoubleWritable>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
 
         @Override
-        public void reduce(Text key, Iterable<DoubleWritable> fares, Context context)
+        public void reduce(RouteKey key, Iterable<DoubleWritable> fares, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             
             // Find maximum fare for this route
-            double maxFare = Double.MIN_VALUE;
+            double maxFare = Double.NEGATIVE_INFINITY;
             for (DoubleWritable fare : fares) {
                 if (fare.get() > maxFare) {
                     maxFare = fare.get();
@@ -104,9 +350,67 @@ public class ExpensiveRoutesByMonth {
             
             result.set(maxFare);
             context.write(key, result);
+            if (state != null) {
+                state.write(IncrementalState.NAMED_OUTPUT, key, result, IncrementalState.BASE_PATH);
+            }
+            
+            if (yearly != null) {
+                yearlyKey.set(RouteKey.ALL_MONTHS, key.getPickup(), key.getDropoff());
+                yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, result, YearlyOutput.BASE_PATH);
+            }
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (yearly != null) {
+                yearly.close();
+            }
+            if (state != null) {
+                state.close();
+            }
+            metrics.close(context);
         }
     }
 
+    public static Job createJob(Configuration conf, Path input, Path output, int numReducers)
+            throws IOException, InterruptedException {
+        Job job = Job.getInstance(conf, "expensive routes by month 2013");
+        job.setJarByClass(ExpensiveRoutesByMonth.class);
+        boolean fareStats = FareStats.isEnabled(conf);
+        if (fareStats) {
+            // Count/mean/min/max/percentiles per route (see FareStats)
+            job.setMapperClass(FareStatsMapper.class);
+            job.setCombinerClass(FareStatsCombiner.class);
+            job.setReducerClass(FareStatsReducer.class);
+        } else {
+            job.setMapperClass(RouteMapper.class);
+            job.setCombinerClass(MaxFareCombiner.class);
+            job.setReducerClass(MaxFareReducer.class);
+        }
+        job.setNumReduceTasks(numReducers);
+        
+        job.setOutputKeyClass(RouteKey.class);
+        // Same text as TextOutputFormat, without a String per row
+        job.setOutputFormatClass(StageTextOutputFormat.class);
+        job.setOutputValueClass(fareStats ? FareStats.class : DoubleWritable.class);
+        if (fareStats) {
+            // Binary yearly copy the stage-2 jobs merge the digests from
+            YearlyOutput.enable(job, RouteKey.class, FareStats.class);
+        }
+        
+        // train.csv minus pruned splits, or the target year's columns of a trip store
+        TripStoreInputFormat.addInput(job, input,
+                TripStore.FARE, TripStore.PICKUP_LONGITUDE, TripStore.PICKUP_LATITUDE,
+                TripStore.DROPOFF_LONGITUDE, TripStore.DROPOFF_LATITUDE);
+        // Each month over its own range of reducers (sampled with -Dpartition.sample.rows)
+        MonthRangePartitioner.configure(job);
+        // Merge a new delta into the saved aggregates with -Dincremental.state
+        IncrementalState.configure(job);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
             System.err.println("Usage: ExpensiveRoutesByMonth <input> <output> [num_reducers]");
@@ -114,21 +418,16 @@ public class ExpensiveRoutesByMonth {
         }
         
         Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf, "expensive routes by month 2013");
-        job.setJarByClass(ExpensiveRoutesByMonth.class);
-        job.setMapperClass(RouteMapper.class);
-        job.setReducerClass(MaxFareReducer.class);
-        job.setPartitionerClass(MonthPartitioner.class);
-        
+        // Picks up -D options such as -Dtaxi.target.year=2014
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
         int numReducers = (args.length >= 3) ? Integer.parseInt(args[2]) : 12;
-        job.setNumReduceTasks(numReducers);
+        Job job = createJob(conf, new Path(args[0]), new Path(args[1]), numReducers);
         
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(DoubleWritable.class);
-        
-        FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
-        
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        IncrementalState.commit(job);
+        TaskMetrics.report(job);
+        System.exit(0);
     }
 }
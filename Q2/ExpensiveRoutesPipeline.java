@@ -0,0 +1,119 @@
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// Runs both stages of Query 2 from a single submission.
+//
+// Stage 1 is the ExpensiveRoutesByMonth job (monthly files as before); its
+// reducers also write a binary yearly copy of every row (see YearlyOutput),
+// which stage 2 reads as RouteKey records. This replaces two `hadoop jar`
+// launches and the text re-parsing in TopKExpensiveRoutes.
+public class ExpensiveRoutesPipeline {
+    
+    // Stage 2 reducer: max fare per route across months, keeping this reducer's top K
+    public static class YearlyTopKReducer extends Reducer<RouteKey, DoubleWritable, Text, DoubleWritable> {
+        private TopKHeap heap;
+        private final Text label = new Text();
+        private final StringBuilder sb = new StringBuilder();
+        
+        @Override
+        protected void setup(Context context) {
+            heap = new TopKHeap(context.getConfiguration().getInt("topk.k", 5));
+        }
+        
+        @Override
+        public void reduce(RouteKey key, Iterable<DoubleWritable> fares, Context context)
+                throws IOException, InterruptedException {
+            double maxFare = Double.NEGATIVE_INFINITY;
+            for (DoubleWritable fare : fares) {
+                if (fare.get() > maxFare) {
+                    maxFare = fare.get();
+                }
+            }
+            // Only render the label for keys that can enter the heap
+            if (heap.accepts(maxFare)) {
+                sb.setLength(0);
+                label.set(key.appendRoute(sb).toString());
+                heap.offer(label, maxFare);
+            }
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            DoubleWritable fare = new DoubleWritable();
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                fare.set(entry.getScore());
+                context.write(entry.getLabel(), fare);
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ExpensiveRoutesPipeline <input> <stage1_output> <stage2_output> [num_reducers] [k]");
+            System.exit(1);
+        }
+        
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int numReducers = (args.length >= 4) ? Integer.parseInt(args[3]) : 12;
+        int k = (args.length >= 5) ? Integer.parseInt(args[4]) : 5;
+        conf.setInt("topk.k", k);
+        
+        Path stage1Output = new Path(args[1]);
+        Path stage2Output = new Path(args[2]);
+        Path tempPath = new Path(args[2] + "_temp");
+        
+        // Stage 1: monthly max fares, plus the binary yearly hand-off
+        Job job1 = ExpensiveRoutesByMonth.createJob(conf, new Path(args[0]), stage1Output, numReducers);
+        boolean fareStats = FareStats.isEnabled(conf);
+        if (!fareStats) {
+            // Already on for -Dfare.stats=true, with FareStats values
+            YearlyOutput.enable(job1, RouteKey.class, DoubleWritable.class);
+        }
+        if (!job1.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        IncrementalState.commit(job1);
+        TaskMetrics.report(job1);
+        
+        // Stage 2: yearly max fares and top K routes from the binary rows
+        Job job2 = Job.getInstance(conf, "top k expensive routes (pipeline)");
+        job2.setJarByClass(ExpensiveRoutesPipeline.class);
+        job2.setInputFormatClass(SequenceFileInputFormat.class);
+        job2.setMapperClass(Mapper.class);
+        job2.setMapOutputKeyClass(RouteKey.class);
+        job2.setOutputKeyClass(Text.class);
+        if (fareStats) {
+            // Merged digests, written as "route<TAB>max count=... p99=..."
+            job2.setCombinerClass(ExpensiveRoutesByMonth.FareStatsCombiner.class);
+            job2.setReducerClass(TopKExpensiveRoutes.FareStatsTopKReducer.class);
+            job2.setMapOutputValueClass(FareStats.class);
+            job2.setOutputValueClass(NullWritable.class);
+        } else {
+            job2.setCombinerClass(ExpensiveRoutesByMonth.MaxFareReducer.class);
+            job2.setReducerClass(YearlyTopKReducer.class);
+            job2.setMapOutputValueClass(DoubleWritable.class);
+            job2.setOutputValueClass(DoubleWritable.class);
+        }
+        
+        FileInputFormat.addInputPath(job2, YearlyOutput.input(stage1Output));
+        FileOutputFormat.setOutputPath(job2, tempPath);
+        
+        if (!job2.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        TopKMerge.merge(conf, tempPath, stage2Output, k);
+        System.exit(0);
+    }
+}
@@ -3,6 +3,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
@@ -10,49 +11,80 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class TopKExpensiveRoutes {
     
     // Mapper: Extract route (without month) and emit route -> max_fare
     public static class ExpensiveMapper extends Mapper<LongWritable, Text, Text, DoubleWritable> {
+        // Reused for every line: the scanner reads the input Text in place
+        // and the route bytes are copied into one output key
+        private final StageLineScanner line = new StageLineScanner();
+        private final Text route = new Text();
+        private final DoubleWritable fare = new DoubleWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context) 
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
+            long started = metrics.start();
             
             // Parse: "03__-73.977,40.745,-73.981,40.743    42.5"
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String routeWithMonth = parts[0];
-                double fare = Double.parseDouble(parts[1]);
+                fare.set(line.valueDouble());
                 
                 // Extract route (remove month prefix)
-                String[] routeParts = routeWithMonth.split("__");
-                if (routeParts.length < 2) return;
-                String route = routeParts[1];
+                int routeStart = line.field(1);
+                if (routeStart < 0) {
+                    metrics.skip(TaskMetrics.Skip.MALFORMED);
+                    return;
+                }
+                line.copy(routeStart, line.fieldEnd(routeStart), route);
                 
                 // Emit route -> fare
-                context.write(new Text(route), new DoubleWritable(fare));
+                long emitting = metrics.parsed(started);
+                context.write(route, fare);
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
     // Reducer: Find maximum fare across all months for each route
     public static class MaxReducer extends Reducer<Text, DoubleWritable, Text, DoubleWritable> {
         private DoubleWritable result = new DoubleWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forReducer(context);
+        }
         
         @Override
         public void reduce(Text route, Iterable<DoubleWritable> fares, Context context)
                 throws IOException, InterruptedException {
-            double maxFare = Double.MIN_VALUE;
+            long started = metrics.start();
+            double maxFare = Double.NEGATIVE_INFINITY;
             for (DoubleWritable fare : fares) {
                 if (fare.get() > maxFare) {
                     maxFare = fare.get();
@@ -60,39 +92,147 @@ public class TopKExpensiveRoutes {
             }
             result.set(maxFare);
             context.write(route, result);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
+    }
+    
+    // Single-pass reducer: max fare per route, keeping only this reducer's top K
+    public static class HeapTopKReducer extends Reducer<Text, DoubleWritable, Text, DoubleWritable> {
+        private TopKHeap heap;
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            heap = new TopKHeap(context.getConfiguration().getInt("topk.k", 5));
+            metrics = TaskMetrics.forReducer(context);
+        }
+        
+        @Override
+        public void reduce(Text route, Iterable<DoubleWritable> fares, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            double maxFare = Double.NEGATIVE_INFINITY;
+            for (DoubleWritable fare : fares) {
+                if (fare.get() > maxFare) {
+                    maxFare = fare.get();
+                }
+            }
+            heap.offer(route, maxFare);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            DoubleWritable fare = new DoubleWritable();
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                fare.set(entry.getScore());
+                context.write(entry.getLabel(), fare);
+            }
+            metrics.close(context);
+        }
+    }
+    
+    // Fare statistics mode: merges a route's monthly FareStats and keeps this
+    // reducer's top K by max fare as "route<TAB>max count=... p99=..." lines
+    public static class FareStatsTopKReducer extends Reducer<RouteKey, FareStats, Text, NullWritable> {
+        private TopKHeap heap;
+        private FareStats result;
+        private final Text label = new Text();
+        private final StringBuilder sb = new StringBuilder();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            heap = new TopKHeap(context.getConfiguration().getInt("topk.k", 5));
+            result = new FareStats(context.getConfiguration());
+            metrics = TaskMetrics.forReducer(context);
+        }
+        
+        @Override
+        public void reduce(RouteKey key, Iterable<FareStats> values, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            result.clear();
+            for (FareStats stats : values) {
+                result.merge(stats);
+            }
+            if (heap.accepts(result.getMax())) {
+                sb.setLength(0);
+                key.appendRoute(sb).append('\t').append(result);
+                label.set(sb.toString());
+                heap.offer(label, result.getMax());
+            }
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                context.write(entry.getLabel(), NullWritable.get());
+            }
+            metrics.close(context);
         }
     }
     
     // Mapper 2: Swap fare and route for sorting
     public static class SortMapper extends Mapper<LongWritable, Text, DoubleWritable, Text> {
+        private final StageLineScanner line = new StageLineScanner();
+        private final DoubleWritable maxFare = new DoubleWritable();
+        private final Text route = new Text();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            long started = metrics.start();
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String route = parts[0];
-                double maxFare = Double.parseDouble(parts[1]);
+                maxFare.set(line.valueDouble());
+                line.copy(line.keyStart(), line.keyEnd(), route);
                 
                 // Emit fare -> route (for sorting by fare)
-                context.write(new DoubleWritable(maxFare), new Text(route));
+                long emitting = metrics.parsed(started);
+                context.write(maxFare, route);
+                metrics.finished(emitting);
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
-    // Comparator: Sort fares in DESCENDING order
+    // Comparator: Sort fares in DESCENDING order, straight on the serialized
+    // 8-byte doubles so the shuffle sort never deserializes a key
     public static class DescendingDoubleComparator extends WritableComparator {
         protected DescendingDoubleComparator() {
-            super(DoubleWritable.class, true);
+            super(DoubleWritable.class);
+        }
+        
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Double.compare(readDouble(b2, s2), readDouble(b1, s1));
         }
         
+        // Deserialized keys, e.g. TotalOrderSort's sampled split points
         @Override
         public int compare(WritableComparable a, WritableComparable b) {
             return -1 * a.compareTo(b);
@@ -103,33 +243,83 @@ public class TopKExpensiveRoutes {
     public static class TopKReducer extends Reducer<DoubleWritable, Text, Text, DoubleWritable> {
         private int K = 5;
         private int count = 0;
+        private TaskMetrics metrics;
         
         @Override
         protected void setup(Context context) {
             K = context.getConfiguration().getInt("topk.k", 5);
+            metrics = TaskMetrics.forReducer(context);
         }
         
         @Override
         public void reduce(DoubleWritable fare, Iterable<Text> routes, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             
             for (Text route : routes) {
-                if (this.count >= K) return;
+                if (this.count >= K) break;
                 context.write(route, fare);
                 this.count++;
             }
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
         }
     }
     
-    public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: TopKExpensiveRoutes <input_path> <output_path> [k]");
-            System.exit(1);
+    // Runs stage 2 in the mode the options select; also used by LocalRunner
+    public static boolean run(Configuration conf, Path input, Path output, int k) throws Exception {
+        conf.setInt("topk.k", k);
+        
+        Path tempPath = new Path(output + "_temp");
+        
+        if (FareStats.isEnabled(conf)) {
+            // Merge the binary yearly FareStats that ExpensiveRoutesByMonth
+            // writes with -Dfare.stats=true; always a single pass
+            Job job = Job.getInstance(conf, "top k expensive routes (fare stats)");
+            job.setJarByClass(TopKExpensiveRoutes.class);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            job.setMapperClass(Mapper.class);
+            job.setCombinerClass(ExpensiveRoutesByMonth.FareStatsCombiner.class);
+            job.setReducerClass(FareStatsTopKReducer.class);
+            job.setMapOutputKeyClass(RouteKey.class);
+            job.setMapOutputValueClass(FareStats.class);
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(NullWritable.class);
+            
+            FileInputFormat.addInputPath(job, YearlyOutput.input(input));
+            FileOutputFormat.setOutputPath(job, tempPath);
+            
+            if (!job.waitForCompletion(true)) {
+                return false;
+            }
+            TopKMerge.merge(conf, tempPath, output, k);
+            return true;
         }
         
-        Configuration conf = new Configuration();
-        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
-        conf.setInt("topk.k", k);
+        if (conf.getBoolean("topk.single.pass", true)) {
+            // Single job: aggregate across months, keep each reducer's top K,
+            // then merge the few partial rows in the driver
+            Job job = Job.getInstance(conf, "top k expensive routes (single pass)");
+            job.setJarByClass(TopKExpensiveRoutes.class);
+            job.setMapperClass(ExpensiveMapper.class);
+            job.setCombinerClass(MaxReducer.class);
+            job.setReducerClass(HeapTopKReducer.class);
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(DoubleWritable.class);
+            
+            FileInputFormat.addInputPath(job, input);
+            FileOutputFormat.setOutputPath(job, tempPath);
+            
+            if (!job.waitForCompletion(true)) {
+                return false;
+            }
+            TopKMerge.merge(conf, tempPath, output, k);
+            return true;
+        }
         
         // Job 1: Aggregate max fares across all months
         Job job1 = Job.getInstance(conf, "aggregate max fares");
@@ -140,12 +330,11 @@ public class TopKExpensiveRoutes {
         job1.setOutputKeyClass(Text.class);
         job1.setOutputValueClass(DoubleWritable.class);
         
-        Path tempPath = new Path(args[1] + "_temp");
-        FileInputFormat.addInputPath(job1, new Path(args[0]));
+        FileInputFormat.addInputPath(job1, input);
         FileOutputFormat.setOutputPath(job1, tempPath);
         
         if (!job1.waitForCompletion(true)) {
-            System.exit(1);
+            return false;
         }
         
         // Job 2: Sort by fare and select top K
@@ -162,8 +351,25 @@ public class TopKExpensiveRoutes {
         job2.setOutputValueClass(DoubleWritable.class);
         
         FileInputFormat.addInputPath(job2, tempPath);
-        FileOutputFormat.setOutputPath(job2, new Path(args[1]));
+        if (TotalOrderSort.isEnabled(conf)) {
+            // Range-partitioned sort over -Dtopk.sort.reducers reducers
+            return TotalOrderSort.run(job2, output, k);
+        }
+        FileOutputFormat.setOutputPath(job2, output);
+        
+        return job2.waitForCompletion(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TopKExpensiveRoutes <input_path> <output_path> [k]");
+            System.exit(1);
+        }
         
-        System.exit(job2.waitForCompletion(true) ? 0 : 1);
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dtopk.single.pass=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+        System.exit(run(conf, new Path(args[0]), new Path(args[1]), k) ? 0 : 1);
     }
 }
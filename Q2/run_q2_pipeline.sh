@@ -3,12 +3,15 @@
 
 # Configuration
 YEAR="2013"
-INPUT_CSV="/user/root/Data/train.csv"
+# train.csv, or the trip store written by Ingest/run_ingest.sh (e.g. /user/root/Data/tripstore)
+INPUT_CSV=${INPUT_CSV:-/user/root/Data/train.csv}
 Q2_DIR="/user/root/Q2"
 STAGE1_OUTPUT="${Q2_DIR}/stage1_monthly_maxfares"
 STAGE2_OUTPUT="${Q2_DIR}/stage2_top5_expensive"
 NUM_REDUCERS=12
 TOP_K=5
+# 1 = run both stages from one submission (ExpensiveRoutesPipeline), 0 = two hadoop jar runs
+FUSED=${FUSED:-1}
 
 echo "======================================"
 echo "Query 2 Pipeline: Expensive Routes 2013"
@@ -20,45 +23,71 @@ hdfs dfs -rm -r -f ${STAGE1_OUTPUT}
 hdfs dfs -rm -r -f ${STAGE2_OUTPUT}
 hdfs dfs -rm -r -f ${STAGE2_OUTPUT}_temp
 
-# Stage 1: Find max fare per route by month
-echo "[2/5] Running Stage 1: Monthly Max Fares..."
-echo "  Input: ${INPUT_CSV}"
-echo "  Output: ${STAGE1_OUTPUT}"
-echo "  Reducers: ${NUM_REDUCERS}"
-
-START_TIME=$(date +%s)
-hadoop jar /Q2/ExpensiveRoutesByMonth.jar ExpensiveRoutesByMonth \
-    ${INPUT_CSV} ${STAGE1_OUTPUT} ${NUM_REDUCERS}
-STAGE1_EXIT=$?
-END_TIME=$(date +%s)
-STAGE1_DURATION=$((END_TIME - START_TIME))
-
-if [ $STAGE1_EXIT -ne 0 ]; then
-    echo "ERROR: Stage 1 failed!"
-    exit 1
-fi
+if [ "${FUSED}" = "1" ]; then
+    # Stage 1 + Stage 2 in one submission: stage 2 reads stage 1's binary
+    # _yearly output instead of re-parsing the monthly text files
+    echo "[2/5] Running Stages 1+2: Monthly Max Fares + Top-K Expensive Routes (fused)..."
+    echo "  Input: ${INPUT_CSV}"
+    echo "  Output: ${STAGE1_OUTPUT}, ${STAGE2_OUTPUT}"
+    echo "  Reducers: ${NUM_REDUCERS}"
+    echo "  K: ${TOP_K}"
+    hdfs dfs -rm -r -f ${STAGE2_OUTPUT}_temp
 
-echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
+    START_TIME=$(date +%s)
+    hadoop jar /Q2/ExpensiveRoutesPipeline.jar ExpensiveRoutesPipeline \
+        ${INPUT_CSV} ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${NUM_REDUCERS} ${TOP_K}
+    PIPELINE_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE1_DURATION=$((END_TIME - START_TIME))
+    STAGE2_DURATION=0
 
-# Stage 2: Aggregate and select top K
-echo "[3/5] Running Stage 2: Top-K Expensive Routes..."
-echo "  Input: ${STAGE1_OUTPUT}"
-echo "  Output: ${STAGE2_OUTPUT}"
-echo "  K: ${TOP_K}"
+    if [ $PIPELINE_EXIT -ne 0 ]; then
+        echo "ERROR: Pipeline failed!"
+        exit 1
+    fi
 
-START_TIME=$(date +%s)
-hadoop jar /Q2/TopKExpensiveRoutes.jar TopKExpensiveRoutes \
-    ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${TOP_K}
-STAGE2_EXIT=$?
-END_TIME=$(date +%s)
-STAGE2_DURATION=$((END_TIME - START_TIME))
+    echo "  Stages 1+2 completed in ${STAGE1_DURATION} seconds"
+else
+    # Stage 1: Find max fare per route by month
+    echo "[2/5] Running Stage 1: Monthly Max Fares..."
+    echo "  Input: ${INPUT_CSV}"
+    echo "  Output: ${STAGE1_OUTPUT}"
+    echo "  Reducers: ${NUM_REDUCERS}"
 
-if [ $STAGE2_EXIT -ne 0 ]; then
-    echo "ERROR: Stage 2 failed!"
-    exit 1
-fi
+    START_TIME=$(date +%s)
+    hadoop jar /Q2/ExpensiveRoutesByMonth.jar ExpensiveRoutesByMonth \
+        ${INPUT_CSV} ${STAGE1_OUTPUT} ${NUM_REDUCERS}
+    STAGE1_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE1_DURATION=$((END_TIME - START_TIME))
+
+    if [ $STAGE1_EXIT -ne 0 ]; then
+        echo "ERROR: Stage 1 failed!"
+        exit 1
+    fi
+
+    echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
 
-echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+    # Stage 2: Aggregate and select top K
+    echo "[3/5] Running Stage 2: Top-K Expensive Routes..."
+    echo "  Input: ${STAGE1_OUTPUT}"
+    echo "  Output: ${STAGE2_OUTPUT}"
+    echo "  K: ${TOP_K}"
+
+    START_TIME=$(date +%s)
+    hadoop jar /Q2/TopKExpensiveRoutes.jar TopKExpensiveRoutes \
+        ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${TOP_K}
+    STAGE2_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE2_DURATION=$((END_TIME - START_TIME))
+
+    if [ $STAGE2_EXIT -ne 0 ]; then
+        echo "ERROR: Stage 2 failed!"
+        exit 1
+    fi
+
+    echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+fi
 
 # Display results
 echo "[4/5] Displaying Top ${TOP_K} Most Expensive Routes for ${YEAR}:"
@@ -0,0 +1,172 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+// Binary (type, count, location) sort key of the TopKLocations sort job.
+//
+// Replaces the "TYPE|<1000000000 - count, zero-padded>|location" Text key:
+// the type is one LocationKey type byte, the count a 4-byte int and the
+// location the stage-1 text ("-73.9770,40.7450"), serialized as a Text.
+// Keys sort by type name (DROPOFF before PICKUP, as the Text keys did), then
+// by count descending, then by location text, so ties come out in the same
+// order as before. TypeGroupingComparator groups on the type alone: one
+// reduce() call per type sees that type's rows highest count first.
+// TypePartitioner sends each type to its own reducer (DROPOFF to 0, PICKUP
+// to 1), so the two rankings are sorted and streamed in parallel.
+public class LocationRankKey implements WritableComparable<LocationRankKey> {
+    private static final byte[] PICKUP_NAME = "PICKUP".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DROPOFF_NAME = "DROPOFF".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PICKUP_LABEL = "PICKUP: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DROPOFF_LABEL = "DROPOFF: ".getBytes(StandardCharsets.UTF_8);
+
+    private byte type;
+    private int count;
+    private final Text location = new Text();
+
+    public LocationRankKey() {
+    }
+
+    // Location given as bytes [start, end) of a stage-1 output line
+    public void set(byte type, int count, byte[] bytes, int start, int end) {
+        this.type = type;
+        this.count = count;
+        this.location.set(bytes, start, end - start);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Text getLocation() {
+        return location;
+    }
+
+    // LocationKey.PICKUP or DROPOFF from its name in bytes [start, end), -1
+    // for anything else
+    public static byte typeOf(byte[] bytes, int start, int end) {
+        if (matches(PICKUP_NAME, bytes, start, end)) return LocationKey.PICKUP;
+        if (matches(DROPOFF_NAME, bytes, start, end)) return LocationKey.DROPOFF;
+        return -1;
+    }
+
+    private static boolean matches(byte[] name, byte[] bytes, int start, int end) {
+        return WritableComparator.compareBytes(name, 0, name.length, bytes, start, end - start) == 0;
+    }
+
+    public String getTypeName() {
+        return type == LocationKey.PICKUP ? "PICKUP" : "DROPOFF";
+    }
+
+    // "PICKUP: " or "DROPOFF: ", the prefix of the output labels
+    public byte[] getLabelPrefix() {
+        return type == LocationKey.PICKUP ? PICKUP_LABEL : DROPOFF_LABEL;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeInt(count);
+        location.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        type = in.readByte();
+        count = in.readInt();
+        location.readFields(in);
+    }
+
+    // DROPOFF (2) sorts before PICKUP (1)
+    private static int compareTypes(byte a, byte b) {
+        return Integer.compare(b, a);
+    }
+
+    @Override
+    public int compareTo(LocationRankKey other) {
+        int cmp = compareTypes(type, other.type);
+        if (cmp != 0) return cmp;
+        cmp = Integer.compare(other.count, count);
+        if (cmp != 0) return cmp;
+        return location.compareTo(other.location);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LocationRankKey)) return false;
+        LocationRankKey other = (LocationRankKey) o;
+        return type == other.type && count == other.count && location.equals(other.location);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = type;
+        h = 31 * h + count;
+        return 31 * h + location.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getTypeName() + "|" + count + "|" + location;
+    }
+
+    // Sorts serialized keys without deserializing them
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(LocationRankKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = compareTypes(b1[s1], b2[s2]);
+            if (cmp != 0) return cmp;
+            cmp = Integer.compare(readInt(b2, s2 + 1), readInt(b1, s1 + 1));
+            if (cmp != 0) return cmp;
+            // Location Text: vint length, then the UTF-8 bytes
+            int n1 = WritableUtils.decodeVIntSize(b1[s1 + 5]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2 + 5]);
+            return compareBytes(b1, s1 + 5 + n1, l1 - 5 - n1, b2, s2 + 5 + n2, l2 - 5 - n2);
+        }
+    }
+
+    // Groups keys by type only, for the sort job's reducer
+    public static class TypeGroupingComparator extends WritableComparator {
+        public TypeGroupingComparator() {
+            super(LocationRankKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareTypes(b1[s1], b2[s2]);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            return compareTypes(((LocationRankKey) a).type, ((LocationRankKey) b).type);
+        }
+    }
+
+    // One reducer per type; part-r-00000 then part-r-00001 reads DROPOFF then
+    // PICKUP, the order a single reducer wrote them in
+    public static class TypePartitioner extends Partitioner<LocationRankKey, NullWritable> {
+        @Override
+        public int getPartition(LocationRankKey key, NullWritable value, int numPartitions) {
+            return (key.type == LocationKey.DROPOFF ? 0 : 1) % numPartitions;
+        }
+    }
+
+    static {
+        WritableComparator.define(LocationRankKey.class, new Comparator());
+    }
+}
@@ -2,102 +2,356 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class PopularLocationsByMonth {
 
-    public static class LocationMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
-        private final static IntWritable one = new IntWritable(1);
-        private static final String TARGET_YEAR = "2013";
+    // Row -> location filter shared by LocationMapper and SketchMapper, so
+    // the exact and the approximate job skip the same rows. accept() counts
+    // the reason a row is skipped; parse errors propagate to the mapper,
+    // which counts them as MALFORMED
+    static final class LocationFilter {
+        private final int targetYear;
+        private final SpatialQuantizer cells;
 
-        public void map(LongWritable key, Text value, Context context) 
-                throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] fields = line.split(",");
+        // Month and locations of the last accepted row
+        int month;
+        long pickup;
+        long dropoff;
+
+        LocationFilter(Configuration conf) {
+            targetYear = TargetYear.get(conf);
+            cells = SpatialQuantizer.get(conf, LocationKey.DECIMALS);
+        }
+
+        boolean accept(TripRow row, TaskMetrics metrics) {
+            // Filter for the target year (2013 unless -Dtaxi.target.year)
+            if (row.year() != targetYear) {
+                metrics.skip(TaskMetrics.Skip.OTHER_YEAR);
+                return false;
+            }
             
-            // Skip header
-            if (fields[0].equalsIgnoreCase("key")) return;
+            // Extract month
+            month = row.month();
             
-            if (fields.length < 7) return;
+            // Extract coordinates
+            double plon = row.pickupLongitude();
+            double plat = row.pickupLatitude();
+            double dlon = row.dropoffLongitude();
+            double dlat = row.dropoffLatitude();
+            
+            // Filter invalid coordinates
+            if (plon == 0.0 || plat == 0.0 || dlon == 0.0 || dlat == 0.0) {
+                metrics.skip(TaskMetrics.Skip.ZERO_COORDINATE);
+                return false;
+            }
+            
+            // NYC bounds check
+            if (plon < -75.0 || plon > -72.0 || plat < 39.0 || plat > 42.0 ||
+                dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
+                metrics.skip(TaskMetrics.Skip.OUT_OF_BOUNDS);
+                return false;
+            }
+            
+            // Location cells (rounded to 4 decimals by default, see SpatialQuantizer)
+            pickup = cells.pickup(row);
+            dropoff = cells.dropoff(row);
+            return true;
+        }
+    }
+
+    public static class LocationMapper extends Mapper<Object, Writable, LocationKey, IntWritable> {
+        private final static IntWritable one = new IntWritable(1);
+        private LocationFilter filter;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final LocationKey location = new LocationKey();
+        
+        // In-mapper combining: counts per distinct location, flushed when full
+        private final IntWritable count = new IntWritable();
+        private PackedKeyIntMap counts;
+        private int maxEntries;
+        
+        // Skip reasons and sampled timings (see TaskMetrics)
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            filter = new LocationFilter(conf);
+            if (InMapperCombining.isEnabled(conf)) {
+                counts = InMapperCombining.newCountTable(conf);
+                maxEntries = InMapperCombining.maxEntries(conf);
+            }
+            metrics = TaskMetrics.forMapper(context);
+        }
+
+        @Override
+        public void map(Object key, Writable value, Context context) 
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            // Skip header and short rows
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                // Extract pickup_datetime (field[2])
-                String pickupDatetime = fields[2];
-                
-                // Filter for TARGET_YEAR
-                String year = pickupDatetime.substring(0, 4);
-                if (!year.equals(TARGET_YEAR)) return;
-                
-                // Extract month
-                String month = pickupDatetime.substring(5, 7);
-                
-                // Extract coordinates
-                double plon = Double.parseDouble(fields[3]);
-                double plat = Double.parseDouble(fields[4]);
-                double dlon = Double.parseDouble(fields[5]);
-                double dlat = Double.parseDouble(fields[6]);
-                
-                // Filter invalid coordinates
-                if (plon == 0.0 || plat == 0.0 || dlon == 0.0 || dlat == 0.0) {
+                if (!filter.accept(row, metrics)) {
                     return;
                 }
+                long emitting = metrics.parsed(started);
                 
-                // NYC bounds check
-                if (plon < -75.0 || plon > -72.0 || plat < 39.0 || plat > 42.0 ||
-                    dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
-                    return;
-                }
-                
-                // Format locations with 4 decimal precision
-                String pickupLoc = String.format("%.4f,%.4f", plon, plat);
-                String dropoffLoc = String.format("%.4f,%.4f", dlon, dlat);
-                
-                // Emit pickup location with prefix "PICKUP"
-                Text pickupKey = new Text(month + "__PICKUP__" + pickupLoc);
-                context.write(pickupKey, one);
-                
-                // Emit dropoff location with prefix "DROPOFF"
-                Text dropoffKey = new Text(month + "__DROPOFF__" + dropoffLoc);
-                context.write(dropoffKey, one);
+                // Emit pickup location with type PICKUP and
+                // dropoff location with type DROPOFF
+                emit(filter.month, LocationKey.PICKUP, filter.pickup, context);
+                emit(filter.month, LocationKey.DROPOFF, filter.dropoff, context);
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip malformed lines
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+            }
+            
+            if (counts != null && counts.size() >= maxEntries) {
+                flush(context);
             }
         }
+
+        private void emit(int month, byte type, long point, Context context)
+                throws IOException, InterruptedException {
+            if (counts != null) {
+                counts.add((month << 8) | type, point, 0L, 1);
+            } else {
+                location.set(month, type, point);
+                context.write(location, one);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (counts != null) {
+                flush(context);
+            }
+            metrics.close(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int slot = 0; slot < counts.capacity(); slot++) {
+                if (!counts.isUsed(slot)) continue;
+                int tag = counts.tagAt(slot);
+                location.set(tag >>> 8, (byte) tag, counts.firstAt(slot));
+                count.set(counts.valueAt(slot));
+                context.write(location, count);
+            }
+            counts.clear();
+        }
     }
 
-    public static class MonthPartitioner extends Partitioner<Text, IntWritable> {
+    // Approximate mode (-Dapprox.heavy.hitters=true): one HeavyHitters summary
+    // per month and location type, shipped once from cleanup()
+    public static class SketchMapper extends Mapper<Object, Writable, LocationKey, HeavyHitters> {
+        private LocationFilter filter;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final LocationKey location = new LocationKey();
+        private final HeavyHitters[][] months = new HeavyHitters[13][];
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            filter = new LocationFilter(conf);
+            for (int month = 1; month <= 12; month++) {
+                months[month] = new HeavyHitters[] {null, new HeavyHitters(conf), new HeavyHitters(conf)};
+            }
+            metrics = TaskMetrics.forMapper(context);
+        }
+
         @Override
-        public int getPartition(Text key, IntWritable value, int numPartitions) {
-            // Extract month from key (format: "MM__TYPE__location")
-            String month = key.toString().split("__")[0];
-            int monthNum = Integer.parseInt(month);
-            return (monthNum - 1) % numPartitions;
+        public void map(Object key, Writable value, Context context) {
+            long started = metrics.start();
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
+            
+            try {
+                if (!filter.accept(row, metrics)) {
+                    return;
+                }
+                long emitting = metrics.parsed(started);
+                HeavyHitters[] types = months[filter.month];
+                types[LocationKey.PICKUP].add(filter.pickup, 0L);
+                types[LocationKey.DROPOFF].add(filter.dropoff, 0L);
+                metrics.finished(emitting);
+            } catch (Exception e) {
+                // Ignore parse errors and months outside 1-12
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (int month = 1; month <= 12; month++) {
+                for (byte type = LocationKey.PICKUP; type <= LocationKey.DROPOFF; type++) {
+                    if (months[month][type].getTotal() == 0) continue;
+                    location.set(month, type, 0L);
+                    context.write(location, months[month][type]);
+                }
+            }
+            metrics.close(context);
         }
     }
 
-    public static class LocationReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+    public static class LocationReducer extends Reducer<LocationKey, IntWritable, LocationKey, IntWritable> {
         private IntWritable result = new IntWritable();
+        
+        // Binary yearly copy of each row for PopularLocationsPipeline (see YearlyOutput)
+        private MultipleOutputs<LocationKey, IntWritable> yearly;
+        private final LocationKey yearlyKey = new LocationKey();
+
+        // Binary aggregate state for -Dincremental.state (see IncrementalState)
+        private MultipleOutputs<LocationKey, IntWritable> state;
+        
+        private TaskMetrics metrics;
 
         @Override
-        public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        protected void setup(Context context) {
+            if (YearlyOutput.isEnabled(context.getConfiguration())) {
+                yearly = new MultipleOutputs<LocationKey, IntWritable>(context);
+            }
+            if (IncrementalState.isEnabled(context.getConfiguration())) {
+                state = new MultipleOutputs<LocationKey, IntWritable>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(LocationKey key, Iterable<IntWritable> values, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             int sum = 0;
             for (IntWritable val : values) {
                 sum += val.get();
             }
             result.set(sum);
             context.write(key, result);
+            if (state != null) {
+                state.write(IncrementalState.NAMED_OUTPUT, key, result, IncrementalState.BASE_PATH);
+            }
+            
+            if (yearly != null) {
+                yearlyKey.set(LocationKey.ALL_MONTHS, key.getType(), key.getPoint());
+                yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, result, YearlyOutput.BASE_PATH);
+            }
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (yearly != null) {
+                yearly.close();
+            }
+            if (state != null) {
+                state.close();
+            }
+            metrics.close(context);
+        }
+    }
+
+    // Merges a month's summaries for one location type and writes its
+    // candidate locations with their estimated counts, highest first
+    public static class SketchReducer extends Reducer<LocationKey, HeavyHitters, LocationKey, IntWritable> {
+        private final LocationKey location = new LocationKey();
+        private final IntWritable estimate = new IntWritable();
+        private MultipleOutputs<LocationKey, IntWritable> yearly;
+        private final LocationKey yearlyKey = new LocationKey();
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            if (YearlyOutput.isEnabled(context.getConfiguration())) {
+                yearly = new MultipleOutputs<LocationKey, IntWritable>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(LocationKey key, Iterable<HeavyHitters> summaries, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            HeavyHitters month = new HeavyHitters(context.getConfiguration());
+            for (HeavyHitters summary : summaries) {
+                month.merge(summary);
+            }
+            
+            long maxOvercount = 0;
+            for (int i : month.byEstimate()) {
+                long count = month.estimateAt(i);
+                maxOvercount = Math.max(maxOvercount, count - month.lowerBoundAt(i));
+                location.set(key.getMonth(), key.getType(), month.firstAt(i));
+                estimate.set((int) count);
+                context.write(location, estimate);
+                
+                if (yearly != null) {
+                    yearlyKey.set(LocationKey.ALL_MONTHS, key.getType(), location.getPoint());
+                    yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, estimate, YearlyOutput.BASE_PATH);
+                }
+            }
+            // Every reported count is at most this much above the true count
+            context.getCounter(HeavyHitters.COUNTER_GROUP,
+                    String.format("%02d %s", key.getMonth(), key.getTypeName())).increment(maxOvercount);
+            metrics.finished(started);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (yearly != null) {
+                yearly.close();
+            }
+            metrics.close(context);
         }
     }
 
+    public static Job createJob(Configuration conf, Path input, Path output, int numReducers)
+            throws IOException, InterruptedException {
+        Job job = Job.getInstance(conf, "popular locations by month 2013");
+        job.setJarByClass(PopularLocationsByMonth.class);
+        if (HeavyHitters.isEnabled(conf)) {
+            // Approximate top locations from per-month summaries (see HeavyHitters)
+            job.setMapperClass(SketchMapper.class);
+            job.setReducerClass(SketchReducer.class);
+            job.setMapOutputValueClass(HeavyHitters.class);
+        } else {
+            job.setMapperClass(LocationMapper.class);
+            job.setReducerClass(LocationReducer.class);
+        }
+        job.setNumReduceTasks(numReducers);
+        
+        job.setOutputKeyClass(LocationKey.class);
+        // Same text as TextOutputFormat, without a String per row
+        job.setOutputFormatClass(StageTextOutputFormat.class);
+        job.setOutputValueClass(IntWritable.class);
+        
+        // train.csv minus pruned splits, or the target year's columns of a trip store
+        TripStoreInputFormat.addInput(job, input,
+                TripStore.PICKUP_LONGITUDE, TripStore.PICKUP_LATITUDE,
+                TripStore.DROPOFF_LONGITUDE, TripStore.DROPOFF_LATITUDE);
+        // Each month over its own range of reducers (sampled with -Dpartition.sample.rows)
+        MonthRangePartitioner.configure(job);
+        // Merge a new delta into the saved aggregates with -Dincremental.state
+        IncrementalState.configure(job);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
             System.err.println("Usage: PopularLocationsByMonth <input> <output> [num_reducers]");
@@ -105,21 +359,16 @@ public class PopularLocationsByMonth {
         }
         
         Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf, "popular locations by month 2013");
-        job.setJarByClass(PopularLocationsByMonth.class);
-        job.setMapperClass(LocationMapper.class);
-        job.setReducerClass(LocationReducer.class);
-        job.setPartitionerClass(MonthPartitioner.class);
-        
+        // Picks up -D options such as -Dinmapper.combine=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
         int numReducers = (args.length >= 3) ? Integer.parseInt(args[2]) : 12;
-        job.setNumReduceTasks(numReducers);
-        
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(IntWritable.class);
+        Job job = createJob(conf, new Path(args[0]), new Path(args[1]), numReducers);
         
-        FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
-        
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        IncrementalState.commit(job);
+        TaskMetrics.report(job);
+        System.exit(0);
     }
 }
@@ -3,6 +3,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
@@ -11,144 +12,272 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class TopKLocations {
     
     // Mapper: Extract location type and location, emit type_location -> count
     public static class LocationMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+        // Reused for every line: the scanner reads the input Text in place
+        // and the type__location bytes are copied into one output key
+        private final StageLineScanner line = new StageLineScanner();
+        private final Text compositeKey = new Text();
+        private final IntWritable count = new IntWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context) 
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
+            long started = metrics.start();
             
             // Parse: "03__PICKUP__-73.9770,40.7450    1425"
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String keyParts = parts[0];
-                int count = Integer.parseInt(parts[1]);
+                count.set(line.valueInt());
                 
                 // Extract type and location (remove month prefix)
-                String[] components = keyParts.split("__");
-                if (components.length < 3) return;
-                
-                String type = components[1];      // "PICKUP" or "DROPOFF"
-                String location = components[2];  // "-73.9770,40.7450"
+                int typeStart = line.field(1);      // "PICKUP" or "DROPOFF"
+                int locationStart = line.field(2);  // "-73.9770,40.7450"
+                if (locationStart < 0) {
+                    metrics.skip(TaskMetrics.Skip.MALFORMED);
+                    return;
+                }
                 
                 // Emit type__location -> count
-                Text compositeKey = new Text(type + "__" + location);
-                context.write(compositeKey, new IntWritable(count));
+                line.copy(typeStart, line.fieldEnd(locationStart), compositeKey);
+                long emitting = metrics.parsed(started);
+                context.write(compositeKey, count);
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
     // Reducer: Aggregate counts across all months for each location
     public static class SumReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         private IntWritable result = new IntWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forReducer(context);
+        }
         
         @Override
         public void reduce(Text key, Iterable<IntWritable> counts, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             int sum = 0;
             for (IntWritable count : counts) {
                 sum += count.get();
             }
             result.set(sum);
             context.write(key, result);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
         }
     }
     
-    // Mapper 2: Swap for sorting, keeping type separate
-    public static class SortMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+    // Single-pass reducer: sum each location and keep a top K per type.
+    // Keys are "TYPE__location"; output labels match TopKReducer ("TYPE: location").
+    public static class HeapTopKReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+        private static final byte[] LABEL_SEPARATOR = {':', ' '};
+        private TopKHeap pickups;
+        private TopKHeap dropoffs;
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            int k = context.getConfiguration().getInt("topk.k", 5);
+            pickups = new TopKHeap(k);
+            dropoffs = new TopKHeap(k);
+            metrics = TaskMetrics.forReducer(context);
+        }
+        
+        @Override
+        public void reduce(Text key, Iterable<IntWritable> counts, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            int sum = 0;
+            for (IntWritable count : counts) {
+                sum += count.get();
+            }
+            // "PICKUP__..." vs "DROPOFF__..."
+            if (key.getLength() == 0) return;
+            byte first = key.getBytes()[0];
+            if (first == 'P') {
+                pickups.offer(key, sum);
+            } else if (first == 'D') {
+                dropoffs.offer(key, sum);
+            }
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            emit(dropoffs, context);
+            emit(pickups, context);
+            metrics.close(context);
+        }
+        
+        private void emit(TopKHeap heap, Context context) throws IOException, InterruptedException {
+            Text label = new Text();
+            IntWritable count = new IntWritable();
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                // "TYPE__location" -> "TYPE: location", copied byte for byte
+                Text name = entry.getLabel();
+                int separator = name.find("__");
+                label.set(name.getBytes(), 0, separator);
+                label.append(LABEL_SEPARATOR, 0, LABEL_SEPARATOR.length);
+                label.append(name.getBytes(), separator + 2, name.getLength() - separator - 2);
+                count.set((int) entry.getScore());
+                context.write(label, count);
+            }
+        }
+    }
+    
+    // Mapper 2: Emit (type, count, location) as one binary sort key
+    public static class SortMapper extends Mapper<LongWritable, Text, LocationRankKey, NullWritable> {
+        private final StageLineScanner line = new StageLineScanner();
+        private final LocationRankKey sortKey = new LocationRankKey();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            long started = metrics.start();
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String keyParts = parts[0];
-                int totalCount = Integer.parseInt(parts[1]);
+                int totalCount = line.valueInt();
                 
-                String[] components = keyParts.split("__");
-                if (components.length < 2) return;
+                // "PICKUP__-73.9770,40.7450"
+                int locationStart = line.field(1);
+                if (locationStart < 0) {
+                    metrics.skip(TaskMetrics.Skip.MALFORMED);
+                    return;
+                }
+                byte type = LocationRankKey.typeOf(line.getBytes(), line.keyStart(), locationStart - 2);
+                if (type < 0) {
+                    metrics.skip(TaskMetrics.Skip.MALFORMED);
+                    return;
+                }
                 
-                String type = components[0];      // "PICKUP" or "DROPOFF"
-                String location = components[1];  // "-73.9770,40.7450"
-                
-                // Emit with count as part of key for sorting
-                // Format: "TYPE|-count|location" (negative for descending sort)
-                Text sortKey = new Text(type + "|" + String.format("%010d", 1000000000 - totalCount) + "|" + location);
-                context.write(sortKey, new IntWritable(totalCount));
+                // Sorted by type, then count descending (see LocationRankKey)
+                sortKey.set(type, totalCount, line.getBytes(), locationStart, line.fieldEnd(locationStart));
+                long emitting = metrics.parsed(started);
+                context.write(sortKey, NullWritable.get());
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
-    // Reducer 2: Select top K for each type
-    public static class TopKReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+    // Reducer 2: Select top K for each type. Keys are partitioned and grouped
+    // by type, so each reducer gets one type in a single call and streams its
+    // locations highest count first; the key object holds the current row's
+    // count and location while iterating.
+    public static class TopKReducer extends Reducer<LocationRankKey, NullWritable, Text, IntWritable> {
         private int K = 5;
-        private int pickupCount = 0;
-        private int dropoffCount = 0;
+        private final Text label = new Text();
+        private final IntWritable count = new IntWritable();
+        private TaskMetrics metrics;
         
         @Override
         protected void setup(Context context) {
             K = context.getConfiguration().getInt("topk.k", 5);
+            metrics = TaskMetrics.forReducer(context);
         }
         
         @Override
-        public void reduce(Text key, Iterable<IntWritable> counts, Context context)
+        public void reduce(LocationRankKey key, Iterable<NullWritable> rows, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             
-            String keyStr = key.toString();
-            String[] parts = keyStr.split("\\|");
-            if (parts.length < 3) return;
-            
-            String type = parts[0];
-            String location = parts[2];
-            
-            // Get the actual count
-            int count = 0;
-            for (IntWritable c : counts) {
-                count = c.get();
-                break;
-            }
-            
-            // Check if we should emit based on type and current count
-            if (type.equals("PICKUP")) {
-                if (pickupCount >= K) return;
-                context.write(new Text("PICKUP: " + location), new IntWritable(count));
-                pickupCount++;
-            } else if (type.equals("DROPOFF")) {
-                if (dropoffCount >= K) return;
-                context.write(new Text("DROPOFF: " + location), new IntWritable(count));
-                dropoffCount++;
+            int emitted = 0;
+            for (NullWritable row : rows) {
+                if (emitted >= K) break;
+                // "PICKUP: -73.9770,40.7450", built in the reused label
+                byte[] prefix = key.getLabelPrefix();
+                label.set(prefix, 0, prefix.length);
+                label.append(key.getLocation().getBytes(), 0, key.getLocation().getLength());
+                count.set(key.getCount());
+                context.write(label, count);
+                emitted++;
             }
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
         }
     }
     
-    public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: TopKLocations <input_path> <output_path> [k]");
-            System.exit(1);
-        }
-        
-        Configuration conf = new Configuration();
-        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+    // Runs stage 2 in the mode the options select; also used by LocalRunner
+    public static boolean run(Configuration conf, Path input, Path output, int k) throws Exception {
         conf.setInt("topk.k", k);
         
+        Path tempPath = new Path(output + "_temp");
+        
+        if (conf.getBoolean("topk.single.pass", true)) {
+            // Single job: aggregate across months, keep each reducer's top K,
+            // then merge the few partial rows in the driver
+            Job job = Job.getInstance(conf, "top k locations (single pass)");
+            job.setJarByClass(TopKLocations.class);
+            job.setMapperClass(LocationMapper.class);
+            job.setCombinerClass(SumReducer.class);
+            job.setReducerClass(HeapTopKReducer.class);
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(IntWritable.class);
+            
+            FileInputFormat.addInputPath(job, input);
+            FileOutputFormat.setOutputPath(job, tempPath);
+            
+            if (!job.waitForCompletion(true)) {
+                return false;
+            }
+            TopKMerge.merge(conf, tempPath, output, k);
+            return true;
+        }
+        
         // Job 1: Aggregate counts across all months
         Job job1 = Job.getInstance(conf, "aggregate location counts");
         job1.setJarByClass(TopKLocations.class);
@@ -158,12 +287,11 @@ public class TopKLocations {
         job1.setOutputKeyClass(Text.class);
         job1.setOutputValueClass(IntWritable.class);
         
-        Path tempPath = new Path(args[1] + "_temp");
-        FileInputFormat.addInputPath(job1, new Path(args[0]));
+        FileInputFormat.addInputPath(job1, input);
         FileOutputFormat.setOutputPath(job1, tempPath);
         
         if (!job1.waitForCompletion(true)) {
-            System.exit(1);
+            return false;
         }
         
         // Job 2: Sort and select top K for each type
@@ -171,14 +299,36 @@ public class TopKLocations {
         job2.setJarByClass(TopKLocations.class);
         job2.setMapperClass(SortMapper.class);
         job2.setReducerClass(TopKReducer.class);
-        job2.setNumReduceTasks(1);
+        job2.setPartitionerClass(LocationRankKey.TypePartitioner.class);
+        job2.setGroupingComparatorClass(LocationRankKey.TypeGroupingComparator.class);
+        // PICKUP and DROPOFF rank in parallel, one reducer each
+        job2.setNumReduceTasks(2);
         
+        job2.setMapOutputKeyClass(LocationRankKey.class);
+        job2.setMapOutputValueClass(NullWritable.class);
         job2.setOutputKeyClass(Text.class);
         job2.setOutputValueClass(IntWritable.class);
         
         FileInputFormat.addInputPath(job2, tempPath);
-        FileOutputFormat.setOutputPath(job2, new Path(args[1]));
+        if (TotalOrderSort.isEnabled(conf)) {
+            // Range-partitioned sort over -Dtopk.sort.reducers reducers
+            return TotalOrderSort.run(job2, output, k);
+        }
+        FileOutputFormat.setOutputPath(job2, output);
         
-        System.exit(job2.waitForCompletion(true) ? 0 : 1);
+        return job2.waitForCompletion(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TopKLocations <input_path> <output_path> [k]");
+            System.exit(1);
+        }
+        
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dtopk.single.pass=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+        System.exit(run(conf, new Path(args[0]), new Path(args[1]), k) ? 0 : 1);
     }
 }
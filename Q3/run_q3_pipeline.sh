@@ -3,12 +3,15 @@
 
 # Configuration
 YEAR="2013"
-INPUT_CSV="/user/root/Data/train.csv"
+# train.csv, or the trip store written by Ingest/run_ingest.sh (e.g. /user/root/Data/tripstore)
+INPUT_CSV=${INPUT_CSV:-/user/root/Data/train.csv}
 Q3_DIR="/user/root/Q3"
 STAGE1_OUTPUT="${Q3_DIR}/stage1_monthly_locations"
 STAGE2_OUTPUT="${Q3_DIR}/stage2_top5_locations"
 NUM_REDUCERS=12
 TOP_K=5
+# 1 = run both stages from one submission (PopularLocationsPipeline), 0 = two hadoop jar runs
+FUSED=${FUSED:-1}
 
 echo "======================================"
 echo "Query 3 Pipeline: Popular Locations 2013"
@@ -20,50 +23,76 @@ hdfs dfs -rm -r -f ${STAGE1_OUTPUT}
 hdfs dfs -rm -r -f ${STAGE2_OUTPUT}
 hdfs dfs -rm -r -f ${STAGE2_OUTPUT}_temp
 
-# Stage 1: Count pickup/dropoff locations by month
-echo "[2/5] Running Stage 1: Monthly Location Counts..."
-echo "  Input: ${INPUT_CSV}"
-echo "  Output: ${STAGE1_OUTPUT}"
-echo "  Reducers: ${NUM_REDUCERS}"
-
-START_TIME=$(date +%s)
-hadoop jar /Q3/PopularLocationsByMonth.jar PopularLocationsByMonth \
-    ${INPUT_CSV} ${STAGE1_OUTPUT} ${NUM_REDUCERS}
-STAGE1_EXIT=$?
-END_TIME=$(date +%s)
-STAGE1_DURATION=$((END_TIME - START_TIME))
-
-if [ $STAGE1_EXIT -ne 0 ]; then
-    echo "ERROR: Stage 1 failed!"
-    exit 1
-fi
+if [ "${FUSED}" = "1" ]; then
+    # Stage 1 + Stage 2 in one submission: stage 2 reads stage 1's binary
+    # _yearly output instead of re-parsing the monthly text files
+    echo "[2/5] Running Stages 1+2: Monthly Location Counts + Top-K Locations (fused)..."
+    echo "  Input: ${INPUT_CSV}"
+    echo "  Output: ${STAGE1_OUTPUT}, ${STAGE2_OUTPUT}"
+    echo "  Reducers: ${NUM_REDUCERS}"
+    echo "  K: ${TOP_K}"
+    hdfs dfs -rm -r -f ${STAGE2_OUTPUT}_temp
 
-echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
+    START_TIME=$(date +%s)
+    hadoop jar /Q3/PopularLocationsPipeline.jar PopularLocationsPipeline \
+        ${INPUT_CSV} ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${NUM_REDUCERS} ${TOP_K}
+    PIPELINE_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE1_DURATION=$((END_TIME - START_TIME))
+    STAGE2_DURATION=0
 
-# Stage 2: Aggregate and select top K
-echo "[3/5] Running Stage 2: Top-K Locations..."
-echo "  Input: ${STAGE1_OUTPUT}"
-echo "  Output: ${STAGE2_OUTPUT}"
-echo "  K: ${TOP_K}"
+    if [ $PIPELINE_EXIT -ne 0 ]; then
+        echo "ERROR: Pipeline failed!"
+        exit 1
+    fi
 
-START_TIME=$(date +%s)
-hadoop jar /Q3/TopKLocations.jar TopKLocations \
-    ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${TOP_K}
-STAGE2_EXIT=$?
-END_TIME=$(date +%s)
-STAGE2_DURATION=$((END_TIME - START_TIME))
+    echo "  Stages 1+2 completed in ${STAGE1_DURATION} seconds"
+else
+    # Stage 1: Count pickup/dropoff locations by month
+    echo "[2/5] Running Stage 1: Monthly Location Counts..."
+    echo "  Input: ${INPUT_CSV}"
+    echo "  Output: ${STAGE1_OUTPUT}"
+    echo "  Reducers: ${NUM_REDUCERS}"
 
-if [ $STAGE2_EXIT -ne 0 ]; then
-    echo "ERROR: Stage 2 failed!"
-    exit 1
-fi
+    START_TIME=$(date +%s)
+    hadoop jar /Q3/PopularLocationsByMonth.jar PopularLocationsByMonth \
+        ${INPUT_CSV} ${STAGE1_OUTPUT} ${NUM_REDUCERS}
+    STAGE1_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE1_DURATION=$((END_TIME - START_TIME))
+
+    if [ $STAGE1_EXIT -ne 0 ]; then
+        echo "ERROR: Stage 1 failed!"
+        exit 1
+    fi
+
+    echo "  Stage 1 completed in ${STAGE1_DURATION} seconds"
 
-echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+    # Stage 2: Aggregate and select top K
+    echo "[3/5] Running Stage 2: Top-K Locations..."
+    echo "  Input: ${STAGE1_OUTPUT}"
+    echo "  Output: ${STAGE2_OUTPUT}"
+    echo "  K: ${TOP_K}"
+
+    START_TIME=$(date +%s)
+    hadoop jar /Q3/TopKLocations.jar TopKLocations \
+        ${STAGE1_OUTPUT} ${STAGE2_OUTPUT} ${TOP_K}
+    STAGE2_EXIT=$?
+    END_TIME=$(date +%s)
+    STAGE2_DURATION=$((END_TIME - START_TIME))
+
+    if [ $STAGE2_EXIT -ne 0 ]; then
+        echo "ERROR: Stage 2 failed!"
+        exit 1
+    fi
+
+    echo "  Stage 2 completed in ${STAGE2_DURATION} seconds"
+fi
 
 # Display results
 echo "[4/5] Displaying Top ${TOP_K} Pickup and Dropoff Locations for ${YEAR}:"
 echo "========================================"
-hdfs dfs -cat ${STAGE2_OUTPUT}/part-r-00000
+hdfs dfs -cat ${STAGE2_OUTPUT}/part-r-*
 
 # Show monthly breakdown file sizes
 echo ""
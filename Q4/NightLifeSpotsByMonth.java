@@ -2,126 +2,241 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class NightlifeSpotsByMonth {
 
-    public static class NightlifeMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+    public static class NightlifeMapper extends Mapper<Object, Writable, LocationKey, IntWritable> {
         private final static IntWritable one = new IntWritable(1);
-        private static final String TARGET_YEAR = "2013";
+        private int targetYear;
+        private SpatialQuantizer cells;
+        private final TripCsvScanner scanner = new TripCsvScanner();
+        private final LocationKey location = new LocationKey();
+        
+        // In-mapper combining: counts per distinct spot, flushed when full
+        private final IntWritable count = new IntWritable();
+        private PackedKeyIntMap counts;
+        private int maxEntries;
+        
+        // Skip reasons and sampled timings (see TaskMetrics)
+        private TaskMetrics metrics;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            targetYear = TargetYear.get(conf);
+            cells = SpatialQuantizer.get(conf, LocationKey.DECIMALS);
+            if (InMapperCombining.isEnabled(conf)) {
+                counts = InMapperCombining.newCountTable(conf);
+                maxEntries = InMapperCombining.maxEntries(conf);
+            }
+            metrics = TaskMetrics.forMapper(context);
+        }
 
-        public void map(LongWritable key, Text value, Context context) 
+        public void map(Object key, Writable value, Context context) 
                 throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] fields = line.split(",");
-            
-            // Skip header
-            if (fields[0].equalsIgnoreCase("key")) return;
-            
-            if (fields.length < 7) return;
+            long started = metrics.start();
+            // Skip header and short rows
+            TripRow row = TripRow.of(value, scanner);
+            if (row == null) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                // Extract pickup_datetime (field[2])
-                String pickupDatetime = fields[2];
-                
-                // Filter for TARGET_YEAR
-                String year = pickupDatetime.substring(0, 4);
-                if (!year.equals(TARGET_YEAR)) return;
+                // Filter for the target year (2013 unless -Dtaxi.target.year)
+                if (row.year() != targetYear) {
+                    metrics.skip(TaskMetrics.Skip.OTHER_YEAR);
+                    return;
+                }
                 
                 // Extract month
-                String month = pickupDatetime.substring(5, 7);
+                int month = row.month();
                 
                 // Extract hour from datetime (format: "YYYY-MM-DD HH:MM:SS UTC")
                 // Hour is at position 11-12
-                String hourStr = pickupDatetime.substring(11, 13);
-                int hour = Integer.parseInt(hourStr);
+                int hour = row.hour();
                 
                 // Filter for nightlife hours: 20:00-23:59 (20-23) OR 00:00-02:59 (0-2)
                 if (!((hour >= 20 && hour <= 23) || (hour >= 0 && hour <= 2))) {
+                    metrics.skip(TaskMetrics.Skip.OUTSIDE_HOURS);
                     return;
                 }
                 
                 // Extract dropoff coordinates
-                double dlon = Double.parseDouble(fields[5]);
-                double dlat = Double.parseDouble(fields[6]);
+                double dlon = row.dropoffLongitude();
+                double dlat = row.dropoffLatitude();
                 
                 // Filter invalid coordinates
                 if (dlon == 0.0 || dlat == 0.0) {
+                    metrics.skip(TaskMetrics.Skip.ZERO_COORDINATE);
                     return;
                 }
                 
                 // NYC bounds check
                 if (dlon < -75.0 || dlon > -72.0 || dlat < 39.0 || dlat > 42.0) {
+                    metrics.skip(TaskMetrics.Skip.OUT_OF_BOUNDS);
                     return;
                 }
                 
-                // Format dropoff location with 4 decimal precision
-                String dropoffLoc = String.format("%.4f,%.4f", dlon, dlat);
+                // Dropoff cell (rounded to 4 decimals by default), keyed by month
+                long dropoff = cells.dropoff(row);
+                long emitting = metrics.parsed(started);
                 
-                // Emit with month prefix
-                Text compositeKey = new Text(month + "__" + dropoffLoc);
-                context.write(compositeKey, one);
+                if (counts != null) {
+                    counts.add(month, dropoff, 0L, 1);
+                } else {
+                    location.set(month, LocationKey.NONE, dropoff);
+                    context.write(location, one);
+                }
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip malformed lines
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
+            }
+            
+            if (counts != null && counts.size() >= maxEntries) {
+                flush(context);
             }
         }
-    }
 
-    public static class MonthPartitioner extends Partitioner<Text, IntWritable> {
         @Override
-        public int getPartition(Text key, IntWritable value, int numPartitions) {
-            // Extract month from key (format: "MM__location")
-            String month = key.toString().split("__")[0];
-            int monthNum = Integer.parseInt(month);
-            return (monthNum - 1) % numPartitions;
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (counts != null) {
+                flush(context);
+            }
+            metrics.close(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int slot = 0; slot < counts.capacity(); slot++) {
+                if (!counts.isUsed(slot)) continue;
+                location.set(counts.tagAt(slot), LocationKey.NONE, counts.firstAt(slot));
+                count.set(counts.valueAt(slot));
+                context.write(location, count);
+            }
+            counts.clear();
         }
     }
 
-    public static class LocationReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+    public static class LocationReducer extends Reducer<LocationKey, IntWritable, LocationKey, IntWritable> {
         private IntWritable result = new IntWritable();
+        
+        // Binary yearly copy of each row for NightlifeSpotsPipeline (see YearlyOutput)
+        private MultipleOutputs<LocationKey, IntWritable> yearly;
+        private final LocationKey yearlyKey = new LocationKey();
+
+        // Binary aggregate state for -Dincremental.state (see IncrementalState)
+        private MultipleOutputs<LocationKey, IntWritable> state;
+
+        // Per-month top K for -Dmonthly.topk (see MonthlyTopK)
+        private MonthlyTopK monthlyTop;
+        
+        private TaskMetrics metrics;
 
         @Override
-        public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        protected void setup(Context context) {
+            if (MonthlyTopK.isEnabled(context.getConfiguration())) {
+                monthlyTop = new MonthlyTopK(context);
+            }
+            if (YearlyOutput.isEnabled(context.getConfiguration())) {
+                yearly = new MultipleOutputs<LocationKey, IntWritable>(context);
+            }
+            if (IncrementalState.isEnabled(context.getConfiguration())) {
+                state = new MultipleOutputs<LocationKey, IntWritable>(context);
+            }
+            metrics = TaskMetrics.forReducer(context);
+        }
+
+        @Override
+        public void reduce(LocationKey key, Iterable<IntWritable> values, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             int sum = 0;
             for (IntWritable val : values) {
                 sum += val.get();
             }
             result.set(sum);
             context.write(key, result);
+            if (state != null) {
+                state.write(IncrementalState.NAMED_OUTPUT, key, result, IncrementalState.BASE_PATH);
+            }
+            if (monthlyTop != null) {
+                monthlyTop.offer(key.getMonth(), key, sum);
+            }
+            
+            if (yearly != null) {
+                yearlyKey.set(LocationKey.ALL_MONTHS, key.getType(), key.getPoint());
+                yearly.write(YearlyOutput.NAMED_OUTPUT, yearlyKey, result, YearlyOutput.BASE_PATH);
+            }
+            metrics.finished(started);
         }
-    }
 
-    public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: NightlifeSpotsByMonth <input> <output> [num_reducers]");
-            System.exit(1);
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (monthlyTop != null) {
+                monthlyTop.close();
+            }
+            if (yearly != null) {
+                yearly.close();
+            }
+            if (state != null) {
+                state.close();
+            }
+            metrics.close(context);
         }
-        
-        Configuration conf = new Configuration();
+    }
+
+    public static Job createJob(Configuration conf, Path input, Path output, int numReducers)
+            throws IOException, InterruptedException {
         Job job = Job.getInstance(conf, "nightlife spots by month 2013");
         job.setJarByClass(NightlifeSpotsByMonth.class);
         job.setMapperClass(NightlifeMapper.class);
         job.setReducerClass(LocationReducer.class);
-        job.setPartitionerClass(MonthPartitioner.class);
-        
-        int numReducers = (args.length >= 3) ? Integer.parseInt(args[2]) : 12;
         job.setNumReduceTasks(numReducers);
         
-        job.setOutputKeyClass(Text.class);
+        job.setOutputKeyClass(LocationKey.class);
+        // Same text as TextOutputFormat, without a String per row
+        job.setOutputFormatClass(StageTextOutputFormat.class);
         job.setOutputValueClass(IntWritable.class);
         
-        FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        // train.csv minus pruned splits, or the target year's columns of a trip store
+        TripStoreInputFormat.addInput(job, input,
+                TripStore.PICKUP_TIME, TripStore.DROPOFF_LONGITUDE, TripStore.DROPOFF_LATITUDE);
+        // Each month over its own range of reducers (sampled with -Dpartition.sample.rows)
+        MonthRangePartitioner.configure(job);
+        MonthlyTopK.configure(job);
+        // Merge a new delta into the saved aggregates with -Dincremental.state
+        IncrementalState.configure(job);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: NightlifeSpotsByMonth <input> <output> [num_reducers]");
+            System.exit(1);
+        }
         
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dinmapper.combine=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int numReducers = (args.length >= 3) ? Integer.parseInt(args[2]) : 12;
+        Job job = createJob(conf, new Path(args[0]), new Path(args[1]), numReducers);
+        
+        if (!job.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        MonthlyTopK.finish(job);
+        IncrementalState.commit(job);
+        TaskMetrics.report(job);
+        System.exit(0);
     }
 }
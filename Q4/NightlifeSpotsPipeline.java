@@ -0,0 +1,106 @@
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+// Runs both stages of Query 4 from a single submission.
+//
+// Stage 1 is the NightlifeSpotsByMonth job (monthly files as before); its
+// reducers also write a binary yearly copy of every row (see YearlyOutput),
+// which stage 2 reads as LocationKey records. This replaces two `hadoop jar`
+// launches and the text re-parsing in TopKNightlifeSpots.
+public class NightlifeSpotsPipeline {
+    
+    // Stage 2 reducer: total per spot across months, keeping this reducer's top K
+    public static class YearlyTopKReducer extends Reducer<LocationKey, IntWritable, Text, IntWritable> {
+        private TopKHeap heap;
+        private final Text label = new Text();
+        private final StringBuilder sb = new StringBuilder();
+        
+        @Override
+        protected void setup(Context context) {
+            heap = new TopKHeap(context.getConfiguration().getInt("topk.k", 5));
+        }
+        
+        @Override
+        public void reduce(LocationKey key, Iterable<IntWritable> counts, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable count : counts) {
+                sum += count.get();
+            }
+            // Only render the label for keys that can enter the heap
+            if (heap.accepts(sum)) {
+                sb.setLength(0);
+                label.set(key.appendLocation(sb).toString());
+                heap.offer(label, sum);
+            }
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            IntWritable count = new IntWritable();
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                count.set((int) entry.getScore());
+                context.write(entry.getLabel(), count);
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: NightlifeSpotsPipeline <input> <stage1_output> <stage2_output> [num_reducers] [k]");
+            System.exit(1);
+        }
+        
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int numReducers = (args.length >= 4) ? Integer.parseInt(args[3]) : 12;
+        int k = (args.length >= 5) ? Integer.parseInt(args[4]) : 5;
+        conf.setInt("topk.k", k);
+        
+        Path stage1Output = new Path(args[1]);
+        Path stage2Output = new Path(args[2]);
+        Path tempPath = new Path(args[2] + "_temp");
+        
+        // Stage 1: monthly nightlife dropoff counts, plus the binary yearly hand-off
+        Job job1 = NightlifeSpotsByMonth.createJob(conf, new Path(args[0]), stage1Output, numReducers);
+        YearlyOutput.enable(job1, LocationKey.class, IntWritable.class);
+        if (!job1.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        MonthlyTopK.finish(job1);
+        IncrementalState.commit(job1);
+        TaskMetrics.report(job1);
+        
+        // Stage 2: total counts and top K spots from the binary rows
+        Job job2 = Job.getInstance(conf, "top k nightlife spots (pipeline)");
+        job2.setJarByClass(NightlifeSpotsPipeline.class);
+        job2.setInputFormatClass(SequenceFileInputFormat.class);
+        job2.setMapperClass(Mapper.class);
+        job2.setCombinerClass(NightlifeSpotsByMonth.LocationReducer.class);
+        job2.setReducerClass(YearlyTopKReducer.class);
+        
+        job2.setMapOutputKeyClass(LocationKey.class);
+        job2.setMapOutputValueClass(IntWritable.class);
+        job2.setOutputKeyClass(Text.class);
+        job2.setOutputValueClass(IntWritable.class);
+        
+        FileInputFormat.addInputPath(job2, YearlyOutput.input(stage1Output));
+        FileOutputFormat.setOutputPath(job2, tempPath);
+        
+        if (!job2.waitForCompletion(true)) {
+            System.exit(1);
+        }
+        TopKMerge.merge(conf, tempPath, stage2Output, k);
+        System.exit(0);
+    }
+}
@@ -11,86 +11,180 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class TopKNightlifeSpots {
     
     // Mapper: Extract location (without month) and emit location -> count
     public static class LocationMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+        // Reused for every line: the scanner reads the input Text in place
+        // and the location bytes are copied into one output key
+        private final StageLineScanner line = new StageLineScanner();
+        private final Text location = new Text();
+        private final IntWritable count = new IntWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context) 
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
+            long started = metrics.start();
             
             // Parse: "03__-73.9770,40.7450    1425"
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String keyPart = parts[0];
-                int count = Integer.parseInt(parts[1]);
+                count.set(line.valueInt());
                 
                 // Extract location (remove month prefix)
-                String[] components = keyPart.split("__");
-                if (components.length < 2) return;
-                String location = components[1];
+                int locationStart = line.field(1);
+                if (locationStart < 0) {
+                    metrics.skip(TaskMetrics.Skip.MALFORMED);
+                    return;
+                }
+                line.copy(locationStart, line.fieldEnd(locationStart), location);
                 
                 // Emit location -> count
-                context.write(new Text(location), new IntWritable(count));
+                long emitting = metrics.parsed(started);
+                context.write(location, count);
+                metrics.finished(emitting);
                 
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
     // Reducer: Aggregate counts across all months for each location
     public static class SumReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         private IntWritable result = new IntWritable();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forReducer(context);
+        }
         
         @Override
         public void reduce(Text location, Iterable<IntWritable> counts, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             int sum = 0;
             for (IntWritable count : counts) {
                 sum += count.get();
             }
             result.set(sum);
             context.write(location, result);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
+    }
+    
+    // Single-pass reducer: sum each spot and keep only this reducer's top K
+    public static class HeapTopKReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+        private TopKHeap heap;
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            heap = new TopKHeap(context.getConfiguration().getInt("topk.k", 5));
+            metrics = TaskMetrics.forReducer(context);
+        }
+        
+        @Override
+        public void reduce(Text location, Iterable<IntWritable> counts, Context context)
+                throws IOException, InterruptedException {
+            long started = metrics.start();
+            int sum = 0;
+            for (IntWritable count : counts) {
+                sum += count.get();
+            }
+            heap.offer(location, sum);
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            IntWritable count = new IntWritable();
+            for (TopKHeap.Entry entry : heap.toSortedList()) {
+                count.set((int) entry.getScore());
+                context.write(entry.getLabel(), count);
+            }
+            metrics.close(context);
         }
     }
     
     // Mapper 2: Swap location and count for sorting
     public static class SortMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
+        private final StageLineScanner line = new StageLineScanner();
+        private final IntWritable totalCount = new IntWritable();
+        private final Text location = new Text();
+        private TaskMetrics metrics;
+        
+        @Override
+        protected void setup(Context context) {
+            metrics = TaskMetrics.forMapper(context);
+        }
         
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) return;
+            long started = metrics.start();
+            if (!line.scan(value)) {
+                metrics.skip(TaskMetrics.Skip.SHORT_ROW);
+                return;
+            }
             
             try {
-                String location = parts[0];
-                int totalCount = Integer.parseInt(parts[1]);
+                totalCount.set(line.valueInt());
+                line.copy(line.keyStart(), line.keyEnd(), location);
                 
                 // Emit count -> location (for sorting by count)
-                context.write(new IntWritable(totalCount), new Text(location));
+                long emitting = metrics.parsed(started);
+                context.write(totalCount, location);
+                metrics.finished(emitting);
             } catch (Exception e) {
                 // Skip
+                metrics.skip(TaskMetrics.Skip.MALFORMED);
             }
         }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
+        }
     }
     
-    // Comparator: Sort counts in DESCENDING order
+    // Comparator: Sort counts in DESCENDING order, straight on the serialized
+    // 4-byte ints so the shuffle sort never deserializes a key
     public static class DescendingIntComparator extends WritableComparator {
         protected DescendingIntComparator() {
-            super(IntWritable.class, true);
+            super(IntWritable.class);
         }
         
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Integer.compare(readInt(b2, s2), readInt(b1, s1));
+        }
+        
+        // Deserialized keys, e.g. TotalOrderSort's sampled split points
         @Override
         public int compare(WritableComparable a, WritableComparable b) {
             return -1 * a.compareTo(b);
@@ -101,34 +195,60 @@ public class TopKNightlifeSpots {
     public static class TopKReducer extends Reducer<IntWritable, Text, Text, IntWritable> {
         private int K = 5;
         private int count = 0;
+        private TaskMetrics metrics;
         
         @Override
         protected void setup(Context context) {
             K = context.getConfiguration().getInt("topk.k", 5);
+            metrics = TaskMetrics.forReducer(context);
         }
         
         @Override
         public void reduce(IntWritable totalCount, Iterable<Text> locations, Context context)
                 throws IOException, InterruptedException {
+            long started = metrics.start();
             
             for (Text location : locations) {
-                if (this.count >= K) return;
+                if (this.count >= K) break;
                 context.write(location, totalCount);
                 this.count++;
             }
+            metrics.finished(started);
+        }
+        
+        @Override
+        protected void cleanup(Context context) {
+            metrics.close(context);
         }
     }
     
-    public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: TopKNightlifeSpots <input_path> <output_path> [k]");
-            System.exit(1);
-        }
-        
-        Configuration conf = new Configuration();
-        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+    // Runs stage 2 in the mode the options select; also used by LocalRunner
+    public static boolean run(Configuration conf, Path input, Path output, int k) throws Exception {
         conf.setInt("topk.k", k);
         
+        Path tempPath = new Path(output + "_temp");
+        
+        if (conf.getBoolean("topk.single.pass", true)) {
+            // Single job: aggregate across months, keep each reducer's top K,
+            // then merge the few partial rows in the driver
+            Job job = Job.getInstance(conf, "top k nightlife spots (single pass)");
+            job.setJarByClass(TopKNightlifeSpots.class);
+            job.setMapperClass(LocationMapper.class);
+            job.setCombinerClass(SumReducer.class);
+            job.setReducerClass(HeapTopKReducer.class);
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(IntWritable.class);
+            
+            FileInputFormat.addInputPath(job, input);
+            FileOutputFormat.setOutputPath(job, tempPath);
+            
+            if (!job.waitForCompletion(true)) {
+                return false;
+            }
+            TopKMerge.merge(conf, tempPath, output, k);
+            return true;
+        }
+        
         // Job 1: Aggregate counts across all months
         Job job1 = Job.getInstance(conf, "aggregate nightlife spot counts");
         job1.setJarByClass(TopKNightlifeSpots.class);
@@ -138,12 +258,11 @@ public class TopKNightlifeSpots {
         job1.setOutputKeyClass(Text.class);
         job1.setOutputValueClass(IntWritable.class);
         
-        Path tempPath = new Path(args[1] + "_temp");
-        FileInputFormat.addInputPath(job1, new Path(args[0]));
+        FileInputFormat.addInputPath(job1, input);
         FileOutputFormat.setOutputPath(job1, tempPath);
         
         if (!job1.waitForCompletion(true)) {
-            System.exit(1);
+            return false;
         }
         
         // Job 2: Sort by count and select top K
@@ -160,8 +279,25 @@ public class TopKNightlifeSpots {
         job2.setOutputValueClass(IntWritable.class);
         
         FileInputFormat.addInputPath(job2, tempPath);
-        FileOutputFormat.setOutputPath(job2, new Path(args[1]));
+        if (TotalOrderSort.isEnabled(conf)) {
+            // Range-partitioned sort over -Dtopk.sort.reducers reducers
+            return TotalOrderSort.run(job2, output, k);
+        }
+        FileOutputFormat.setOutputPath(job2, output);
+        
+        return job2.waitForCompletion(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TopKNightlifeSpots <input_path> <output_path> [k]");
+            System.exit(1);
+        }
         
-        System.exit(job2.waitForCompletion(true) ? 0 : 1);
+        Configuration conf = new Configuration();
+        // Picks up -D options such as -Dtopk.single.pass=false
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        int k = (args.length >= 3) ? Integer.parseInt(args[2]) : 5;
+        System.exit(run(conf, new Path(args[0]), new Path(args[1]), k) ? 0 : 1);
     }
 }
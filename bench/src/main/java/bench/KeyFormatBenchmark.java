@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Rendering stage-1 keys as text ("03__-73.97700,40.74500,..."), which every
+// stage-1 output row and every top-K label goes through: RouteKey and
+// LocationKey toString() per key.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(KeyFormatBenchmark.KEYS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyFormatBenchmark {
+    static final int KEYS = 4096;
+
+    @Param({"PopularRoutesByMonth$RouteMapper", "PopularLocationsByMonth$LocationMapper"})
+    public String mapper;
+
+    private Object[] keys;
+
+    @Setup
+    public void setup() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean("inmapper.combine", false);
+        keys = PartitionerBenchmark.mapOutputKeys(conf, mapper, KEYS);
+    }
+
+    @Benchmark
+    public int toText() {
+        int length = 0;
+        for (Object key : keys) {
+            length += key.toString().length();
+        }
+        return length;
+    }
+}
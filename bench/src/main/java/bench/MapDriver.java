@@ -0,0 +1,168 @@
+package bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+// Runs a stage-1 mapper over in-memory rows, the way MapOutputSample runs it
+// in the driver: the real Mapper.run() (setup, map per row, cleanup) on a
+// MapContextImpl, with the rows coming from a reader over an array and the
+// map output going to a sink instead of the sort buffer.
+//
+// The query classes are in the default package, which a package cannot
+// import, so mappers are named like in a job configuration
+// ("PopularRoutesByMonth$RouteMapper") and loaded through the Configuration.
+public final class MapDriver {
+    private final Mapper<Object, Writable, Object, Object> mapper;
+    private final ArrayReader reader;
+    private final Sink sink;
+    private final Mapper<Object, Writable, Object, Object>.Context context;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MapDriver(Configuration conf, String mapperClass, Writable[] values) throws IOException {
+        try {
+            mapper = (Mapper) ReflectionUtils.newInstance(conf.getClassByName(mapperClass), conf);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot load mapper " + mapperClass, e);
+        }
+        reader = new ArrayReader(values);
+        sink = new Sink(conf);
+        TaskAttemptID id = new TaskAttemptID("bench", 0, TaskType.MAP, 0, 0);
+        MapContext mapContext = new MapContextImpl(conf, id, reader, sink, null,
+                new TaskAttemptContextImpl.DummyReporter(), null);
+        context = new WrappedMapper().getMapContext(mapContext);
+    }
+
+    // One full map task over all rows; returns the number of map output records
+    public long run() throws IOException, InterruptedException {
+        reader.reset();
+        sink.records = 0;
+        mapper.run(context);
+        return sink.records;
+    }
+
+    // Copies of every map output (key, value) pair of one run()
+    public List<Object[]> output() throws IOException, InterruptedException {
+        sink.copies = new ArrayList<Object[]>();
+        try {
+            run();
+            return sink.copies;
+        } finally {
+            sink.copies = null;
+        }
+    }
+
+    // train.csv lines as the mappers receive them: Text from LineRecordReader,
+    // or (mmap) CsvLine slices from MappedCsvInputFormat
+    public static Writable[] values(Configuration conf, byte[][] rows, boolean mmap) throws IOException {
+        Writable[] values = new Writable[rows.length];
+        DataOutputBuffer out = new DataOutputBuffer();
+        DataInputBuffer in = new DataInputBuffer();
+        for (int i = 0; i < rows.length; i++) {
+            if (!mmap) {
+                values[i] = new Text(rows[i]);
+                continue;
+            }
+            // CsvLine.readFields() takes a vint length and the bytes
+            out.reset();
+            WritableUtils.writeVInt(out, rows[i].length);
+            out.write(rows[i]);
+            in.reset(out.getData(), out.getLength());
+            try {
+                values[i] = (Writable) ReflectionUtils.newInstance(conf.getClassByName("CsvLine"), conf);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            values[i].readFields(in);
+        }
+        return values;
+    }
+
+    private static class ArrayReader extends RecordReader<Object, Writable> {
+        private final Writable[] values;
+        private final LongWritable offset = new LongWritable();
+        private int next;
+
+        ArrayReader(Writable[] values) {
+            this.values = values;
+        }
+
+        void reset() {
+            next = 0;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            if (next == values.length) return false;
+            offset.set(next++);
+            return true;
+        }
+
+        @Override
+        public Object getCurrentKey() {
+            return offset;
+        }
+
+        @Override
+        public Writable getCurrentValue() {
+            return values[next - 1];
+        }
+
+        @Override
+        public float getProgress() {
+            return next / (float) values.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Counts map output records; copies them while output() is collecting
+    private static class Sink extends RecordWriter<Object, Object> {
+        private final Configuration conf;
+        long records;
+        List<Object[]> copies;
+
+        Sink(Configuration conf) {
+            this.conf = conf;
+        }
+
+        @Override
+        public void write(Object key, Object value) {
+            records++;
+            if (copies != null) {
+                copies.add(new Object[] {
+                    WritableUtils.clone((Writable) key, conf), WritableUtils.clone((Writable) value, conf)
+                });
+            }
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+}
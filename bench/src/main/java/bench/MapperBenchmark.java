@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Stage-1 map cost per train.csv row: Q1 RouteMapper and Q3 LocationMapper,
+// with and without in-mapper combining, on Text lines or memory-mapped
+// CsvLine slices. One invocation is a whole map task over ROWS rows
+// (setup, map, cleanup/flush), so the time and allocation are per row.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(MapperBenchmark.ROWS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+    static final int ROWS = 20000;
+
+    @Param({"PopularRoutesByMonth$RouteMapper", "PopularLocationsByMonth$LocationMapper"})
+    public String mapper;
+
+    // inmapper.combine
+    @Param({"true", "false"})
+    public boolean combine;
+
+    @Param({"text", "mmap"})
+    public String input;
+
+    private MapDriver driver;
+
+    @Setup
+    public void setup() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean("inmapper.combine", combine);
+        driver = new MapDriver(conf, mapper,
+                MapDriver.values(conf, SyntheticTrips.rows(ROWS), "mmap".equals(input)));
+    }
+
+    @Benchmark
+    public long map() throws Exception {
+        return driver.run();
+    }
+}
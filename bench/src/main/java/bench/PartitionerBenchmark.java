@@ -0,0 +1,74 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// MonthRangePartitioner.getPartition() per map output record, on the keys
+// RouteMapper/LocationMapper emit for the synthetic rows. Below 12 reducers
+// a month maps straight to a reducer; from 12 up the key is hashed within
+// its month's range.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PartitionerBenchmark.KEYS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionerBenchmark {
+    static final int KEYS = 4096;
+
+    @Param({"PopularRoutesByMonth$RouteMapper", "PopularLocationsByMonth$LocationMapper"})
+    public String mapper;
+
+    @Param({"8", "12", "48"})
+    public int reducers;
+
+    private Partitioner<Object, Object> partitioner;
+    private Object[] keys;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean("inmapper.combine", false);
+        keys = mapOutputKeys(conf, mapper, KEYS);
+        partitioner = (Partitioner<Object, Object>) ReflectionUtils.newInstance(
+                conf.getClassByName("MonthRangePartitioner"), conf);
+    }
+
+    @Benchmark
+    public int getPartition() {
+        int sum = 0;
+        for (Object key : keys) {
+            sum += partitioner.getPartition(key, null, reducers);
+        }
+        return sum;
+    }
+
+    // The first `count` map output keys of `mapper` (repeating them if it
+    // emits fewer), one record per row
+    static Object[] mapOutputKeys(Configuration conf, String mapper, int count) throws Exception {
+        List<Object[]> emitted = new MapDriver(conf, mapper,
+                MapDriver.values(conf, SyntheticTrips.rows(count * 8), false)).output();
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = emitted.get(i % emitted.size())[0];
+        }
+        return keys;
+    }
+}
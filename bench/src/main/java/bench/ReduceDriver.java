@@ -0,0 +1,148 @@
+package bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+// Runs a reducer over in-memory records the way a reduce task runs it after
+// the shuffle: the real Reducer.run() on a ReduceContextImpl, so value
+// deserialization and key grouping are included, with the records coming
+// from serialized copies (added in sort order) and the output going to any
+// RecordWriter. Reducers are named like mappers in MapDriver.
+public final class ReduceDriver {
+    private final Configuration conf;
+    private final Class<?> reducerClass;
+    private final RawComparator<?> comparator;
+    private final Class<?> keyClass;
+    private final Class<?> valueClass;
+    private final SerializedRecords records = new SerializedRecords();
+
+    public ReduceDriver(Configuration conf, String reducerClass, RawComparator<?> comparator,
+            Class<?> keyClass, Class<?> valueClass) throws IOException {
+        this.conf = conf;
+        try {
+            this.reducerClass = conf.getClassByName(reducerClass);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot load reducer " + reducerClass, e);
+        }
+        this.comparator = comparator;
+        this.keyClass = keyClass;
+        this.valueClass = valueClass;
+    }
+
+    // Records must be added sorted by the comparator, as the shuffle merges them
+    public void add(Writable key, Writable value) throws IOException {
+        records.add(key, value);
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    // One reduce task over all records; a fresh reducer and context per task
+    // like the framework (TopKReducer never resets its row count), so the
+    // reducer's setup() and cleanup() are part of the run
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void run(RecordWriter<?, ?> output) throws IOException, InterruptedException {
+        records.reset();
+        ReduceContext context = new ReduceContextImpl(conf, new TaskAttemptID("bench", 0, TaskType.REDUCE, 0, 0),
+                records, new GenericCounter(), new GenericCounter(), (RecordWriter) output, null,
+                new TaskAttemptContextImpl.DummyReporter(), (RawComparator) comparator, keyClass, valueClass);
+        Reducer task = (Reducer) ReflectionUtils.newInstance(reducerClass, conf);
+        task.run(new WrappedReducer().getReducerContext(context));
+    }
+
+    // Sink counting the reducer's output records
+    public static class Discard extends RecordWriter<Object, Object> {
+        public long records;
+
+        @Override
+        public void write(Object key, Object value) {
+            records++;
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    // Sorted, serialized (key, value) records as the shuffle hands them over
+    private static class SerializedRecords implements RawKeyValueIterator {
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        private final List<byte[]> values = new ArrayList<byte[]>();
+        private final DataOutputBuffer out = new DataOutputBuffer();
+        private final DataInputBuffer key = new DataInputBuffer();
+        private final DataInputBuffer value = new DataInputBuffer();
+        private final Progress progress = new Progress();
+        private int next;
+
+        void add(Writable key, Writable value) throws IOException {
+            keys.add(serialize(key));
+            values.add(serialize(value));
+        }
+
+        private byte[] serialize(Writable writable) throws IOException {
+            out.reset();
+            writable.write(out);
+            byte[] bytes = new byte[out.getLength()];
+            System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        int size() {
+            return keys.size();
+        }
+
+        void reset() {
+            next = 0;
+        }
+
+        @Override
+        public DataInputBuffer getKey() {
+            return key;
+        }
+
+        @Override
+        public DataInputBuffer getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean next() {
+            if (next == keys.size()) return false;
+            byte[] k = keys.get(next);
+            byte[] v = values.get(next);
+            key.reset(k, k.length);
+            value.reset(v, v.length);
+            next++;
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Progress getProgress() {
+            return progress;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+// Deterministic train.csv-shaped rows for the benchmarks.
+//
+// Rows cover 2009-2015 like the real file, so about one in seven passes the
+// 2013 filter. Pickups and dropoffs are drawn from a few hundred NYC hot
+// spots with a skewed popularity (a handful of spots take most trips) plus up
+// to ~50 m of jitter, so rounded routes and locations repeat the way they do
+// in the real data. About 2% of rows carry a 0.0 coordinate and are dropped
+// by the mappers, again like the real file.
+public final class SyntheticTrips {
+    private static final int HOT_SPOTS = 400;
+    private static final long SEED = 6847L;
+
+    private SyntheticTrips() {
+    }
+
+    // `rows` lines without line terminators, always the same for a given count
+    public static byte[][] rows(int rows) {
+        Random random = new Random(SEED);
+        double[][] spots = new double[HOT_SPOTS][2];
+        for (double[] spot : spots) {
+            // Manhattan-to-airports box
+            spot[0] = -74.02 + random.nextDouble() * 0.25;
+            spot[1] = 40.63 + random.nextDouble() * 0.18;
+        }
+
+        byte[][] lines = new byte[rows][];
+        StringBuilder sb = new StringBuilder(128);
+        for (int i = 0; i < rows; i++) {
+            int year = 2009 + random.nextInt(7);
+            int month = 1 + random.nextInt(12);
+            int day = 1 + random.nextInt(28);
+            int hour = random.nextInt(24);
+            int minute = random.nextInt(60);
+            int second = random.nextInt(60);
+            String time = String.format(Locale.ROOT, "%d-%02d-%02d %02d:%02d:%02d",
+                    year, month, day, hour, minute, second);
+            double fare = 2.5 + Math.round(random.nextDouble() * random.nextDouble() * 600) / 10.0;
+            double[] pickup = spots[skewed(random)];
+            double[] dropoff = spots[skewed(random)];
+            boolean invalid = random.nextInt(50) == 0;
+
+            sb.setLength(0);
+            sb.append(time).append(".000000").append(1 + random.nextInt(9)).append(',')
+                    .append(fare).append(',')
+                    .append(time).append(" UTC,");
+            appendCoordinate(sb, invalid ? 0.0 : jitter(random, pickup[0])).append(',');
+            appendCoordinate(sb, jitter(random, pickup[1])).append(',');
+            appendCoordinate(sb, jitter(random, dropoff[0])).append(',');
+            appendCoordinate(sb, jitter(random, dropoff[1])).append(',');
+            sb.append(1 + random.nextInt(6));
+            lines[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return lines;
+    }
+
+    // Hot spot index; squaring a uniform draw puts most trips on low indices
+    private static int skewed(Random random) {
+        double u = random.nextDouble();
+        return (int) (u * u * HOT_SPOTS);
+    }
+
+    private static double jitter(Random random, double coordinate) {
+        return coordinate + (random.nextDouble() - 0.5) * 0.001;
+    }
+
+    // Six decimals like train.csv, with trailing zeros trimmed
+    private static StringBuilder appendCoordinate(StringBuilder sb, double value) {
+        String text = String.format(Locale.ROOT, "%.6f", value);
+        int end = text.length();
+        while (text.charAt(end - 1) == '0' && text.charAt(end - 2) != '.') {
+            end--;
+        }
+        return sb.append(text, 0, end);
+    }
+}
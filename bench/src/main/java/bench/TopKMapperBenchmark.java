@@ -0,0 +1,89 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Stage-2 map cost per input line of the two-job TopK* mode: the aggregate
+// mappers reading stage-1 monthly lines ("03__route<TAB>count") and the sort
+// mappers reading the aggregated lines ("route<TAB>count"). With -prof gc,
+// gc.alloc.rate.norm is the bytes allocated per line; the mappers reuse their
+// output key and value and parse the line in place (StageLineScanner), so it
+// should stay at about 0 B/op.
+//
+// The input lines are the text form of the synthetic rows run through the
+// matching stage-1 mapper. Q4's TopKNightlifeSpots has the same shape as Q1's
+// TopKRoutes and is not in this module (its file names differ from its class
+// names, which Maven's javac does not accept).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(TopKMapperBenchmark.LINES)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopKMapperBenchmark {
+    static final int LINES = 8192;
+
+    @Param({
+        "TopKRoutes$TopKMapper", "TopKRoutes$SortMapper",
+        "TopKExpensiveRoutes$ExpensiveMapper", "TopKExpensiveRoutes$SortMapper",
+        "TopKLocations$LocationMapper", "TopKLocations$SortMapper"
+    })
+    public String mapper;
+
+    private MapDriver driver;
+
+    @Setup
+    public void setup() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean("inmapper.combine", true);
+        String stage1;
+        if (mapper.startsWith("TopKRoutes")) {
+            stage1 = "PopularRoutesByMonth$RouteMapper";
+        } else if (mapper.startsWith("TopKExpensiveRoutes")) {
+            stage1 = "ExpensiveRoutesByMonth$RouteMapper";
+        } else {
+            stage1 = "PopularLocationsByMonth$LocationMapper";
+        }
+        List<Object[]> pairs = new MapDriver(conf, stage1,
+                MapDriver.values(conf, SyntheticTrips.rows(LINES * 16), false)).output();
+
+        // Monthly lines as stage 1 writes them, or with the month dropped the
+        // way the aggregate job writes them for the sort mappers
+        boolean aggregated = mapper.endsWith("$SortMapper");
+        List<Writable> lines = new ArrayList<Writable>();
+        for (Object[] pair : pairs) {
+            if (lines.size() == LINES) break;
+            String key = pair[0].toString();
+            if (aggregated) {
+                key = key.substring(key.indexOf("__") + 2);
+            }
+            lines.add(new Text(key + "\t" + pair[1]));
+        }
+        if (lines.size() < LINES) {
+            throw new IllegalStateException("Only " + lines.size() + " stage-1 lines for " + mapper);
+        }
+        driver = new MapDriver(conf, mapper, lines.toArray(new Writable[0]));
+    }
+
+    @Benchmark
+    public long map() throws Exception {
+        return driver.run();
+    }
+}
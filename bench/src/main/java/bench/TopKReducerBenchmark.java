@@ -0,0 +1,113 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Q1 stage-2 reduce cost per shuffled record, through the real
+// Reducer.run() on a ReduceContextImpl, so value deserialization and key
+// grouping are included:
+//   heap - TopKRoutes$HeapTopKReducer (single pass, the default): route ->
+//          its per-month counts, summed and offered to a TopKHeap
+//   sort - TopKRoutes$TopKReducer (-Dtopk.single.pass=false): total counts
+//          in descending order -> routes, stopping after K
+// The records come from the synthetic rows run through RouteMapper, the way
+// TopKMapper/SortMapper would emit them from stage-1 output.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(TopKReducerBenchmark.RECORDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopKReducerBenchmark {
+    static final int RECORDS = 8192;
+
+    @Param({"heap", "sort"})
+    public String reducer;
+
+    @Param({"5", "100"})
+    public int k;
+
+    private ReduceDriver driver;
+    private final ReduceDriver.Discard discard = new ReduceDriver.Discard();
+
+    @Setup
+    public void setup() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt("topk.k", k);
+
+        // "MM__route" -> count from stage 1, then route -> its monthly counts
+        conf.setBoolean("inmapper.combine", true);
+        List<Object[]> stage1 = new MapDriver(conf, "PopularRoutesByMonth$RouteMapper",
+                MapDriver.values(conf, SyntheticTrips.rows(RECORDS * 16), false)).output();
+        TreeMap<String, List<Integer>> routes = new TreeMap<String, List<Integer>>();
+        for (Object[] pair : stage1) {
+            String route = pair[0].toString().split("__")[1];
+            if (!routes.containsKey(route)) routes.put(route, new ArrayList<Integer>());
+            routes.get(route).add(((IntWritable) pair[1]).get());
+        }
+
+        if ("heap".equals(reducer)) {
+            driver = new ReduceDriver(conf, "TopKRoutes$HeapTopKReducer",
+                    WritableComparator.get(Text.class, conf), Text.class, IntWritable.class);
+            for (Map.Entry<String, List<Integer>> route : routes.entrySet()) {
+                for (int count : route.getValue()) {
+                    if (driver.size() == RECORDS) break;
+                    driver.add(new Text(route.getKey()), new IntWritable(count));
+                }
+            }
+        } else {
+            driver = new ReduceDriver(conf, "TopKRoutes$TopKReducer",
+                    (RawComparator<?>) ReflectionUtils.newInstance(
+                            conf.getClassByName("TopKRoutes$DescendingIntComparator"), conf),
+                    IntWritable.class, Text.class);
+            TreeMap<Integer, List<String>> byTotal = new TreeMap<Integer, List<String>>();
+            for (Map.Entry<String, List<Integer>> route : routes.entrySet()) {
+                int total = 0;
+                for (int count : route.getValue()) {
+                    total += count;
+                }
+                if (!byTotal.containsKey(total)) byTotal.put(total, new ArrayList<String>());
+                byTotal.get(total).add(route.getKey());
+            }
+            for (Map.Entry<Integer, List<String>> total : byTotal.descendingMap().entrySet()) {
+                for (String route : total.getValue()) {
+                    if (driver.size() == RECORDS) break;
+                    driver.add(new IntWritable(total.getKey()), new Text(route));
+                }
+            }
+        }
+        if (driver.size() < RECORDS) {
+            throw new IllegalStateException("Only " + driver.size() + " synthetic records for " + reducer);
+        }
+    }
+
+    // One reduce task over all records (see ReduceDriver.run())
+    @Benchmark
+    public long reduce() throws Exception {
+        discard.records = 0;
+        driver.run(discard);
+        return discard.records;
+    }
+}
@@ -0,0 +1,221 @@
+package bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.junit.Test;
+
+// Per-record allocation checks for every stage-1 mapper and reducer and every
+// stage-2 TopK* mapper, run by `mvn package`/`mvn test`.
+//
+// Each case runs a whole task (MapDriver/ReduceDriver) over N and over 2N
+// records until the JIT has settled, and takes the bytes the thread allocated
+// (ThreadMXBean) for each size; the difference divided by N is what one more
+// record costs, without the per-task setup and cleanup (TaskMetrics, the
+// growth of the in-mapper table). The reducers write through
+// StageTextOutputFormat's writer, as the stage-1 jobs do.
+public class AllocationTest {
+    private static final int RECORDS = 16384;
+    private static final double MAX_BYTES_PER_RECORD = 8;
+    private static final int WARMUP_RUNS = 30;
+    private static final int MEASURED_RUNS = 5;
+
+    private static final String[][] STAGE1 = {
+        // mapper, reducer, value class
+        {"PopularRoutesByMonth$RouteMapper", "PopularRoutesByMonth$RouteReducer", "IntWritable"},
+        {"ExpensiveRoutesByMonth$RouteMapper", "ExpensiveRoutesByMonth$MaxFareReducer", "DoubleWritable"},
+        {"PopularLocationsByMonth$LocationMapper", "PopularLocationsByMonth$LocationReducer", "IntWritable"},
+        {"NightlifeSpotsByMonth$NightlifeMapper", "NightlifeSpotsByMonth$LocationReducer", "IntWritable"},
+    };
+
+    private static final String[][] TOPK = {
+        // stage-1 mapper, aggregate mapper, sort mapper
+        {"PopularRoutesByMonth$RouteMapper", "TopKRoutes$TopKMapper", "TopKRoutes$SortMapper"},
+        {"ExpensiveRoutesByMonth$RouteMapper", "TopKExpensiveRoutes$ExpensiveMapper", "TopKExpensiveRoutes$SortMapper"},
+        {"PopularLocationsByMonth$LocationMapper", "TopKLocations$LocationMapper", "TopKLocations$SortMapper"},
+        {"NightlifeSpotsByMonth$NightlifeMapper", "TopKNightlifeSpots$LocationMapper", "TopKNightlifeSpots$SortMapper"},
+    };
+
+    private interface Task {
+        void run(int records) throws Exception;
+    }
+
+    @Test
+    public void stage1Mappers() throws Exception {
+        Configuration conf = conf();
+        for (String[] query : STAGE1) {
+            final MapDriver half = new MapDriver(conf, query[0], rows(conf, RECORDS));
+            final MapDriver full = new MapDriver(conf, query[0], rows(conf, 2 * RECORDS));
+            check(query[0], (records) -> (records == RECORDS ? half : full).run());
+        }
+    }
+
+    @Test
+    public void stage1Reducers() throws Exception {
+        Configuration conf = conf();
+        RecordWriter<?, ?> output = writer(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        for (String[] query : STAGE1) {
+            List<Object[]> pairs = sortedOutput(conf, query[0], 2 * RECORDS);
+            final ReduceDriver half = reduceDriver(conf, query, pairs.subList(0, RECORDS));
+            final ReduceDriver full = reduceDriver(conf, query, pairs);
+            check(query[1], (records) -> (records == RECORDS ? half : full).run(output));
+        }
+    }
+
+    // StageTextOutputFormat writes the same text as TextOutputFormat did
+    @Test
+    public void stage1OutputMatchesToString() throws Exception {
+        Configuration conf = conf();
+        for (String[] query : STAGE1) {
+            List<Object[]> pairs = sortedOutput(conf, query[0], RECORDS);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            StringBuilder expected = new StringBuilder();
+            RecordWriter<Object, Object> output = writer(bytes);
+            for (Object[] pair : pairs) {
+                output.write(pair[0], pair[1]);
+                expected.append(pair[0]).append('\t').append(pair[1]).append('\n');
+            }
+            assertEquals(query[1], expected.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void topKMappers() throws Exception {
+        Configuration conf = conf();
+        for (String[] query : TOPK) {
+            List<Object[]> pairs = stage1Output(conf, query[0], 2 * RECORDS);
+            for (int mapper = 1; mapper <= 2; mapper++) {
+                // Monthly lines for the aggregate mapper, month-free lines
+                // (as the aggregate job writes them) for the sort mapper
+                final MapDriver half = new MapDriver(conf, query[mapper], lines(pairs, RECORDS, mapper == 2));
+                final MapDriver full = new MapDriver(conf, query[mapper], lines(pairs, 2 * RECORDS, mapper == 2));
+                check(query[mapper], (records) -> (records == RECORDS ? half : full).run());
+            }
+        }
+    }
+
+    private static Configuration conf() {
+        Configuration conf = new Configuration();
+        conf.setBoolean("inmapper.combine", true);
+        // No budget keeps the in-mapper table at its minimum size, flushing
+        // often, so it does not grow with N and only the per-record cost is left
+        conf.setInt("inmapper.combine.memory.mb", 0);
+        return conf;
+    }
+
+    private static void check(String name, Task task) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run(RECORDS);
+            task.run(2 * RECORDS);
+        }
+        long half = Long.MAX_VALUE;
+        long full = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            half = Math.min(half, allocated(task, RECORDS));
+            full = Math.min(full, allocated(task, 2 * RECORDS));
+        }
+        double perRecord = (full - half) / (double) RECORDS;
+        System.out.printf("%-40s %6.2f B/record%n", name, perRecord);
+        assertTrue(name + " allocates " + perRecord + " bytes per record", perRecord <= MAX_BYTES_PER_RECORD);
+    }
+
+    private static long allocated(Task task, int records) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        task.run(records);
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    private static Writable[] rows(Configuration conf, int rows) throws Exception {
+        return MapDriver.values(conf, SyntheticTrips.rows(rows), false);
+    }
+
+    // At least count stage-1 map outputs; the synthetic rows include trips
+    // the mappers skip, so the input grows until there are enough
+    private static List<Object[]> stage1Output(Configuration conf, String mapper, int count) throws Exception {
+        for (int rows = count; ; rows *= 2) {
+            List<Object[]> pairs = new MapDriver(conf, mapper, rows(conf, rows)).output();
+            if (pairs.size() >= count) return pairs;
+        }
+    }
+
+    // "MM__key<TAB>value" stage-1 lines, or "key<TAB>value" without the month
+    private static Writable[] lines(List<Object[]> pairs, int count, boolean aggregated) {
+        Writable[] lines = new Writable[count];
+        for (int i = 0; i < count; i++) {
+            String key = pairs.get(i)[0].toString();
+            if (aggregated) {
+                key = key.substring(key.indexOf("__") + 2);
+            }
+            lines[i] = new Text(key + "\t" + pairs.get(i)[1]);
+        }
+        return lines;
+    }
+
+    // Stage-1 map output sorted by key, as the shuffle hands it to a reducer
+    private static List<Object[]> sortedOutput(Configuration conf, String mapper, int count) throws Exception {
+        conf = new Configuration(conf);
+        // One record per trip, so keys repeat and reduce() sees value lists
+        conf.setBoolean("inmapper.combine", false);
+        List<Object[]> pairs = new ArrayList<Object[]>(stage1Output(conf, mapper, count).subList(0, count));
+        Collections.sort(pairs, new Comparator<Object[]>() {
+            @Override
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            public int compare(Object[] a, Object[] b) {
+                return ((WritableComparable) a[0]).compareTo(b[0]);
+            }
+        });
+        return pairs;
+    }
+
+    private static ReduceDriver reduceDriver(Configuration conf, String[] query, List<Object[]> pairs)
+            throws Exception {
+        Class<?> keyClass = pairs.get(0)[0].getClass();
+        Class<?> valueClass = "DoubleWritable".equals(query[2]) ? DoubleWritable.class : IntWritable.class;
+        RawComparator<?> comparator = WritableComparator.get(keyClass.asSubclass(WritableComparable.class), conf);
+        ReduceDriver driver = new ReduceDriver(conf, query[1], comparator, keyClass, valueClass);
+        for (Object[] pair : pairs) {
+            driver.add((Writable) pair[0], (Writable) pair[1]);
+        }
+        return driver;
+    }
+
+    // StageTextOutputFormat's record writer over a stream; the class is in
+    // the default package and protected, hence the reflection
+    @SuppressWarnings("unchecked")
+    private static RecordWriter<Object, Object> writer(OutputStream out) throws Exception {
+        Constructor<?> constructor = Class.forName("StageTextOutputFormat$Writer")
+                .getConstructor(DataOutputStream.class, String.class);
+        constructor.setAccessible(true);
+        return (RecordWriter<Object, Object>) constructor.newInstance(new DataOutputStream(out), "\t");
+    }
+}
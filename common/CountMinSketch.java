@@ -0,0 +1,103 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// Count-Min Sketch over 64-bit key hashes.
+//
+// `depth` rows of `width` counters; a key adds to one counter per row and its
+// estimate is the smallest of those counters. The estimate never undercounts
+// and, with probability 1 - e^-depth, overcounts by at most e / width times
+// the total added. Sketches of the same shape merge by adding counters, so
+// mappers can sketch their split and reducers add the sketches up.
+public class CountMinSketch implements Writable {
+    private int depth;
+    private int width;
+    private int mask;
+    private int[] counters;
+    private long total;
+
+    public CountMinSketch() {
+    }
+
+    // width is rounded up to a power of two
+    public CountMinSketch(int depth, int width) {
+        allocate(depth, width);
+    }
+
+    private void allocate(int depth, int width) {
+        int size = 1;
+        while (size < width) {
+            size <<= 1;
+        }
+        this.depth = depth;
+        this.width = size;
+        this.mask = size - 1;
+        this.counters = new int[depth * size];
+        this.total = 0;
+    }
+
+    public void add(long hash, int delta) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            counters[row * width + ((h1 + row * h2) & mask)] += delta;
+        }
+        total += delta;
+    }
+
+    public int estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters[row * width + ((h1 + row * h2) & mask)]);
+        }
+        return min;
+    }
+
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Cannot merge a " + other.depth + "x" + other.width
+                    + " sketch into a " + depth + "x" + width + " one");
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] += other.counters[i];
+        }
+        total += other.total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    // Overcount that holds with probability 1 - e^-depth
+    public long errorBound() {
+        return (long) Math.ceil(Math.E / width * total);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(depth);
+        out.writeInt(width);
+        out.writeLong(total);
+        // Most counters of a mapper's sketch are small, so vints keep it compact
+        for (int counter : counters) {
+            WritableUtils.writeVInt(out, counter);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int newDepth = in.readInt();
+        int newWidth = in.readInt();
+        if (counters == null || newDepth != depth || newWidth != width) {
+            allocate(newDepth, newWidth);
+        }
+        total = in.readLong();
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = WritableUtils.readVInt(in);
+        }
+    }
+}
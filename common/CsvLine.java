@@ -0,0 +1,53 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// One train.csv line as a slice of a larger byte array, without its line
+// terminator. MappedCsvInputFormat hands these to the mappers pointing into
+// its window buffer, so a line is never copied; TripRow.of() scans the slice
+// in place. The slice is only valid until the reader's next line.
+public class CsvLine implements Writable {
+    private byte[] bytes = new byte[0];
+    private int offset;
+    private int length;
+
+    public void set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, length);
+        out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int newLength = WritableUtils.readVInt(in);
+        byte[] buffer = new byte[newLength];
+        in.readFully(buffer);
+        set(buffer, 0, newLength);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
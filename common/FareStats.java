@@ -0,0 +1,93 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Locale;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+
+// Mergeable summary of the fares of one route for Query 2.
+//
+// With -Dfare.stats=true, ExpensiveRoutesByMonth shuffles one of these per
+// route instead of raw fares: the mapper wraps each fare, the combiner and
+// reducer merge them. Count, sum, min and max are exact; p50/p95/p99 come
+// from a TDigest (`fare.stats.compression`, default 100 centroids).
+//
+// toString() starts with the max fare, which is what the max-only jobs wrote,
+// so tools that read the first value of a stage-1 row keep working:
+//   "52.0 count=17 mean=21.35 min=4.50 p50=18.50 p95=49.87 p99=51.77"
+public class FareStats implements Writable {
+    public static final String ENABLED = "fare.stats";
+    public static final String COMPRESSION = "fare.stats.compression";
+
+    private double sum;
+    private final TDigest digest;
+
+    public FareStats() {
+        digest = new TDigest();
+    }
+
+    public FareStats(Configuration conf) {
+        digest = new TDigest(conf.getInt(COMPRESSION, TDigest.DEFAULT_COMPRESSION));
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    public void clear() {
+        sum = 0;
+        digest.clear();
+    }
+
+    public void add(double fare) {
+        sum += fare;
+        digest.add(fare);
+    }
+
+    public void merge(FareStats other) {
+        sum += other.sum;
+        digest.merge(other.digest);
+    }
+
+    public long getCount() {
+        return digest.getCount();
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return sum / digest.getCount();
+    }
+
+    public double getMin() {
+        return digest.getMin();
+    }
+
+    public double getMax() {
+        return digest.getMax();
+    }
+
+    public double quantile(double q) {
+        return digest.quantile(q);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeDouble(sum);
+        digest.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        sum = in.readDouble();
+        digest.readFields(in);
+    }
+
+    @Override
+    public String toString() {
+        return getMax() + String.format(Locale.ROOT, " count=%d mean=%.2f min=%.2f p50=%.2f p95=%.2f p99=%.2f",
+                getCount(), getMean(), getMin(), quantile(0.50), quantile(0.95), quantile(0.99));
+    }
+}
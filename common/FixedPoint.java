@@ -0,0 +1,87 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Fixed-point helpers for the binary route/location keys.
+//
+// Coordinates are stored as ints scaled by 10^decimals (e.g. -73.97700 at 5
+// decimals is -7397700). quantize() rounds exactly like String.format("%.Nf"),
+// which rounds the shortest decimal form of the double half-up, and append()
+// renders the value back in the same text form, so key.toString() matches the
+// old "%.5f"/"%.4f" output; render() writes the same text into a byte buffer. The only difference is that a tiny negative value
+// which rounds to zero prints as "0.00000" rather than "-0.00000".
+public final class FixedPoint {
+    private static final int[] POWERS_OF_TEN = {
+        1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+
+    private FixedPoint() {
+    }
+
+    // Throws ArithmeticException if the scaled value does not fit in an int
+    public static int quantize(double value, int decimals) {
+        return BigDecimal.valueOf(value)
+                .setScale(decimals, RoundingMode.HALF_UP)
+                .unscaledValue()
+                .intValueExact();
+    }
+
+    // Packs a fixed-point (lon, lat) pair into one long, e.g. for PackedKeyIntMap
+    public static long pack(int lon, int lat) {
+        return ((long) lon << 32) | (lat & 0xFFFFFFFFL);
+    }
+
+    public static int lon(long point) {
+        return (int) (point >> 32);
+    }
+
+    public static int lat(long point) {
+        return (int) point;
+    }
+
+    public static StringBuilder append(StringBuilder sb, int scaled, int decimals) {
+        long value = scaled;
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
+        long unit = POWERS_OF_TEN[decimals];
+        sb.append(value / unit);
+        if (decimals > 0) {
+            sb.append('.');
+            long fraction = value % unit;
+            for (long p = unit / 10; p > 0; p /= 10) {
+                sb.append((char) ('0' + fraction / p % 10));
+            }
+        }
+        return sb;
+    }
+
+    // append() into a byte buffer: writes the text at buffer[pos] on and
+    // returns the position after it (decimals 0 renders a plain int)
+    public static int render(byte[] buffer, int pos, int scaled, int decimals) {
+        long value = scaled;
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        long unit = POWERS_OF_TEN[decimals];
+        long whole = value / unit;
+        int digits = 1;
+        for (long rest = whole; rest >= 10; rest /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        }
+        pos += digits;
+        if (decimals > 0) {
+            buffer[pos++] = '.';
+            long fraction = value % unit;
+            for (long p = unit / 10; p > 0; p /= 10) {
+                buffer[pos++] = (byte) ('0' + fraction / p % 10);
+            }
+        }
+        return pos;
+    }
+}
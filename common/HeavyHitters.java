@@ -0,0 +1,128 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+
+// Approximate top-K summary of one month's keys for the count jobs.
+//
+// With -Dapprox.heavy.hitters=true, PopularRoutesByMonth and
+// PopularLocationsByMonth keep one of these per month (per month and type for
+// Q3) in each mapper instead of counting every key, shuffle only the
+// summaries, and the reducers merge them. A summary is a Space-Saving list of
+// the `approx.capacity` most frequent keys plus a Count-Min Sketch over all
+// keys. The reported count of a key is the smaller of its two overestimates;
+// the Space-Saving error gives the guaranteed lower bound.
+//
+// Any key with more than total / capacity trips in the month is reported, so
+// with the defaults every key above 0.1% of a month survives, while a mapper
+// ships well under 100 KB per month instead of one record per distinct key.
+public class HeavyHitters implements Writable {
+    public static final String ENABLED = "approx.heavy.hitters";
+    public static final String CAPACITY = "approx.capacity";
+    public static final String SKETCH_WIDTH = "approx.sketch.width";
+    public static final String SKETCH_DEPTH = "approx.sketch.depth";
+
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_SKETCH_WIDTH = 8192;
+    public static final int DEFAULT_SKETCH_DEPTH = 4;
+
+    // Counter group for the per-month error bounds reported by the reducers
+    public static final String COUNTER_GROUP = "Heavy hitters max overcount";
+
+    private final SpaceSaving topKeys;
+    private final CountMinSketch sketch;
+
+    public HeavyHitters() {
+        topKeys = new SpaceSaving();
+        sketch = new CountMinSketch();
+    }
+
+    public HeavyHitters(Configuration conf) {
+        topKeys = new SpaceSaving(conf.getInt(CAPACITY, DEFAULT_CAPACITY));
+        sketch = new CountMinSketch(conf.getInt(SKETCH_DEPTH, DEFAULT_SKETCH_DEPTH),
+                conf.getInt(SKETCH_WIDTH, DEFAULT_SKETCH_WIDTH));
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    public void add(long first, long second) {
+        topKeys.offer(first, second, 1);
+        sketch.add(hash(first, second), 1);
+    }
+
+    public void merge(HeavyHitters other) {
+        topKeys.merge(other.topKeys);
+        sketch.merge(other.sketch);
+    }
+
+    // Candidates are numbered 0 .. size() - 1 in no particular order
+    public int size() {
+        return topKeys.size();
+    }
+
+    public long firstAt(int i) {
+        return topKeys.firstAt(i);
+    }
+
+    public long secondAt(int i) {
+        return topKeys.secondAt(i);
+    }
+
+    // Never below the true count
+    public long estimateAt(int i) {
+        return Math.min(topKeys.countAt(i), sketch.estimate(hash(topKeys.firstAt(i), topKeys.secondAt(i))));
+    }
+
+    // Never above the true count
+    public long lowerBoundAt(int i) {
+        return Math.max(0, topKeys.countAt(i) - topKeys.errorAt(i));
+    }
+
+    // Candidate numbers ordered by descending estimate
+    public Integer[] byEstimate() {
+        final long[] estimates = new long[size()];
+        Integer[] order = new Integer[size()];
+        for (int i = 0; i < order.length; i++) {
+            estimates[i] = estimateAt(i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(estimates[b], estimates[a]);
+            }
+        });
+        return order;
+    }
+
+    public long getTotal() {
+        return sketch.getTotal();
+    }
+
+    private static long hash(long first, long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        topKeys.write(out);
+        sketch.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        topKeys.readFields(in);
+        sketch.readFields(in);
+    }
+}
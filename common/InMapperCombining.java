@@ -0,0 +1,60 @@
+import org.apache.hadoop.conf.Configuration;
+
+// Settings for in-mapper combining in the stage-1 jobs.
+//
+// When enabled, RouteMapper/LocationMapper/NightlifeMapper count keys in a
+// PackedKeyIntMap and emit one (key, count) per distinct key instead of one
+// (key, 1) per trip; the Q2 RouteMapper likewise keeps the highest fare per
+// route in a PackedKeyDoubleMap. The table starts at its minimum size and
+// grows with the distinct keys the split has, so a small split or a mapper
+// with few keys holds little memory. It grows up to the largest capacity
+// whose last resize (the old arrays plus the new ones, 1.5x that capacity)
+// fits the memory budget, is flushed before it would grow past it, and once
+// more in cleanup(). Toggle with -Dinmapper.combine=false.
+public final class InMapperCombining {
+    public static final String ENABLED = "inmapper.combine";
+    public static final String MEMORY_MB = "inmapper.combine.memory.mb";
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_MEMORY_MB = 128;
+
+    // Keys one row can add before the mapper checks the table size
+    // (AllQueriesByMonth: route, pickup, dropoff and nightlife)
+    private static final int MAX_KEYS_PER_ROW = 4;
+
+    private InMapperCombining() {
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, DEFAULT_ENABLED);
+    }
+
+    // Count table at its minimum size; it grows up to the budget (see
+    // maxEntries()) as keys arrive
+    public static PackedKeyIntMap newCountTable(Configuration conf) {
+        return new PackedKeyIntMap();
+    }
+
+    // Distinct keys to hold before flushing a newCountTable(), leaving room
+    // for one more row without growing it past the budget
+    public static int maxEntries(Configuration conf) {
+        int capacity = PackedKeyIntMap.capacityForBytes(resizeBytes(conf));
+        return Math.max(1, PackedKeyIntMap.entriesAt(capacity) - (MAX_KEYS_PER_ROW - 1));
+    }
+
+    // Same for the max tables of PackedKeyDoubleMap
+    public static PackedKeyDoubleMap newMaxTable(Configuration conf) {
+        return new PackedKeyDoubleMap();
+    }
+
+    public static int maxDoubleEntries(Configuration conf) {
+        int capacity = PackedKeyDoubleMap.capacityForBytes(resizeBytes(conf));
+        return Math.max(1, PackedKeyDoubleMap.entriesAt(capacity) - (MAX_KEYS_PER_ROW - 1));
+    }
+
+    // Bytes the largest table may take so that growing into it, which holds
+    // the half-size arrays as well, stays within the budget
+    private static long resizeBytes(Configuration conf) {
+        return conf.getInt(MEMORY_MB, DEFAULT_MEMORY_MB) * 1024L * 1024L * 2 / 3;
+    }
+}
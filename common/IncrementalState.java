@@ -0,0 +1,107 @@
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+// Incremental mode for the stage-1 *ByMonth jobs.
+//
+// With -Dincremental.state=<dir> the reducers also write every aggregated
+// (key, value) row as a SequenceFile under <output>/_state, sorted by key
+// within each part file, and the driver moves it to <dir>/current once the
+// job succeeds (the state it replaces is kept as <dir>/previous). On the next
+// run the input is only the new trips: they go through the job's usual input
+// format and mapper, while <dir>/current is read back as map output through
+// an identity mapper, so the reducers sum (or max) old and new values of each
+// key. Parsing cost follows the size of the delta; the state is only a few
+// bytes per distinct key and month.
+//
+// A delta must not repeat trips already in the state, and the job options
+// that change keys (spatial.quantizer, taxi.target.year) must stay the same
+// between runs. The main output always holds the full merged aggregate, so
+// TopK* and the pipelines run on it unchanged.
+public final class IncrementalState {
+    public static final String DIR = "incremental.state";
+    // Set by configure() on the stage-1 job only, like MonthlyTopK.ENABLED
+    public static final String ENABLED = "incremental.state.output";
+    public static final String NAMED_OUTPUT = "state";
+    public static final String BASE_PATH = "_state/part";
+
+    private static final String CURRENT = "current";
+    private static final String PREVIOUS = "previous";
+
+    private IncrementalState() {
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    // Called from createJob() once the delta input, mapper and output classes
+    // are set; adds the state output and, if there is one, the old state
+    public static void configure(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        String dir = conf.get(DIR);
+        if (dir == null) return;
+        if (job.getMapOutputKeyClass() != job.getOutputKeyClass()
+                || job.getMapOutputValueClass() != job.getOutputValueClass()) {
+            // e.g. approx.heavy.hitters, whose map output is a summary
+            throw new IllegalArgumentException(DIR + " needs a job whose map output matches its output");
+        }
+        conf.setBoolean(ENABLED, true);
+        MultipleOutputs.addNamedOutput(job, NAMED_OUTPUT, SequenceFileOutputFormat.class,
+                job.getOutputKeyClass(), job.getOutputValueClass());
+
+        Path current = new Path(dir, CURRENT);
+        if (!current.getFileSystem(conf).exists(current)) {
+            // First run: the input is the whole history
+            return;
+        }
+        @SuppressWarnings("rawtypes")
+        Class<? extends InputFormat> format;
+        @SuppressWarnings("rawtypes")
+        Class<? extends Mapper> mapper;
+        try {
+            format = job.getInputFormatClass();
+            mapper = job.getMapperClass();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        Path[] delta = FileInputFormat.getInputPaths(job);
+        conf.unset(FileInputFormat.INPUT_DIR);
+        for (Path path : delta) {
+            MultipleInputs.addInputPath(job, path, format, mapper);
+        }
+        MultipleInputs.addInputPath(job, current, SequenceFileInputFormat.class, Mapper.class);
+    }
+
+    // Replaces <dir>/current with the state the job just wrote
+    public static void commit(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (!isEnabled(conf)) return;
+        Path dir = new Path(conf.get(DIR));
+        Path written = new Path(FileOutputFormat.getOutputPath(job), "_state");
+        Path current = new Path(dir, CURRENT);
+        Path previous = new Path(dir, PREVIOUS);
+        FileSystem fs = dir.getFileSystem(conf);
+
+        // No reducer wrote a row (empty delta and no state yet)
+        fs.mkdirs(written);
+        fs.mkdirs(dir);
+        fs.delete(previous, true);
+        if (fs.exists(current) && !fs.rename(current, previous)) {
+            throw new IOException("Could not move " + current + " to " + previous);
+        }
+        if (!fs.rename(written, current)) {
+            throw new IOException("Could not move " + written + " to " + current);
+        }
+    }
+}
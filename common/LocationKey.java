@@ -0,0 +1,171 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+// Binary month + location key used by the Q3/Q4 stage-1 jobs.
+//
+// Replaces the "MM__TYPE__lon,lat" (Q3) and "MM__lon,lat" (Q4) Text keys: the
+// month and location type are one byte each and the coordinates are
+// fixed-point ints at 4 decimals, 10 bytes per key. toString() renders the old
+// text form so the TopK* jobs keep reading stage-1 output as before, and
+// render() writes the same bytes without a String for StageTextOutputFormat. Month
+// ALL_MONTHS (0) marks a yearly key and renders without the month prefix.
+public class LocationKey implements WritableComparable<LocationKey>, MonthKey, TextKey {
+    public static final int DECIMALS = 4;
+    public static final int SERIALIZED_SIZE = 1 + 1 + 4 * 2;
+    public static final int ALL_MONTHS = 0;
+
+    // Location types; NONE is used by Q4 where only dropoffs are counted
+    public static final byte NONE = 0;
+    public static final byte PICKUP = 1;
+    public static final byte DROPOFF = 2;
+
+    private static final String[] TYPE_NAMES = {null, "PICKUP", "DROPOFF"};
+    private static final byte[][] TYPE_PREFIXES = {
+        null, "PICKUP__".getBytes(StandardCharsets.UTF_8), "DROPOFF__".getBytes(StandardCharsets.UTF_8)
+    };
+
+    private byte month;
+    private byte type;
+    private int lon;
+    private int lat;
+
+    public LocationKey() {
+    }
+
+    public void set(int month, byte type, int lon, int lat) {
+        this.month = (byte) month;
+        this.type = type;
+        this.lon = lon;
+        this.lat = lat;
+    }
+
+    // Location given as a FixedPoint.pack()ed point
+    public void set(int month, byte type, long point) {
+        set(month, type, FixedPoint.lon(point), FixedPoint.lat(point));
+    }
+
+    public int getMonth() {
+        return month;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getLon() {
+        return lon;
+    }
+
+    public int getLat() {
+        return lat;
+    }
+
+    // "PICKUP", "DROPOFF", or null for NONE
+    public String getTypeName() {
+        return TYPE_NAMES[type];
+    }
+
+    public long getPoint() {
+        return FixedPoint.pack(lon, lat);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(month);
+        out.writeByte(type);
+        out.writeInt(lon);
+        out.writeInt(lat);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        month = in.readByte();
+        type = in.readByte();
+        lon = in.readInt();
+        lat = in.readInt();
+    }
+
+    // Month, then type, then the coordinates
+    @Override
+    public int compareTo(LocationKey other) {
+        int cmp = Integer.compare(month, other.month);
+        if (cmp != 0) return cmp;
+        cmp = Integer.compare(type, other.type);
+        if (cmp != 0) return cmp;
+        cmp = Integer.compare(lon, other.lon);
+        if (cmp != 0) return cmp;
+        return Integer.compare(lat, other.lat);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LocationKey)) return false;
+        LocationKey other = (LocationKey) o;
+        return month == other.month && type == other.type && lon == other.lon && lat == other.lat;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = month;
+        h = 31 * h + type;
+        h = 31 * h + lon;
+        return 31 * h + lat;
+    }
+
+    // "03__PICKUP__-73.9770,40.7450" or "03__-73.9770,40.7450"
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(32);
+        if (month != ALL_MONTHS) {
+            if (month < 10) sb.append('0');
+            sb.append(month).append("__");
+        }
+        if (type != NONE) sb.append(TYPE_NAMES[type]).append("__");
+        return appendLocation(sb).toString();
+    }
+
+    // Just the coordinates: "-73.9770,40.7450"
+    public StringBuilder appendLocation(StringBuilder sb) {
+        FixedPoint.append(sb, lon, DECIMALS).append(',');
+        return FixedPoint.append(sb, lat, DECIMALS);
+    }
+
+    @Override
+    public int render(byte[] buffer, int pos) {
+        pos = TextKey.renderMonth(buffer, pos, month);
+        if (type != NONE) {
+            byte[] prefix = TYPE_PREFIXES[type];
+            System.arraycopy(prefix, 0, buffer, pos, prefix.length);
+            pos += prefix.length;
+        }
+        pos = FixedPoint.render(buffer, pos, lon, DECIMALS);
+        buffer[pos++] = ',';
+        return FixedPoint.render(buffer, pos, lat, DECIMALS);
+    }
+
+    // Sorts serialized keys without deserializing them
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(LocationKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(b1[s1], b2[s2]);
+            if (cmp != 0) return cmp;
+            cmp = Integer.compare(b1[s1 + 1], b2[s2 + 1]);
+            if (cmp != 0) return cmp;
+            cmp = Integer.compare(readInt(b1, s1 + 2), readInt(b2, s2 + 2));
+            if (cmp != 0) return cmp;
+            return Integer.compare(readInt(b1, s1 + 6), readInt(b2, s2 + 6));
+        }
+    }
+
+    static {
+        WritableComparator.define(LocationKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+// Runs a job's own mapper in the driver over a sample of its input.
+//
+// Reads up to `rows` input records spread over at most SAMPLE_SPLITS evenly
+// spaced splits and hands every map output record to `sink`, so a driver can
+// look at the keys the job is about to shuffle before submitting it (see
+// PartitionSampler and TotalOrderSort).
+public final class MapOutputSample {
+    private static final int SAMPLE_SPLITS = 10;
+
+    private MapOutputSample() {
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void run(Job job, Configuration conf, int rows, RecordWriter<?, ?> sink)
+            throws IOException, InterruptedException {
+        InputFormat inputFormat;
+        Mapper mapper;
+        try {
+            inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+            mapper = ReflectionUtils.newInstance(job.getMapperClass(), conf);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot load the job's input format or mapper", e);
+        }
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        if (splits.isEmpty()) {
+            return;
+        }
+
+        int sampled = Math.min(SAMPLE_SPLITS, splits.size());
+        int rowsPerSplit = Math.max(1, rows / sampled);
+        for (int i = 0; i < sampled; i++) {
+            InputSplit split = splits.get((int) ((long) i * splits.size() / sampled));
+            TaskAttemptID id = new TaskAttemptID("sample", 0, TaskType.MAP, i, 0);
+            TaskAttemptContext context = new TaskAttemptContextImpl(conf, id);
+            RecordReader reader = inputFormat.createRecordReader(split, context);
+            reader.initialize(split, context);
+            MapContext mapContext = new MapContextImpl(conf, id, new LimitedReader(reader, rowsPerSplit),
+                    sink, null, new TaskAttemptContextImpl.DummyReporter(), split);
+            mapper.run(new WrappedMapper().getMapContext(mapContext));
+            reader.close();
+        }
+    }
+
+    // Stops the mapper after a fixed number of input rows
+    private static class LimitedReader<K, V> extends RecordReader<K, V> {
+        private final RecordReader<K, V> reader;
+        private final int limit;
+        private int read;
+
+        LimitedReader(RecordReader<K, V> reader, int limit) {
+            this.reader = reader;
+            this.limit = limit;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+            // The wrapped reader is initialized by run()
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            return read++ < limit && reader.nextKeyValue();
+        }
+
+        @Override
+        public K getCurrentKey() throws IOException, InterruptedException {
+            return reader.getCurrentKey();
+        }
+
+        @Override
+        public V getCurrentValue() throws IOException, InterruptedException {
+            return reader.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() throws IOException, InterruptedException {
+            return Math.min(1.0f, read / (float) limit);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
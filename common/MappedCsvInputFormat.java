@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+// Reads a train.csv on the local filesystem through memory-mapped windows.
+//
+// Splits are the usual byte ranges (pruned like PrunedTextInputFormat) and are
+// newline-aligned the same way LineRecordReader does it: a split skips the
+// partial line it starts in and finishes the line it ends in. The reader
+// maps `csv.mmap.window.mb` (default 64) of the file at a time, copies it into
+// one reused array with a single bulk get, and hands out each line as a
+// CsvLine slice of that array, so there is no Text per line and no
+// per-byte line reader. Compressed files and files not on the local
+// filesystem (HDFS) fall back to LineRecordReader with Text values; the
+// mappers accept both through TripRow.of().
+//
+// Enabled with -Dcsv.mmap=true (on by default in LocalRunner).
+public class MappedCsvInputFormat extends FileInputFormat<LongWritable, Writable> {
+    public static final String ENABLED = "csv.mmap";
+    public static final String WINDOW_MB = "csv.mmap.window.mb";
+    public static final int DEFAULT_WINDOW_MB = 64;
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        return PrunedTextInputFormat.prune(job, super.getSplits(job));
+    }
+
+    // Same rule as TextInputFormat
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+        return codec == null || codec instanceof SplittableCompressionCodec;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RecordReader<LongWritable, Writable> createRecordReader(InputSplit split,
+            TaskAttemptContext context) throws IOException {
+        Configuration conf = context.getConfiguration();
+        Path file = ((FileSplit) split).getPath();
+        FileSystem fs = file.getFileSystem(conf);
+        if (!(fs instanceof LocalFileSystem) || new CompressionCodecFactory(conf).getCodec(file) != null) {
+            return (RecordReader) new LineRecordReader();
+        }
+        return new MappedLineRecordReader();
+    }
+
+    public static class MappedLineRecordReader extends RecordReader<LongWritable, Writable> {
+        private FileChannel channel;
+        private long start;
+        private long end;
+        private long fileLength;
+        // File offset of the next line
+        private long pos;
+
+        // File bytes [windowStart, windowStart + windowLength)
+        private byte[] window;
+        private long windowStart;
+        private int windowLength;
+
+        private final LongWritable key = new LongWritable();
+        private final CsvLine line = new CsvLine();
+
+        @Override
+        public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+            FileSplit split = (FileSplit) genericSplit;
+            Configuration conf = context.getConfiguration();
+            LocalFileSystem fs = (LocalFileSystem) split.getPath().getFileSystem(conf);
+            File file = fs.pathToFile(split.getPath());
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileLength = channel.size();
+            start = split.getStart();
+            end = Math.min(start + split.getLength(), fileLength);
+            window = new byte[(int) Math.min(conf.getInt(WINDOW_MB, DEFAULT_WINDOW_MB) * 1024L * 1024L,
+                    Math.max(1L, fileLength - start))];
+
+            pos = start;
+            if (start != 0) {
+                // The line this split starts in belongs to the previous split
+                int newline = findNewline();
+                pos = newline < 0 ? fileLength : windowStart + newline + 1;
+            }
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            // A line starting exactly at `end` is still ours, like LineRecordReader
+            if (pos > end || pos >= fileLength) {
+                return false;
+            }
+            int newline = findNewline();
+            int offset = (int) (pos - windowStart);
+            int lineEnd = newline < 0 ? windowLength : newline;
+            if (lineEnd > offset && window[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            key.set(pos);
+            line.set(window, offset, lineEnd - offset);
+            pos = newline < 0 ? fileLength : windowStart + newline + 1;
+            return true;
+        }
+
+        // Window index of the first '\n' at or after pos, or -1 if the file
+        // ends first. Remaps the window to start at pos when pos is outside
+        // it or the line runs past its end.
+        private int findNewline() throws IOException {
+            if (pos - windowStart >= windowLength) {
+                map(pos);
+            }
+            while (true) {
+                for (int i = (int) (pos - windowStart); i < windowLength; i++) {
+                    if (window[i] == '\n') return i;
+                }
+                if (windowStart + windowLength >= fileLength) return -1;
+                if (windowStart == pos) {
+                    throw new IOException("Line at offset " + pos + " is longer than the "
+                            + window.length + " byte window (" + WINDOW_MB + ")");
+                }
+                map(pos);
+            }
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            windowLength = (int) Math.min(window.length, fileLength - position);
+            if (windowLength > 0) {
+                channel.map(FileChannel.MapMode.READ_ONLY, position, windowLength).get(window, 0, windowLength);
+            }
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public Writable getCurrentValue() {
+            return line;
+        }
+
+        @Override
+        public float getProgress() {
+            return end == start ? 1.0f : Math.min(1.0f, (pos - start) / (float) (end - start));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
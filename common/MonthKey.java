@@ -0,0 +1,5 @@
+// A map output key that belongs to one month (1-12) of the target year.
+// Implemented by RouteKey, LocationKey and QueryKey for MonthRangePartitioner.
+public interface MonthKey {
+    int getMonth();
+}
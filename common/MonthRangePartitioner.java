@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+// Month partitioner for the stage-1 jobs that scales past 12 reducers.
+//
+// With fewer than 12 reducers a month goes to (month - 1) % reducers as
+// before. Otherwise every month owns a contiguous range of reducers (one
+// each at exactly 12, so output stays one file per month) and its keys are
+// hashed across that range; every part file still holds a single month.
+// The ranges are equal unless a sample of the input has been taken (see
+// PartitionSampler), in which case busier months get more reducers.
+//
+// Salting is opt-in (-Dpartition.salt.heavy.keys=true): keys the sample
+// found to dominate their month are then salted with the map task number, so
+// their records are spread over the whole month range. A salted key appears
+// once per reducer in that month's output with a partial count/max, so the
+// monthly files no longer hold one row per key; the stage-2 jobs sum/max
+// across rows and MonthlyTopK merges the fragments, but any other reader of
+// the monthly files sees partial rows. Without it every key goes to exactly
+// one reducer and sampling only sizes the month ranges.
+public class MonthRangePartitioner<K extends MonthKey, V> extends Partitioner<K, V> implements Configurable {
+    // Rows to sample in the driver before submitting (0 = no sampling)
+    public static final String SAMPLE_ROWS = "partition.sample.rows";
+    // Reducers per month, 12 comma-separated counts (set by the sampler)
+    public static final String MONTH_REDUCERS = "partition.month.reducers";
+    // Salt the sampled heavy keys across their month's reducers
+    public static final String SALT_HEAVY_KEYS = "partition.salt.heavy.keys";
+    // hashCode()s of the keys to salt (set by the sampler)
+    public static final String HEAVY_KEYS = "partition.heavy.keys";
+
+    private static final int MONTHS = 12;
+
+    private Configuration conf;
+    private int salt;
+    private final Set<Integer> heavyKeys = new HashSet<Integer>();
+
+    // Layout cached for one partition count
+    private int partitions = -1;
+    private final int[] start = new int[MONTHS + 1];
+    private final int[] count = new int[MONTHS + 1];
+
+    // Sets this partitioner on a stage-1 job, sampling its input first if
+    // partition.sample.rows is set. Call after the input and reducers are set.
+    public static void configure(Job job) throws IOException, InterruptedException {
+        job.setPartitionerClass(MonthRangePartitioner.class);
+        int rows = job.getConfiguration().getInt(SAMPLE_ROWS, 0);
+        if (rows > 0 && job.getNumReduceTasks() > MONTHS) {
+            PartitionSampler.sample(job, rows);
+        }
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        // Map task number, so each task salts heavy keys differently
+        salt = conf.getInt("mapreduce.task.partition", 0);
+        heavyKeys.clear();
+        for (int hash : conf.getInts(HEAVY_KEYS)) {
+            heavyKeys.add(hash);
+        }
+        partitions = -1;
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public int getPartition(K key, V value, int numPartitions) {
+        int month = key.getMonth();
+        if (numPartitions < MONTHS || month < 1 || month > MONTHS) {
+            return Math.floorMod(month - 1, numPartitions);
+        }
+        if (numPartitions != partitions) {
+            layout(numPartitions);
+        }
+        int n = count[month];
+        if (n == 1) {
+            return start[month];
+        }
+        int hash = key.hashCode();
+        int h = mix(hash);
+        if (heavyKeys.contains(hash)) {
+            h += salt;
+        }
+        return start[month] + Math.floorMod(h, n);
+    }
+
+    private void layout(int numPartitions) {
+        int[] shares = conf == null ? new int[0] : conf.getInts(MONTH_REDUCERS);
+        int total = 0;
+        for (int share : shares) {
+            total += share;
+        }
+        boolean sampled = shares.length == MONTHS && total == numPartitions;
+        int next = 0;
+        for (int month = 1; month <= MONTHS; month++) {
+            count[month] = sampled ? shares[month - 1]
+                    : numPartitions / MONTHS + (month <= numPartitions % MONTHS ? 1 : 0);
+            start[month] = next;
+            next += count[month];
+        }
+        partitions = numPartitions;
+    }
+
+    // Spreads hashCode()s built from small ints over all bits (MurmurHash3 fmix32)
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
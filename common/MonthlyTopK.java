@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+// Per-month top K straight from the stage-1 count reducers.
+//
+// With -Dmonthly.topk=K, the Q1/Q4 reducers offer every (month, key, count)
+// they write to a bounded heap per month and, in cleanup(), write each
+// heap's rows to <stage1 output>/_monthly_partial. After the job, finish()
+// merges those few rows into <stage1 output>/_monthly/part-r-00000:
+//   03__-73.98712,40.75601,-73.99003,40.74502	5213
+// ranked within each month, months in order. A month spread over several
+// reducers (MonthRangePartitioner) only needs this driver-side merge, not a
+// second job. Keys salted by -Dpartition.salt.heavy.keys are counted in part
+// by several reducers: each reducer writes its fragment of them directly,
+// outside its heap, and finish() adds up rows with the same label before
+// ranking. Every other key has its full count on one reducer, so a key left
+// out of that reducer's heap is beaten by K keys at least as large and the
+// merged top K is exact. The directory is hidden from FileInputFormat, so
+// the TopK* jobs read the stage-1 output as before. Rows of a month outside
+// 01-12 (the scanner reads any two digits) are left out and counted.
+// Approximate mode (approx.heavy.hitters) is rejected: its reducer offers
+// nothing, so the monthly output would be empty.
+public class MonthlyTopK {
+    public static final String K = "monthly.topk";
+    // Set by configure() on the stage-1 job only, so a later job built from
+    // the same Configuration (e.g. the pipeline's stage 2, which reuses
+    // RouteReducer as its combiner) does not write monthly rows
+    public static final String ENABLED = "monthly.topk.output";
+    public static final String NAMED_OUTPUT = "monthly";
+    public static final String PARTIAL_DIR = "_monthly_partial";
+    public static final String OUTPUT_DIR = "_monthly";
+    public static final String COUNTER_GROUP = "Monthly top K";
+    public static final String SKIPPED_MONTHS = "Rows outside months 01-12";
+
+    private final TopKHeap[] months = new TopKHeap[13];
+    // hashCode()s of the salted keys (MonthRangePartitioner.HEAVY_KEYS)
+    private final Set<Integer> saltedKeys = new HashSet<Integer>();
+    private final MultipleOutputs<?, ?> outputs;
+    private final Text label = new Text();
+    private final IntWritable count = new IntWritable();
+    private final Counter skippedMonths;
+
+    // The reducer's own output types differ from the side output's, hence raw
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MonthlyTopK(TaskInputOutputContext<?, ?, ?, ?> context) {
+        Configuration conf = context.getConfiguration();
+        int k = conf.getInt(K, 0);
+        for (int month = 1; month <= 12; month++) {
+            months[month] = new TopKHeap(k);
+        }
+        if (conf.getBoolean(MonthRangePartitioner.SALT_HEAVY_KEYS, false)) {
+            for (int hash : conf.getInts(MonthRangePartitioner.HEAVY_KEYS)) {
+                saltedKeys.add(hash);
+            }
+        }
+        outputs = new MultipleOutputs(context);
+        skippedMonths = context.getCounter(COUNTER_GROUP, SKIPPED_MONTHS);
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    // Registers the side output; called from createJob() once the mapper
+    // and output classes are set
+    public static void configure(Job job) {
+        Configuration conf = job.getConfiguration();
+        if (conf.getInt(K, 0) > 0) {
+            if (job.getMapOutputValueClass() != job.getOutputValueClass()) {
+                // e.g. approx.heavy.hitters, whose reducer never offers a count
+                throw new IllegalArgumentException(K + " needs a job whose map output matches its output");
+            }
+            conf.setBoolean(ENABLED, true);
+            MultipleOutputs.addNamedOutput(job, NAMED_OUTPUT, TextOutputFormat.class,
+                    Text.class, IntWritable.class);
+        }
+    }
+
+    // Merges the per-reducer rows after a successful job
+    public static void finish(Job job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (!isEnabled(conf)) return;
+        Path output = FileOutputFormat.getOutputPath(job);
+        Path partial = new Path(output, PARTIAL_DIR);
+        // No reducer saw a trip
+        partial.getFileSystem(conf).mkdirs(partial);
+        TopKMerge.merge(conf, partial, new Path(output, OUTPUT_DIR),
+                conf.getInt(K, 0), "__", true);
+    }
+
+    // key.toString() is only rendered for counts that enter the heap, and
+    // for the fragments of salted keys, which are always written
+    public void offer(int month, Object key, int value) throws IOException, InterruptedException {
+        if (month < 1 || month > 12) {
+            skippedMonths.increment(1);
+            return;
+        }
+        if (!saltedKeys.isEmpty() && saltedKeys.contains(key.hashCode())) {
+            label.set(key.toString());
+            count.set(value);
+            outputs.write(NAMED_OUTPUT, label, count, PARTIAL_DIR + "/part");
+            return;
+        }
+        TopKHeap heap = months[month];
+        if (heap.accepts(value)) {
+            label.set(key.toString());
+            heap.offer(label, value);
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        for (int month = 1; month <= 12; month++) {
+            for (TopKHeap.Entry entry : months[month].toSortedList()) {
+                count.set((int) entry.getScore());
+                outputs.write(NAMED_OUTPUT, entry.getLabel(), count, PARTIAL_DIR + "/part");
+            }
+        }
+        outputs.close();
+    }
+}
@@ -0,0 +1,50 @@
+// Hash map from a packed key (see PackedKeyTable) to a double, used for
+// in-mapper max aggregation of the Q2 fares. Keys are packed the same way
+// (month, pickup, dropoff) and max() keeps the largest value seen for each
+// key, so recording a row allocates nothing.
+public class PackedKeyDoubleMap extends PackedKeyTable {
+    // Approximate heap cost of one slot (key + double value)
+    public static final int BYTES_PER_SLOT = KEY_BYTES_PER_SLOT + 8;
+
+    // Set from the PackedKeyTable constructor, see allocateValues()
+    private double[] values;
+
+    public PackedKeyDoubleMap() {
+        this(0);
+    }
+
+    public PackedKeyDoubleMap(int expectedEntries) {
+        super(expectedEntries);
+    }
+
+    public static int capacityForBytes(long bytes) {
+        return capacityForBytes(bytes, BYTES_PER_SLOT);
+    }
+
+    // Raises the value for the key to value, inserting it if absent
+    public void max(int tag, long first, long second, double value) {
+        int slot = probe(tag, first, second);
+        if (isUsed(slot)) {
+            if (value > values[slot]) values[slot] = value;
+            return;
+        }
+        values[slot] = value;
+        insert(slot, tag, first, second);
+    }
+
+    public double valueAt(int slot) {
+        return values[slot];
+    }
+
+    @Override
+    protected Object allocateValues(int capacity) {
+        double[] old = values;
+        values = new double[capacity];
+        return old;
+    }
+
+    @Override
+    protected void moveValue(Object oldValues, int from, int to) {
+        values[to] = ((double[]) oldValues)[from];
+    }
+}
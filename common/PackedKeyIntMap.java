@@ -0,0 +1,48 @@
+// Hash map from a packed key (see PackedKeyTable) to an int, used for
+// in-mapper combining of the count jobs. Counting a row allocates nothing.
+public class PackedKeyIntMap extends PackedKeyTable {
+    // Approximate heap cost of one slot (key + int value)
+    public static final int BYTES_PER_SLOT = KEY_BYTES_PER_SLOT + 4;
+
+    // Set from the PackedKeyTable constructor, see allocateValues()
+    private int[] values;
+
+    public PackedKeyIntMap() {
+        this(0);
+    }
+
+    public PackedKeyIntMap(int expectedEntries) {
+        super(expectedEntries);
+    }
+
+    public static int capacityForBytes(long bytes) {
+        return capacityForBytes(bytes, BYTES_PER_SLOT);
+    }
+
+    // Adds delta to the value for the key, inserting it with value delta if absent
+    public void add(int tag, long first, long second, int delta) {
+        int slot = probe(tag, first, second);
+        if (isUsed(slot)) {
+            values[slot] += delta;
+            return;
+        }
+        values[slot] = delta;
+        insert(slot, tag, first, second);
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    @Override
+    protected Object allocateValues(int capacity) {
+        int[] old = values;
+        values = new int[capacity];
+        return old;
+    }
+
+    @Override
+    protected void moveValue(Object oldValues, int from, int to) {
+        values[to] = ((int[]) oldValues)[from];
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.Arrays;
+
+// Open-addressing core shared by PackedKeyIntMap and PackedKeyDoubleMap.
+//
+// A key is an int tag plus two longs, which is enough to hold every stage-1
+// key without objects: RouteKey packs as (month, pickup, dropoff) and
+// LocationKey as (month/type, location, 0), with each point being the two
+// fixed-point coordinates from FixedPoint.pack(). Keys live in parallel
+// primitive arrays with linear probing; subclasses keep one value array in
+// step with them (allocateValues/moveValue) and define the update, e.g.:
+//
+//   int slot = probe(tag, first, second);
+//   if (isUsed(slot)) { values[slot] += delta; return; }
+//   values[slot] = delta;
+//   insert(slot, tag, first, second);
+//
+// Iterate with:
+//   for (int slot = 0; slot < map.capacity(); slot++)
+//       if (map.isUsed(slot)) ... map.tagAt(slot), map.valueAt(slot) ...
+public abstract class PackedKeyTable {
+    // Approximate heap cost of the key part of one slot (tag + two longs +
+    // used flag); subclasses add their value
+    protected static final int KEY_BYTES_PER_SLOT = 4 + 8 + 8 + 1;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final int MIN_CAPACITY = 1024;
+
+    private int[] tags;
+    private long[] firsts;
+    private long[] seconds;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeAt;
+
+    // Calls allocateValues() before the subclass constructor runs, so
+    // subclasses must not initialize their value array in its declaration
+    protected PackedKeyTable(int expectedEntries) {
+        allocate(tableSizeFor(expectedEntries));
+        allocateValues(tags.length);
+    }
+
+    // Largest table (a power of two, at least MIN_CAPACITY slots) whose
+    // arrays fit in the given number of bytes
+    protected static int capacityForBytes(long bytes, int bytesPerSlot) {
+        long slots = bytes / bytesPerSlot;
+        int capacity = MIN_CAPACITY;
+        while (capacity < (1 << 30) && ((long) capacity << 1) <= slots) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    // Entries a table of this capacity holds before it grows; a map built
+    // with entriesAt(capacity) expected entries starts at that capacity
+    public static int entriesAt(int capacity) {
+        return (int) (capacity * LOAD_FACTOR);
+    }
+
+    // Replaces the value array with one of the given capacity and returns
+    // the old one (null on the first call)
+    protected abstract Object allocateValues(int capacity);
+
+    // Copies a value from the old array into the current one during a resize
+    protected abstract void moveValue(Object oldValues, int from, int to);
+
+    // Slot holding the key, or the empty slot where it would be inserted
+    protected final int probe(int tag, long first, long second) {
+        int slot = hash(tag, first, second) & mask;
+        while (used[slot]) {
+            if (tags[slot] == tag && firsts[slot] == first && seconds[slot] == second) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Stores a new key in the empty slot probe() returned, after its value
+    // has been set; may grow the table
+    protected final void insert(int slot, int tag, long first, long second) {
+        used[slot] = true;
+        tags[slot] = tag;
+        firsts[slot] = first;
+        seconds[slot] = second;
+        if (++size > resizeAt) {
+            resize(tags.length << 1);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Removes all entries but keeps the table allocated for reuse
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public int capacity() {
+        return used.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public int tagAt(int slot) {
+        return tags[slot];
+    }
+
+    public long firstAt(int slot) {
+        return firsts[slot];
+    }
+
+    public long secondAt(int slot) {
+        return seconds[slot];
+    }
+
+    private void allocate(int capacity) {
+        tags = new int[capacity];
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void resize(int capacity) {
+        int[] oldTags = tags;
+        long[] oldFirsts = firsts;
+        long[] oldSeconds = seconds;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        Object oldValues = allocateValues(capacity);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) continue;
+            int slot = hash(oldTags[i], oldFirsts[i], oldSeconds[i]) & mask;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            tags[slot] = oldTags[i];
+            firsts[slot] = oldFirsts[i];
+            seconds[slot] = oldSeconds[i];
+            moveValue(oldValues, i, slot);
+        }
+    }
+
+    private static int tableSizeFor(int expectedEntries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedEntries && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    // 64-bit finalizer mix (MurmurHash3) over the three key parts
+    static int hash(int tag, long first, long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        h = h * 0x9E3779B97F4A7C15L + tag;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
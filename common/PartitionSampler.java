@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+// Samples a stage-1 job's map output in the driver for MonthRangePartitioner.
+//
+// Runs the job's own mapper over partition.sample.rows input rows (see
+// MapOutputSample) with in-mapper combining off, so every output record is
+// one trip, and counts the records per month and per key. It then sets
+//   partition.month.reducers  reducers per month, proportional to its records
+//   partition.heavy.keys      keys holding more than partition.heavy.share of
+//                             what one of their month's reducers would get,
+//                             only with partition.salt.heavy.keys=true
+public final class PartitionSampler {
+    public static final String HEAVY_SHARE = "partition.heavy.share";
+    public static final float DEFAULT_HEAVY_SHARE = 0.5f;
+
+    private static final int MAX_HEAVY_KEYS = 1000;
+    private static final int MONTHS = 12;
+
+    private PartitionSampler() {
+    }
+
+    public static void sample(Job job, int rows) throws IOException, InterruptedException {
+        Configuration conf = new Configuration(job.getConfiguration());
+        conf.setBoolean(InMapperCombining.ENABLED, false);
+
+        Counter counter = new Counter();
+        MapOutputSample.run(job, conf, rows, counter);
+
+        setMonthReducers(job, counter.monthRecords);
+        if (job.getConfiguration().getBoolean(MonthRangePartitioner.SALT_HEAVY_KEYS, false)) {
+            setHeavyKeys(job, counter);
+        } else {
+            job.getConfiguration().unset(MonthRangePartitioner.HEAVY_KEYS);
+        }
+    }
+
+    // One reducer per month, the rest handed out by share of the sampled
+    // records (largest remainder first)
+    private static void setMonthReducers(Job job, long[] monthRecords) {
+        int reducers = job.getNumReduceTasks();
+        long total = 0;
+        for (int month = 1; month <= MONTHS; month++) {
+            total += monthRecords[month];
+        }
+        int[] shares = new int[MONTHS];
+        double[] remainders = new double[MONTHS];
+        int extra = reducers - MONTHS;
+        int assigned = 0;
+        for (int month = 1; month <= MONTHS; month++) {
+            double exact = total == 0 ? extra / (double) MONTHS : extra * monthRecords[month] / (double) total;
+            shares[month - 1] = 1 + (int) exact;
+            remainders[month - 1] = exact - (int) exact;
+            assigned += shares[month - 1];
+        }
+        while (assigned < reducers) {
+            int best = 0;
+            for (int i = 1; i < MONTHS; i++) {
+                if (remainders[i] > remainders[best]) best = i;
+            }
+            shares[best]++;
+            remainders[best] = -1;
+            assigned++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int share : shares) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(share);
+        }
+        job.getConfiguration().set(MonthRangePartitioner.MONTH_REDUCERS, sb.toString());
+    }
+
+    private static void setHeavyKeys(Job job, Counter counter) {
+        Configuration conf = job.getConfiguration();
+        float heavyShare = conf.getFloat(HEAVY_SHARE, DEFAULT_HEAVY_SHARE);
+        int[] shares = conf.getInts(MonthRangePartitioner.MONTH_REDUCERS);
+        StringBuilder sb = new StringBuilder();
+        int heavy = 0;
+        for (int month = 1; month <= MONTHS && heavy < MAX_HEAVY_KEYS; month++) {
+            if (shares[month - 1] < 2) continue;
+            double perReducer = counter.monthRecords[month] / (double) shares[month - 1];
+            for (Map.Entry<Integer, long[]> entry : counter.keyRecords.get(month).entrySet()) {
+                if (entry.getValue()[0] > heavyShare * perReducer && heavy < MAX_HEAVY_KEYS) {
+                    if (sb.length() > 0) sb.append(',');
+                    sb.append(entry.getKey());
+                    heavy++;
+                }
+            }
+        }
+        conf.set(MonthRangePartitioner.HEAVY_KEYS, sb.toString());
+        if (heavy > 0) {
+            System.err.println("WARNING: salting " + heavy + " heavy keys across their month's reducers;"
+                    + " their monthly rows in " + job.getJobName() + " are partial counts/maxima");
+        }
+    }
+
+    // Map output sink counting records per month and per key hashCode()
+    private static class Counter extends RecordWriter<MonthKey, Object> {
+        private final long[] monthRecords = new long[MONTHS + 1];
+        private final List<Map<Integer, long[]>> keyRecords = new ArrayList<Map<Integer, long[]>>();
+
+        Counter() {
+            for (int month = 0; month <= MONTHS; month++) {
+                keyRecords.add(new HashMap<Integer, long[]>());
+            }
+        }
+
+        @Override
+        public void write(MonthKey key, Object value) {
+            int month = key.getMonth();
+            if (month < 1 || month > MONTHS) return;
+            monthRecords[month]++;
+            long[] records = keyRecords.get(month).get(key.hashCode());
+            if (records == null) {
+                records = new long[1];
+                keyRecords.get(month).put(key.hashCode(), records);
+            }
+            records[0]++;
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// Sidecar index of min/max pickup time per byte chunk of a train.csv file.
+//
+// Written once by PickupTimeIndexer to <dir>/_<file>.index/ (hidden from
+// FileInputFormat): a "meta" file with the indexed file's length,
+// modification time and chunk size, plus "chunk<TAB>min<TAB>max" lines in
+// epoch seconds. A chunk covers the lines that start inside it; chunks
+// without a line of known year have no entry. PrunedTextInputFormat uses it
+// to skip splits that cannot hold a trip of the target year.
+public final class PickupTimeIndex {
+    public static final String CHUNK_BYTES = "pickup.index.chunk.bytes";
+    public static final long DEFAULT_CHUNK_BYTES = 16L * 1024 * 1024;
+    public static final String META = "meta";
+
+    private final long chunkBytes;
+    private final long[] min;
+    private final long[] max;
+
+    private PickupTimeIndex(long chunkBytes, long fileLength) {
+        this.chunkBytes = chunkBytes;
+        int chunks = (int) (fileLength / chunkBytes + 1);
+        min = new long[chunks];
+        max = new long[chunks];
+        Arrays.fill(min, Long.MAX_VALUE);
+        Arrays.fill(max, Long.MIN_VALUE);
+    }
+
+    public static Path sidecar(Path file) {
+        return new Path(file.getParent(), "_" + file.getName() + ".index");
+    }
+
+    public static void writeMeta(FileSystem fs, Path file, FileStatus indexed, long chunkBytes)
+            throws IOException {
+        try (Writer writer = new OutputStreamWriter(
+                fs.create(new Path(sidecar(file), META)), StandardCharsets.UTF_8)) {
+            writer.write(indexed.getLen() + "\t" + indexed.getModificationTime() + "\t" + chunkBytes + "\n");
+        }
+    }
+
+    // The index of a file, or null if it has none or the file changed since
+    public static PickupTimeIndex load(FileSystem fs, Path file) throws IOException {
+        Path dir = sidecar(file);
+        Path metaPath = new Path(dir, META);
+        if (!fs.exists(metaPath)) return null;
+
+        FileStatus status = fs.getFileStatus(file);
+        String[] meta = readLine(fs, metaPath).split("\t");
+        if (Long.parseLong(meta[0]) != status.getLen()
+                || Long.parseLong(meta[1]) != status.getModificationTime()) {
+            return null;
+        }
+
+        PickupTimeIndex index = new PickupTimeIndex(Long.parseLong(meta[2]), status.getLen());
+        for (FileStatus part : fs.listStatus(dir)) {
+            if (!part.getPath().getName().startsWith("part-")) continue;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(fs.open(part.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    int chunk = Integer.parseInt(fields[0]);
+                    index.min[chunk] = Long.parseLong(fields[1]);
+                    index.max[chunk] = Long.parseLong(fields[2]);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static String readLine(FileSystem fs, Path path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        }
+    }
+
+    // Whether a line starting in [start, end] may have a pickup time in
+    // [from, to]. A split reads the lines starting after its first byte up to
+    // and including its end offset, so this covers all of them.
+    public boolean mayContain(long start, long end, long from, long to) {
+        int first = (int) (start / chunkBytes);
+        int last = (int) Math.min(end / chunkBytes, min.length - 1);
+        for (int chunk = first; chunk <= last; chunk++) {
+            if (min[chunk] <= to && max[chunk] >= from) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+// TextInputFormat that drops splits which cannot contain a trip of the
+// target year (-Dtaxi.target.year, 2013 by default).
+//
+// Each split is checked against the PickupTimeIndex of its file; files
+// without an up-to-date index keep all their splits. How much this saves
+// depends on how clustered pickup times are in the file: a time-ordered CSV
+// leaves roughly one year's worth of map tasks, a shuffled one none.
+public class PrunedTextInputFormat extends TextInputFormat {
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        return prune(job, super.getSplits(job));
+    }
+
+    // The file splits that may hold a trip of the target year; shared with
+    // MappedCsvInputFormat
+    static List<InputSplit> prune(JobContext job, List<InputSplit> splits) throws IOException {
+        Configuration conf = job.getConfiguration();
+        int year = TargetYear.get(conf);
+        long from = TargetYear.firstSecond(year);
+        long to = TargetYear.firstSecond(year + 1) - 1;
+
+        Map<Path, PickupTimeIndex> indexes = new HashMap<Path, PickupTimeIndex>();
+        List<InputSplit> kept = new ArrayList<InputSplit>(splits.size());
+        for (InputSplit split : splits) {
+            FileSplit fileSplit = (FileSplit) split;
+            Path file = fileSplit.getPath();
+            if (!indexes.containsKey(file)) {
+                indexes.put(file, PickupTimeIndex.load(file.getFileSystem(conf), file));
+            }
+            PickupTimeIndex index = indexes.get(file);
+            long start = fileSplit.getStart();
+            if (index == null || index.mayContain(start, start + fileSplit.getLength(), from, to)) {
+                kept.add(split);
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+// Binary month + route key used by the Q1/Q2 stage-1 jobs.
+//
+// Replaces the "MM__plon,plat,dlon,dlat" Text key: the month is one byte and
+// the four coordinates are fixed-point ints at 5 decimals, so every key is 17
+// bytes on the wire instead of ~45 characters. toString() renders the old
+// text form, so stage-1 output files (and the TopK* jobs reading them) are
+// unchanged; render() writes the same bytes without a String for
+// StageTextOutputFormat. Month ALL_MONTHS (0) marks a yearly key and renders without the
+// month prefix.
+public class RouteKey implements WritableComparable<RouteKey>, MonthKey, TextKey {
+    public static final int DECIMALS = 5;
+    public static final int SERIALIZED_SIZE = 1 + 4 * 4;
+    public static final int ALL_MONTHS = 0;
+
+    private byte month;
+    private int pickupLon;
+    private int pickupLat;
+    private int dropoffLon;
+    private int dropoffLat;
+
+    public RouteKey() {
+    }
+
+    public void set(int month, int pickupLon, int pickupLat, int dropoffLon, int dropoffLat) {
+        this.month = (byte) month;
+        this.pickupLon = pickupLon;
+        this.pickupLat = pickupLat;
+        this.dropoffLon = dropoffLon;
+        this.dropoffLat = dropoffLat;
+    }
+
+    // Pickup and dropoff given as FixedPoint.pack()ed points
+    public void set(int month, long pickup, long dropoff) {
+        set(month, FixedPoint.lon(pickup), FixedPoint.lat(pickup),
+                FixedPoint.lon(dropoff), FixedPoint.lat(dropoff));
+    }
+
+    public int getMonth() {
+        return month;
+    }
+
+    public int getPickupLon() {
+        return pickupLon;
+    }
+
+    public int getPickupLat() {
+        return pickupLat;
+    }
+
+    public int getDropoffLon() {
+        return dropoffLon;
+    }
+
+    public int getDropoffLat() {
+        return dropoffLat;
+    }
+
+    public long getPickup() {
+        return FixedPoint.pack(pickupLon, pickupLat);
+    }
+
+    public long getDropoff() {
+        return FixedPoint.pack(dropoffLon, dropoffLat);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(month);
+        out.writeInt(pickupLon);
+        out.writeInt(pickupLat);
+        out.writeInt(dropoffLon);
+        out.writeInt(dropoffLat);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        month = in.readByte();
+        pickupLon = in.readInt();
+        pickupLat = in.readInt();
+        dropoffLon = in.readInt();
+        dropoffLat = in.readInt();
+    }
+
+    // Month first, then the coordinates in order
+    @Override
+    public int compareTo(RouteKey other) {
+        int cmp = Integer.compare(month, other.month);
+        if (cmp != 0) return cmp;
+        cmp = Integer.compare(pickupLon, other.pickupLon);
+        if (cmp != 0) return cmp;
+        cmp = Integer.compare(pickupLat, other.pickupLat);
+        if (cmp != 0) return cmp;
+        cmp = Integer.compare(dropoffLon, other.dropoffLon);
+        if (cmp != 0) return cmp;
+        return Integer.compare(dropoffLat, other.dropoffLat);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RouteKey)) return false;
+        RouteKey other = (RouteKey) o;
+        return month == other.month
+                && pickupLon == other.pickupLon && pickupLat == other.pickupLat
+                && dropoffLon == other.dropoffLon && dropoffLat == other.dropoffLat;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = month;
+        h = 31 * h + pickupLon;
+        h = 31 * h + pickupLat;
+        h = 31 * h + dropoffLon;
+        return 31 * h + dropoffLat;
+    }
+
+    // "03__-73.97700,40.74500,-73.98100,40.74300"
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(48);
+        if (month != ALL_MONTHS) {
+            if (month < 10) sb.append('0');
+            sb.append(month).append("__");
+        }
+        return appendRoute(sb).toString();
+    }
+
+    // Just the route: "-73.97700,40.74500,-73.98100,40.74300"
+    public StringBuilder appendRoute(StringBuilder sb) {
+        FixedPoint.append(sb, pickupLon, DECIMALS).append(',');
+        FixedPoint.append(sb, pickupLat, DECIMALS).append(',');
+        FixedPoint.append(sb, dropoffLon, DECIMALS).append(',');
+        return FixedPoint.append(sb, dropoffLat, DECIMALS);
+    }
+
+    @Override
+    public int render(byte[] buffer, int pos) {
+        pos = TextKey.renderMonth(buffer, pos, month);
+        pos = FixedPoint.render(buffer, pos, pickupLon, DECIMALS);
+        buffer[pos++] = ',';
+        pos = FixedPoint.render(buffer, pos, pickupLat, DECIMALS);
+        buffer[pos++] = ',';
+        pos = FixedPoint.render(buffer, pos, dropoffLon, DECIMALS);
+        buffer[pos++] = ',';
+        return FixedPoint.render(buffer, pos, dropoffLat, DECIMALS);
+    }
+
+    // Sorts serialized keys without deserializing them
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(RouteKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(b1[s1], b2[s2]);
+            if (cmp != 0) return cmp;
+            for (int offset = 1; offset < SERIALIZED_SIZE; offset += 4) {
+                cmp = Integer.compare(readInt(b1, s1 + offset), readInt(b2, s2 + offset));
+                if (cmp != 0) return cmp;
+            }
+            return 0;
+        }
+    }
+
+    static {
+        WritableComparator.define(RouteKey.class, new Comparator());
+    }
+}
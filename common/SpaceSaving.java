@@ -0,0 +1,280 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.hadoop.io.Writable;
+
+// Space-Saving summary of the most frequent (long, long) keys.
+//
+// Tracks at most `capacity` keys. A new key arriving when the summary is full
+// replaces the key with the smallest count and inherits that count as its
+// error, so every tracked count is an overestimate by at most its error and
+// any key more frequent than total / capacity is tracked. Entries sit in a
+// min-heap on count with an open-addressing index on the key, so an update
+// costs O(log capacity) and allocates nothing.
+//
+// merge() follows the mergeable-summaries rule: a key missing from one side
+// is assumed to have that side's minimum count (0 if it is not full), and the
+// `capacity` largest combined counts are kept.
+public class SpaceSaving implements Writable {
+    private int capacity;
+    private int size;
+    private long[] firsts;
+    private long[] seconds;
+    private long[] counts;
+    private long[] errors;
+    // heap[i] is an entry id, position[id] its place in the heap
+    private int[] heap;
+    private int[] position;
+    // Entry id + 1 by key hash, 0 when empty
+    private int[] index;
+    private int indexMask;
+
+    public SpaceSaving() {
+    }
+
+    public SpaceSaving(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.size = 0;
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        position = new int[capacity];
+        int tableSize = 2;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        index = new int[tableSize];
+        indexMask = tableSize - 1;
+    }
+
+    public void offer(long first, long second, long delta) {
+        int id = find(first, second);
+        if (id >= 0) {
+            counts[id] += delta;
+            siftDown(position[id]);
+            return;
+        }
+        if (size < capacity) {
+            id = size++;
+            set(id, first, second, delta, 0);
+            heap[id] = id;
+            position[id] = id;
+            siftUp(id);
+            return;
+        }
+        // Replace the least frequent key, which hands over its count as error
+        id = heap[0];
+        unindex(id);
+        long min = counts[id];
+        set(id, first, second, min + delta, min);
+        siftDown(0);
+    }
+
+    public void merge(SpaceSaving other) {
+        long thisMin = size < capacity ? 0 : minCount();
+        long otherMin = other.size < other.capacity ? 0 : other.minCount();
+        int total = size + other.size;
+        long[] mergedFirsts = new long[total];
+        long[] mergedSeconds = new long[total];
+        final long[] mergedCounts = new long[total];
+        long[] mergedErrors = new long[total];
+        int n = 0;
+        for (int id = 0; id < size; id++) {
+            int match = other.find(firsts[id], seconds[id]);
+            mergedFirsts[n] = firsts[id];
+            mergedSeconds[n] = seconds[id];
+            mergedCounts[n] = counts[id] + (match >= 0 ? other.counts[match] : otherMin);
+            mergedErrors[n] = errors[id] + (match >= 0 ? other.errors[match] : otherMin);
+            n++;
+        }
+        for (int id = 0; id < other.size; id++) {
+            if (find(other.firsts[id], other.seconds[id]) >= 0) continue;
+            mergedFirsts[n] = other.firsts[id];
+            mergedSeconds[n] = other.seconds[id];
+            mergedCounts[n] = other.counts[id] + thisMin;
+            mergedErrors[n] = other.errors[id] + thisMin;
+            n++;
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(mergedCounts[b], mergedCounts[a]);
+            }
+        });
+
+        clear();
+        for (int i = 0; i < Math.min(n, capacity); i++) {
+            int m = order[i];
+            set(size, mergedFirsts[m], mergedSeconds[m], mergedCounts[m], mergedErrors[m]);
+            size++;
+        }
+        heapify();
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(index, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // Entries are numbered 0 .. size() - 1 in no particular order
+    public long firstAt(int id) {
+        return firsts[id];
+    }
+
+    public long secondAt(int id) {
+        return seconds[id];
+    }
+
+    // Upper bound on the key's count
+    public long countAt(int id) {
+        return counts[id];
+    }
+
+    // countAt(id) - errorAt(id) is a lower bound on the key's count
+    public long errorAt(int id) {
+        return errors[id];
+    }
+
+    private long minCount() {
+        return size == 0 ? 0 : counts[heap[0]];
+    }
+
+    private void set(int id, long first, long second, long count, long error) {
+        firsts[id] = first;
+        seconds[id] = second;
+        counts[id] = count;
+        errors[id] = error;
+        int slot = slot(first, second);
+        while (index[slot] != 0) {
+            slot = (slot + 1) & indexMask;
+        }
+        index[slot] = id + 1;
+    }
+
+    private int find(long first, long second) {
+        int slot = slot(first, second);
+        while (index[slot] != 0) {
+            int id = index[slot] - 1;
+            if (firsts[id] == first && seconds[id] == second) {
+                return id;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        return -1;
+    }
+
+    // Removes the id from the index, shifting later probes back into the gap
+    private void unindex(int id) {
+        int slot = slot(firsts[id], seconds[id]);
+        while (index[slot] != id + 1) {
+            slot = (slot + 1) & indexMask;
+        }
+        int gap = slot;
+        int next = (gap + 1) & indexMask;
+        while (index[next] != 0) {
+            int moved = index[next] - 1;
+            int home = slot(firsts[moved], seconds[moved]);
+            // Move the entry back if its home is not in (gap, next]
+            if (((next - home) & indexMask) >= ((next - gap) & indexMask)) {
+                index[gap] = index[next];
+                gap = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+        index[gap] = 0;
+    }
+
+    private int slot(long first, long second) {
+        return PackedKeyTable.hash(0, first, second) & indexMask;
+    }
+
+    private void heapify() {
+        for (int i = 0; i < size; i++) {
+            heap[i] = i;
+            position[i] = i;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (counts[heap[parent]] <= counts[heap[i]]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && counts[heap[left]] < counts[heap[smallest]]) smallest = left;
+            if (right < size && counts[heap[right]] < counts[heap[smallest]]) smallest = right;
+            if (smallest == i) return;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int a = heap[i];
+        int b = heap[j];
+        heap[i] = b;
+        heap[j] = a;
+        position[b] = i;
+        position[a] = j;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(size);
+        for (int id = 0; id < size; id++) {
+            out.writeLong(firsts[id]);
+            out.writeLong(seconds[id]);
+            out.writeLong(counts[id]);
+            out.writeLong(errors[id]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int newCapacity = in.readInt();
+        if (firsts == null || newCapacity != capacity) {
+            allocate(newCapacity);
+        } else {
+            clear();
+        }
+        int entries = in.readInt();
+        for (int id = 0; id < entries; id++) {
+            set(id, in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        }
+        size = entries;
+        heapify();
+    }
+}
@@ -0,0 +1,185 @@
+import org.apache.hadoop.conf.Configuration;
+
+// Maps a (lon, lat) point to the cell it is counted in.
+//
+// A cell is identified by its centre as a FixedPoint.pack()ed point at the
+// key's decimals, so RouteKey/LocationKey, PackedKeyIntMap and the text
+// output work unchanged whichever quantizer is picked with
+// -Dspatial.quantizer:
+//   round    (default) the point rounded like "%.5f"/"%.4f", as before
+//   grid     square cells of spatial.grid.degrees (default 0.001)
+//   geohash  geohash cells of spatial.geohash.precision characters (default 7,
+//            about 150 m)
+//   hex      hexagons of spatial.hex.degrees centre-to-corner (default 0.001),
+//            laid out on longitude scaled by cos(spatial.hex.latitude) so
+//            they are close to regular around NYC
+// Cells smaller than the key resolution (10^-decimals) share a centre and
+// therefore merge. Points that cannot be placed (NaN, out of range) throw,
+// like FixedPoint.quantize() does, and the mappers skip the row.
+public interface SpatialQuantizer {
+    String TYPE = "spatial.quantizer";
+    String GRID_DEGREES = "spatial.grid.degrees";
+    String GEOHASH_PRECISION = "spatial.geohash.precision";
+    String HEX_DEGREES = "spatial.hex.degrees";
+    String HEX_LATITUDE = "spatial.hex.latitude";
+
+    // FixedPoint.pack()ed centre of the cell holding the point
+    long cell(double lon, double lat);
+
+    default long pickup(TripRow row) {
+        return cell(row.pickupLongitude(), row.pickupLatitude());
+    }
+
+    default long dropoff(TripRow row) {
+        return cell(row.dropoffLongitude(), row.dropoffLatitude());
+    }
+
+    static SpatialQuantizer get(Configuration conf, int decimals) {
+        String type = conf.getTrimmed(TYPE, "round");
+        switch (type) {
+            case "round":
+                return new Rounding(decimals);
+            case "grid":
+                return new Grid(decimals, conf.getDouble(GRID_DEGREES, 0.001));
+            case "geohash":
+                return new Geohash(decimals, conf.getInt(GEOHASH_PRECISION, 7));
+            case "hex":
+                return new Hex(decimals, conf.getDouble(HEX_DEGREES, 0.001),
+                        conf.getDouble(HEX_LATITUDE, 40.75));
+            default:
+                throw new IllegalArgumentException("Unknown " + TYPE + ": " + type);
+        }
+    }
+
+    // Degrees to fixed point, rounding half-up like FixedPoint.quantize()
+    static int scaled(double degrees, double scale) {
+        double value = Math.floor(degrees * scale + 0.5);
+        if (!(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)) {
+            throw new ArithmeticException("Coordinate out of range: " + degrees);
+        }
+        return (int) value;
+    }
+
+    class Rounding implements SpatialQuantizer {
+        private final int decimals;
+
+        Rounding(int decimals) {
+            this.decimals = decimals;
+        }
+
+        @Override
+        public long cell(double lon, double lat) {
+            return FixedPoint.pack(FixedPoint.quantize(lon, decimals), FixedPoint.quantize(lat, decimals));
+        }
+
+        // Straight from the CSV text when the row is a TripCsvScanner
+        @Override
+        public long pickup(TripRow row) {
+            return row.pickupPoint(decimals);
+        }
+
+        @Override
+        public long dropoff(TripRow row) {
+            return row.dropoffPoint(decimals);
+        }
+    }
+
+    // Square cells aligned to multiples of the cell size
+    class Grid implements SpatialQuantizer {
+        private final double scale;
+        private final double degrees;
+
+        Grid(int decimals, double degrees) {
+            if (!(degrees > 0)) {
+                throw new IllegalArgumentException(GRID_DEGREES + " must be positive: " + degrees);
+            }
+            this.scale = Math.pow(10, decimals);
+            this.degrees = degrees;
+        }
+
+        @Override
+        public long cell(double lon, double lat) {
+            return FixedPoint.pack(scaled(centre(lon), scale), scaled(centre(lat), scale));
+        }
+
+        private double centre(double value) {
+            return (Math.floor(value / degrees) + 0.5) * degrees;
+        }
+    }
+
+    // Standard geohash bisection: bits alternate longitude, latitude
+    class Geohash implements SpatialQuantizer {
+        private final double scale;
+        private final int bits;
+
+        Geohash(int decimals, int precision) {
+            if (precision < 1 || precision > 12) {
+                throw new IllegalArgumentException(GEOHASH_PRECISION + " must be 1-12: " + precision);
+            }
+            this.scale = Math.pow(10, decimals);
+            this.bits = precision * 5;
+        }
+
+        @Override
+        public long cell(double lon, double lat) {
+            if (!(lon >= -180 && lon <= 180 && lat >= -90 && lat <= 90)) {
+                throw new ArithmeticException("Point outside the geohash range: " + lon + "," + lat);
+            }
+            double minLon = -180, maxLon = 180;
+            double minLat = -90, maxLat = 90;
+            for (int bit = 0; bit < bits; bit++) {
+                if ((bit & 1) == 0) {
+                    double mid = (minLon + maxLon) / 2;
+                    if (lon >= mid) minLon = mid; else maxLon = mid;
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (lat >= mid) minLat = mid; else maxLat = mid;
+                }
+            }
+            return FixedPoint.pack(scaled((minLon + maxLon) / 2, scale), scaled((minLat + maxLat) / 2, scale));
+        }
+    }
+
+    // Pointy-top hexagons in axial coordinates with cube rounding
+    class Hex implements SpatialQuantizer {
+        private static final double SQRT3 = Math.sqrt(3);
+
+        private final double scale;
+        private final double size;
+        private final double lonFactor;
+
+        Hex(int decimals, double size, double latitude) {
+            if (!(size > 0)) {
+                throw new IllegalArgumentException(HEX_DEGREES + " must be positive: " + size);
+            }
+            this.scale = Math.pow(10, decimals);
+            this.size = size;
+            this.lonFactor = Math.cos(Math.toRadians(latitude));
+        }
+
+        @Override
+        public long cell(double lon, double lat) {
+            double x = lon * lonFactor;
+            double q = (SQRT3 / 3 * x - lat / 3) / size;
+            double r = (2.0 / 3 * lat) / size;
+
+            // Round the cube coordinates (q, r, -q-r), fixing the one that moved most
+            double s = -q - r;
+            double rq = Math.rint(q);
+            double rr = Math.rint(r);
+            double rs = Math.rint(s);
+            double dq = Math.abs(rq - q);
+            double dr = Math.abs(rr - r);
+            double ds = Math.abs(rs - s);
+            if (dq > dr && dq > ds) {
+                rq = -rr - rs;
+            } else if (dr > ds) {
+                rr = -rq - rs;
+            }
+
+            double centreX = size * SQRT3 * (rq + rr / 2);
+            double centreLat = size * 1.5 * rr;
+            return FixedPoint.pack(scaled(centreX / lonFactor, scale), scaled(centreLat, scale));
+        }
+    }
+}
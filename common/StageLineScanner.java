@@ -0,0 +1,102 @@
+import org.apache.hadoop.io.Text;
+
+// Zero-copy scanner for one line of stage-1 (or aggregate job) text output,
+// as read by the TopK* mappers.
+//
+// Line layout: "<key><TAB><value>[ more]", with a key made of "__"-separated
+// fields, e.g. "03__PICKUP__-73.9770,40.7450<TAB>1425". scan() finds the
+// first two whitespace-separated tokens like trim().split("\\s+") did, and
+// field() / fieldEnd() locate the key fields like split("__"), so a mapper
+// can copy a field into a reused Text and parse the value in place instead of
+// building a String, two String[] and the substrings for every row.
+public final class StageLineScanner {
+    private static final long INT_LIMIT = Integer.MAX_VALUE;
+
+    private byte[] bytes;
+    private int keyStart;
+    private int keyEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    // Returns false for empty lines and lines without a value token
+    public boolean scan(Text line) {
+        bytes = line.getBytes();
+        int end = line.getLength();
+        int i = 0;
+        while (i < end && isSpace(bytes[i])) i++;
+        keyStart = i;
+        while (i < end && !isSpace(bytes[i])) i++;
+        keyEnd = i;
+        while (i < end && isSpace(bytes[i])) i++;
+        valueStart = i;
+        while (i < end && !isSpace(bytes[i])) i++;
+        valueEnd = i;
+        return keyEnd > keyStart && valueEnd > valueStart;
+    }
+
+    // ASCII whitespace and control characters; bytes of multi-byte UTF-8
+    // characters are negative and never count
+    private static boolean isSpace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int keyStart() {
+        return keyStart;
+    }
+
+    public int keyEnd() {
+        return keyEnd;
+    }
+
+    // Start of the n-th (0-based) "__"-separated key field, or -1 if the key
+    // has fewer fields
+    public int field(int n) {
+        int pos = keyStart;
+        for (int i = 0; i < n; i++) {
+            pos = fieldEnd(pos);
+            if (pos == keyEnd) return -1;
+            pos += 2;
+        }
+        return pos;
+    }
+
+    // End of the key field starting at `start`: the next "__" or the key end
+    public int fieldEnd(int start) {
+        for (int i = start; i + 1 < keyEnd; i++) {
+            if (bytes[i] == '_' && bytes[i + 1] == '_') return i;
+        }
+        return keyEnd;
+    }
+
+    // Copies key bytes [start, end) into a reused Text
+    public void copy(int start, int end, Text target) {
+        target.set(bytes, start, end - start);
+    }
+
+    // The value token as Integer.parseInt would read it
+    public int valueInt() {
+        int i = valueStart;
+        boolean negative = bytes[i] == '-';
+        if (negative || bytes[i] == '+') i++;
+        if (i == valueEnd) throw new NumberFormatException("No digits in value");
+        long value = 0;
+        for (; i < valueEnd; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Not an int value");
+            value = value * 10 + digit;
+            if (value > INT_LIMIT + 1) throw new NumberFormatException("Value out of int range");
+        }
+        if (negative) value = -value;
+        if (value > INT_LIMIT) throw new NumberFormatException("Value out of int range");
+        return (int) value;
+    }
+
+    // The value token as Double.parseDouble would read it
+    public double valueDouble() {
+        return TripCsvScanner.parseDouble(bytes, valueStart, valueEnd);
+    }
+}
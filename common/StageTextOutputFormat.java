@@ -0,0 +1,117 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+// TextOutputFormat for the stage-1 jobs that writes rows without Strings.
+//
+// TextOutputFormat writes every key and value that is not a Text through
+// toString(), which for a RouteKey/LocationKey costs a StringBuilder, a
+// String and its UTF-8 byte[] per output row, plus another String for an
+// IntWritable count or DoubleWritable fare. This writer renders TextKey keys,
+// IntWritable values and whole-cent DoubleWritable values (train.csv fares
+// are in cents) into one reused buffer instead; the bytes, and so the files
+// the TopK* jobs read, are the same. Anything else, such as FareStats or a
+// fare that is not a whole number of cents, still goes through toString().
+// Same separator and output compression settings as TextOutputFormat.
+public class StageTextOutputFormat<K, V> extends TextOutputFormat<K, V> {
+
+    @Override
+    public RecordWriter<K, V> getRecordWriter(TaskAttemptContext job) throws IOException, InterruptedException {
+        Configuration conf = job.getConfiguration();
+        String separator = conf.get(SEPARATOR, "\t");
+        CompressionCodec codec = null;
+        String extension = "";
+        if (getCompressOutput(job)) {
+            Class<? extends CompressionCodec> codecClass = getOutputCompressorClass(job, GzipCodec.class);
+            codec = ReflectionUtils.newInstance(codecClass, conf);
+            extension = codec.getDefaultExtension();
+        }
+        Path file = getDefaultWorkFile(job, extension);
+        FileSystem fs = file.getFileSystem(conf);
+        FSDataOutputStream fileOut = fs.create(file, false);
+        if (codec != null) {
+            return new Writer<K, V>(new DataOutputStream(codec.createOutputStream(fileOut)), separator);
+        }
+        return new Writer<K, V>(fileOut, separator);
+    }
+
+    protected static class Writer<K, V> extends LineRecordWriter<K, V> {
+        private static final byte NEWLINE = '\n';
+
+        private final byte[] separator;
+        private final byte[] buffer = new byte[TextKey.MAX_TEXT_BYTES];
+
+        public Writer(DataOutputStream out, String separator) {
+            super(out, separator);
+            this.separator = separator.getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Same rules as LineRecordWriter: NullWritable or null keys and
+        // values are left out, along with the separator
+        @Override
+        public synchronized void write(K key, V value) throws IOException {
+            boolean nullKey = key == null || key instanceof NullWritable;
+            boolean nullValue = value == null || value instanceof NullWritable;
+            if (nullKey && nullValue) return;
+            if (!nullKey) writeObject(key);
+            if (!nullKey && !nullValue) out.write(separator);
+            if (!nullValue) writeObject(value);
+            out.write(NEWLINE);
+        }
+
+        private void writeObject(Object o) throws IOException {
+            if (o instanceof Text) {
+                Text text = (Text) o;
+                out.write(text.getBytes(), 0, text.getLength());
+            } else if (o instanceof TextKey) {
+                out.write(buffer, 0, ((TextKey) o).render(buffer, 0));
+            } else if (o instanceof IntWritable) {
+                out.write(buffer, 0, FixedPoint.render(buffer, 0, ((IntWritable) o).get(), 0));
+            } else if (o instanceof DoubleWritable) {
+                int end = renderCents(((DoubleWritable) o).get());
+                if (end > 0) {
+                    out.write(buffer, 0, end);
+                } else {
+                    out.write(o.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                out.write(o.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // Double.toString() of a whole number of cents below 10^7 ("52.5",
+        // "12.35", "7.0"), or -1 for any other value
+        private int renderCents(double value) {
+            if (!(Math.abs(value) < 1e7)) return -1;
+            long cents = Math.round(value * 100);
+            if (cents / 100.0 != value) return -1;
+            int pos = 0;
+            if (value < 0 || (value == 0 && 1 / value < 0)) {
+                buffer[pos++] = '-';
+                cents = -cents;
+            }
+            pos = FixedPoint.render(buffer, pos, (int) (cents / 100), 0);
+            buffer[pos++] = '.';
+            int fraction = (int) (cents % 100);
+            buffer[pos++] = (byte) ('0' + fraction / 10);
+            if (fraction % 10 != 0) {
+                buffer[pos++] = (byte) ('0' + fraction % 10);
+            }
+            return pos;
+        }
+    }
+}
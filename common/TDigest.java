@@ -0,0 +1,218 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// Merging t-digest for approximate quantiles of a stream of doubles.
+//
+// Values are kept as weighted centroids sorted by mean. New values and the
+// centroids of merged digests go to an unsorted buffer; when it fills up
+// everything is sorted and adjacent centroids are merged as long as the
+// merged weight stays within the size limit of the arcsine scale function
+// k(q) = compression / (2 pi) * asin(2q - 1). That limit keeps centroids
+// near q = 0 and q = 1 small, so tail quantiles such as p99 stay accurate,
+// and bounds a digest to about `compression` centroids however many values
+// went in. Digests merge by adding each other's centroids, so mappers,
+// combiners and reducers can all summarize their share of the values.
+public class TDigest implements Writable {
+    public static final int DEFAULT_COMPRESSION = 100;
+    // Buffered entries per unit of compression before a merge pass
+    private static final int BUFFER_FACTOR = 5;
+
+    private int compression;
+    private double[] means;
+    private long[] weights;
+    // Centroids [0, size) are merged and sorted, [size, size + buffered) are not
+    private int size;
+    private int buffered;
+    private long totalWeight;
+    private double min;
+    private double max;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(int compression) {
+        allocate(compression);
+    }
+
+    private void allocate(int compression) {
+        this.compression = Math.max(10, compression);
+        int capacity = this.compression * (2 + BUFFER_FACTOR);
+        means = new double[capacity];
+        weights = new long[capacity];
+        clear();
+    }
+
+    public void clear() {
+        size = 0;
+        buffered = 0;
+        totalWeight = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    private void add(double mean, long weight) {
+        if (size + buffered == means.length) {
+            compress();
+        }
+        means[size + buffered] = mean;
+        weights[size + buffered] = weight;
+        buffered++;
+        totalWeight += weight;
+        min = Math.min(min, mean);
+        max = Math.max(max, mean);
+    }
+
+    public void merge(TDigest other) {
+        if (other.totalWeight == 0) return;
+        for (int i = 0; i < other.size + other.buffered; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return totalWeight;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    // Value below which a fraction q of the weight lies, interpolated between
+    // centroid centres (and min/max at the ends); NaN when empty
+    public double quantile(double q) {
+        if (totalWeight == 0) return Double.NaN;
+        compress();
+        if (size == 1) return means[0];
+
+        double index = q * totalWeight;
+        double cumulative = weights[0] / 2.0;
+        if (index < cumulative) {
+            return min + (means[0] - min) * index / cumulative;
+        }
+        for (int i = 0; i < size - 1; i++) {
+            double step = (weights[i] + weights[i + 1]) / 2.0;
+            if (index <= cumulative + step) {
+                return means[i] + (means[i + 1] - means[i]) * (index - cumulative) / step;
+            }
+            cumulative += step;
+        }
+        double tail = weights[size - 1] / 2.0;
+        return means[size - 1] + (max - means[size - 1]) * Math.min(1.0, (index - cumulative) / tail);
+    }
+
+    private void compress() {
+        if (buffered == 0) return;
+        int n = size + buffered;
+        sort(0, n - 1);
+
+        // Weight allowed before the current centroid must be closed
+        long before = 0;
+        double limit = totalWeight * q(k(0) + 1);
+        int out = 0;
+        for (int i = 1; i < n; i++) {
+            long merged = weights[out] + weights[i];
+            if (before + merged <= limit) {
+                means[out] += (means[i] - means[out]) * weights[i] / merged;
+                weights[out] = merged;
+            } else {
+                before += weights[out];
+                limit = totalWeight * q(k(before / (double) totalWeight) + 1);
+                out++;
+                means[out] = means[i];
+                weights[out] = weights[i];
+            }
+        }
+        size = out + 1;
+        buffered = 0;
+    }
+
+    private double k(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    private double q(double k) {
+        if (k >= compression / 4.0) return 1.0;
+        return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+    }
+
+    // Quicksort of the parallel arrays by mean
+    private void sort(int lo, int hi) {
+        while (lo < hi) {
+            double pivot = means[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (means[i] < pivot) i++;
+                while (means[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        double mean = means[a];
+        means[a] = means[b];
+        means[b] = mean;
+        long weight = weights[a];
+        weights[a] = weights[b];
+        weights[b] = weight;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        compress();
+        WritableUtils.writeVInt(out, compression);
+        WritableUtils.writeVInt(out, size);
+        if (size == 0) return;
+        out.writeDouble(min);
+        out.writeDouble(max);
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(means[i]);
+            WritableUtils.writeVLong(out, weights[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int newCompression = WritableUtils.readVInt(in);
+        if (newCompression != compression) {
+            allocate(newCompression);
+        } else {
+            clear();
+        }
+        int entries = WritableUtils.readVInt(in);
+        if (entries == 0) return;
+        min = in.readDouble();
+        max = in.readDouble();
+        for (int i = 0; i < entries; i++) {
+            means[i] = in.readDouble();
+            weights[i] = WritableUtils.readVLong(in);
+            totalWeight += weights[i];
+        }
+        size = entries;
+    }
+}
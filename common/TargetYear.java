@@ -0,0 +1,25 @@
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import org.apache.hadoop.conf.Configuration;
+
+// The year the stage-1 jobs keep (-Dtaxi.target.year=2013 by default).
+//
+// Read by the mappers' year filter, by TripStoreInputFormat to pick the
+// year= partition of a trip store, and by PrunedTextInputFormat to drop
+// train.csv splits whose indexed pickup times lie outside the year.
+public final class TargetYear {
+    public static final String KEY = "taxi.target.year";
+    public static final int DEFAULT = 2013;
+
+    private TargetYear() {
+    }
+
+    public static int get(Configuration conf) {
+        return conf.getInt(KEY, DEFAULT);
+    }
+
+    // Epoch second of 1 January 00:00:00 UTC of the given year
+    public static long firstSecond(int year) {
+        return LocalDate.of(year, 1, 1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
+
+// Filter and timing counters for the mappers and reducers of the stage-1
+// *ByMonth jobs and the stage-2 TopK* jobs.
+//
+// Mappers count every row they drop by reason (Skip, one enum counter each),
+// so the job counters show how selective each filter is. Every task also
+// counts its records and its time from setup() to cleanup() ("Task
+// throughput"), which report() turns into records per second per task.
+// Every `task.metrics.sample`-th record (default 1000, 0 = off) is timed with
+// System.nanoTime(): in a mapper the parse (scanning the row up to the last
+// filter) and the emit (context.write or the in-mapper table), in a reducer
+// or combiner the whole reduce() call. The times go into power-of-two
+// histograms published as counter groups such as "Map parse latency
+// (sampled)", one counter per bucket ("    128-255 ns").
+//
+// AllQueriesByMonth runs the four queries' filters in one mapper: its
+// forMapper() metrics count the skips that drop a row for every query
+// (SHORT_ROW, OTHER_YEAR, an unreadable year or month), and one forQuery()
+// metrics per query counts what that query's own filters drop, as the
+// counter group "Skipped rows (<query>)" with one counter per reason.
+//
+// Counts live in fields and are published once from close() in cleanup(),
+// so the per-record cost is an increment; a sampled record costs two or
+// three nanoTime() calls.
+public final class TaskMetrics {
+    public static final String SAMPLE = "task.metrics.sample";
+    public static final int DEFAULT_SAMPLE = 1000;
+    public static final String THROUGHPUT_GROUP = "Task throughput";
+
+    // Why a mapper dropped a row
+    public enum Skip {
+        // Header line, or fewer fields than the job needs
+        SHORT_ROW,
+        OTHER_YEAR,
+        ZERO_COORDINATE,
+        OUT_OF_BOUNDS,
+        // Fare <= 0 or > 2000 (Q2)
+        BAD_FARE,
+        // Outside 20:00-02:59 (Q4)
+        OUTSIDE_HOURS,
+        // A field that did not parse
+        MALFORMED
+    }
+
+    // Bucket 0 is [0, 2^FIRST_BUCKET_BITS) ns, bucket i > 0 is
+    // [2^(FIRST_BUCKET_BITS + i - 1), 2^(FIRST_BUCKET_BITS + i)) and the last
+    // bucket is open-ended (>= ~1 ms)
+    private static final int FIRST_BUCKET_BITS = 7;
+    private static final int BUCKETS = 15;
+
+    // "Map", "Combine" (a reducer class in a map task) or "Reduce"
+    private final String phase;
+    private final boolean mapper;
+    // Counter group of a forQuery() metrics, null otherwise
+    private final String skipGroup;
+    private final long[] skipped = new long[Skip.values().length];
+    private final long[] parseLatency = new long[BUCKETS];
+    private final long[] finishLatency = new long[BUCKETS];
+    private final int interval;
+    private int untilSample;
+    private long records;
+    private final long started = System.nanoTime();
+
+    private TaskMetrics(TaskInputOutputContext<?, ?, ?, ?> context, boolean mapper, String skipGroup) {
+        boolean mapTask = context.getTaskAttemptID().getTaskType() == TaskType.MAP;
+        this.mapper = mapper;
+        this.skipGroup = skipGroup;
+        this.phase = mapper ? "Map" : mapTask ? "Combine" : "Reduce";
+        this.interval = Math.max(0, context.getConfiguration().getInt(SAMPLE, DEFAULT_SAMPLE));
+        this.untilSample = interval;
+    }
+
+    public static TaskMetrics forMapper(TaskInputOutputContext<?, ?, ?, ?> context) {
+        return new TaskMetrics(context, true, null);
+    }
+
+    // Also for reducer classes used as combiners
+    public static TaskMetrics forReducer(TaskInputOutputContext<?, ?, ?, ?> context) {
+        return new TaskMetrics(context, false, null);
+    }
+
+    // Skips of one query in a mapper shared by several; only skip() applies
+    public static TaskMetrics forQuery(TaskInputOutputContext<?, ?, ?, ?> context, String query) {
+        return new TaskMetrics(context, true, "Skipped rows (" + query + ")");
+    }
+
+    // Counts one input record (row or reduce key); returns a start time if
+    // this record is sampled, 0 otherwise
+    public long start() {
+        records++;
+        if (interval == 0 || --untilSample > 0) return 0;
+        untilSample = interval;
+        return System.nanoTime();
+    }
+
+    public void skip(Skip reason) {
+        skipped[reason.ordinal()]++;
+    }
+
+    // Mappers: the row passed the filters; records the parse time of a
+    // sampled row and returns the start time of its emit (0 if not sampled)
+    public long parsed(long since) {
+        if (since == 0) return 0;
+        long now = System.nanoTime();
+        parseLatency[bucket(now - since)]++;
+        return now;
+    }
+
+    // Records the emit time (mappers) or reduce() time (reducers) of a
+    // sampled record
+    public void finished(long since) {
+        if (since == 0) return;
+        finishLatency[bucket(System.nanoTime() - since)]++;
+    }
+
+    private static int bucket(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos));
+        return Math.min(BUCKETS - 1, Math.max(0, bits - FIRST_BUCKET_BITS + 1));
+    }
+
+    private static String bucketName(int bucket) {
+        long low = bucket == 0 ? 0 : 1L << (FIRST_BUCKET_BITS + bucket - 1);
+        if (bucket == BUCKETS - 1) {
+            return String.format("%7d+ ns", low);
+        }
+        return String.format("%7d-%d ns", low, (1L << (FIRST_BUCKET_BITS + bucket)) - 1);
+    }
+
+    // Publishes everything as job counters; call at the end of cleanup()
+    public void close(TaskInputOutputContext<?, ?, ?, ?> context) {
+        if (skipGroup != null) {
+            for (Skip reason : Skip.values()) {
+                if (skipped[reason.ordinal()] > 0) {
+                    context.getCounter(skipGroup, reason.name()).increment(skipped[reason.ordinal()]);
+                }
+            }
+            return;
+        }
+        for (Skip reason : Skip.values()) {
+            if (skipped[reason.ordinal()] > 0) {
+                context.getCounter(reason).increment(skipped[reason.ordinal()]);
+            }
+        }
+        context.getCounter(THROUGHPUT_GROUP, phase + " records").increment(records);
+        context.getCounter(THROUGHPUT_GROUP, phase + " time (ms)")
+                .increment((System.nanoTime() - started) / 1000000L);
+        if (mapper) {
+            publish(context, "Map parse latency (sampled)", parseLatency);
+            publish(context, "Map emit latency (sampled)", finishLatency);
+        } else {
+            publish(context, phase + " latency per key (sampled)", finishLatency);
+        }
+    }
+
+    private static void publish(TaskInputOutputContext<?, ?, ?, ?> context, String group, long[] histogram) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (histogram[bucket] > 0) {
+                context.getCounter(group, bucketName(bucket)).increment(histogram[bucket]);
+            }
+        }
+    }
+
+    // Prints records per second per task and the share of rows the mappers
+    // kept; called by the drivers once a job has finished
+    public static void report(Job job) throws IOException {
+        Counters counters = job.getCounters();
+        if (counters == null) return;
+        long skippedRows = 0;
+        for (Skip reason : Skip.values()) {
+            skippedRows += counters.findCounter(reason).getValue();
+        }
+        for (String phase : new String[] {"Map", "Combine", "Reduce"}) {
+            long records = counters.findCounter(THROUGHPUT_GROUP, phase + " records").getValue();
+            long millis = counters.findCounter(THROUGHPUT_GROUP, phase + " time (ms)").getValue();
+            if (records == 0) continue;
+            StringBuilder line = new StringBuilder();
+            line.append(job.getJobName()).append(" - ").append(phase).append(": ").append(records)
+                    .append(phase.equals("Map") ? " rows" : " keys");
+            if (millis > 0) {
+                line.append(String.format(", %.0f per second per task", records * 1000.0 / millis));
+            }
+            if (phase.equals("Map")) {
+                line.append(String.format(", %.1f%% kept", 100.0 * (records - skippedRows) / records));
+            }
+            System.out.println(line);
+        }
+    }
+}
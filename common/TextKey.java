@@ -0,0 +1,20 @@
+// A stage-1 output key that writes its text form (the same bytes as its
+// toString()) straight into a byte buffer, so StageTextOutputFormat can write
+// every output row without building a String.
+public interface TextKey {
+    // Longest text form in bytes, with room to spare
+    int MAX_TEXT_BYTES = 64;
+
+    // Writes the text form at buffer[pos] on and returns the position after it
+    int render(byte[] buffer, int pos);
+
+    // The "03__" month prefix; yearly keys (month 0) have none
+    static int renderMonth(byte[] buffer, int pos, int month) {
+        if (month == 0) return pos;
+        buffer[pos++] = (byte) ('0' + month / 10);
+        buffer[pos++] = (byte) ('0' + month % 10);
+        buffer[pos++] = '_';
+        buffer[pos++] = '_';
+        return pos;
+    }
+}
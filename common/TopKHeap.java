@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.io.Text;
+
+// Bounded min-heap keeping the K highest-scoring labels seen so far.
+//
+// Used by the single-pass TopK* reducers: each reducer offers every
+// aggregated key and only emits its local top K in cleanup(), so no job has
+// to sort all distinct routes/locations just to keep K rows. A label is only
+// copied when it actually enters the heap. Ties on score are broken by label
+// (smaller label ranks higher) so results are deterministic.
+public class TopKHeap {
+
+    public static class Entry implements Comparable<Entry> {
+        private final Text label;
+        private final double score;
+
+        Entry(Text label, double score) {
+            this.label = label;
+            this.score = score;
+        }
+
+        public Text getLabel() {
+            return label;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        // Descending by score, then ascending by label
+        @Override
+        public int compareTo(Entry other) {
+            int cmp = Double.compare(other.score, score);
+            return cmp != 0 ? cmp : label.compareTo(other.label);
+        }
+    }
+
+    private final int k;
+    private final Text[] labels;
+    private final double[] scores;
+    private int size;
+
+    public TopKHeap(int k) {
+        this.k = k;
+        this.labels = new Text[k];
+        this.scores = new double[k];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Cheap pre-check so callers only build a label for real candidates
+    public boolean accepts(double score) {
+        return k > 0 && (size < k || score >= scores[0]);
+    }
+
+    // Returns true if the label made it into the current top K
+    public boolean offer(Text label, double score) {
+        if (k == 0) return false;
+        if (size < k) {
+            labels[size] = new Text(label);
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!ranksAbove(score, label, 0)) return false;
+        // Replace the current minimum, reusing its Text
+        labels[0].set(label);
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    // Entries in rank order (highest score first)
+    public List<Entry> toSortedList() {
+        List<Entry> entries = new ArrayList<Entry>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new Entry(labels[i], scores[i]));
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    // True if (score, label) ranks above the entry at slot i
+    private boolean ranksAbove(double score, Text label, int i) {
+        int cmp = Double.compare(score, scores[i]);
+        return cmp > 0 || (cmp == 0 && label.compareTo(labels[i]) < 0);
+    }
+
+    private boolean ranksBelow(int a, int b) {
+        return ranksAbove(scores[b], labels[b], a);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!ranksBelow(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) break;
+            int lowest = left;
+            int right = left + 1;
+            if (right < size && ranksBelow(right, left)) lowest = right;
+            if (!ranksBelow(lowest, i)) break;
+            swap(i, lowest);
+            i = lowest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        Text label = labels[a];
+        labels[a] = labels[b];
+        labels[b] = label;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+// Final merge for the single-pass TopK* mode.
+//
+// Every reducer of the single-pass job writes at most K "label<TAB>value"
+// lines per group, so this reads those few lines back in the driver, keeps
+// the global top K of each group and writes them to <output>/part-r-00000 in
+// the same format the two-job mode produced. Labels of the form
+// "TYPE: location" (Q3) are ranked per TYPE, everything else as one group.
+// MonthlyTopK also uses it, summing the partial rows of one label first.
+public final class TopKMerge {
+
+    private TopKMerge() {
+    }
+
+    public static void merge(Configuration conf, Path partialDir, Path outputDir, int k)
+            throws IOException {
+        merge(conf, partialDir, outputDir, k, ": ");
+    }
+
+    // Ranks each group of labels sharing the text before `separator` apart,
+    // e.g. "__" for the monthly rows of MonthlyTopK
+    public static void merge(Configuration conf, Path partialDir, Path outputDir, int k, String separator)
+            throws IOException {
+        merge(conf, partialDir, outputDir, k, separator, false);
+    }
+
+    // With sumDuplicates, rows sharing a label (one key's partial counts from
+    // several reducers) are added up before ranking
+    public static void merge(Configuration conf, Path partialDir, Path outputDir, int k, String separator,
+            boolean sumDuplicates) throws IOException {
+        FileSystem fs = partialDir.getFileSystem(conf);
+        Map<String, TopKHeap> groups = new TreeMap<String, TopKHeap>();
+        Map<String, String> values = new TreeMap<String, String>();
+        Map<String, Long> totals = new TreeMap<String, Long>();
+        Text label = new Text();
+
+        for (FileStatus status : fs.listStatus(partialDir)) {
+            if (!status.getPath().getName().startsWith("part-")) continue;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab < 0) continue;
+                    String name = line.substring(0, tab);
+                    String value = line.substring(tab + 1);
+                    if (sumDuplicates) {
+                        Long total = totals.get(name);
+                        totals.put(name, (total == null ? 0L : total) + Long.parseLong(value.trim()));
+                    } else {
+                        offer(groups, values, label, name, value, k, separator);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            offer(groups, values, label, total.getKey(), total.getValue().toString(), k, separator);
+        }
+
+        fs.mkdirs(outputDir);
+        try (Writer out = new OutputStreamWriter(
+                fs.create(new Path(outputDir, "part-r-00000"), true), StandardCharsets.UTF_8)) {
+            for (TopKHeap heap : groups.values()) {
+                for (TopKHeap.Entry entry : heap.toSortedList()) {
+                    String name = entry.getLabel().toString();
+                    out.write(name + "\t" + values.get(name) + "\n");
+                }
+            }
+        }
+        fs.create(new Path(outputDir, "_SUCCESS"), true).close();
+        fs.delete(partialDir, true);
+    }
+
+    private static void offer(Map<String, TopKHeap> groups, Map<String, String> values, Text label,
+            String name, String value, int k, String separator) {
+        int groupEnd = name.indexOf(separator);
+        String group = groupEnd < 0 ? "" : name.substring(0, groupEnd);
+
+        TopKHeap heap = groups.get(group);
+        if (heap == null) {
+            heap = new TopKHeap(k);
+            groups.put(group, heap);
+        }
+        label.set(name);
+        if (heap.offer(label, score(value))) {
+            // Keep the value text exactly as the reducer wrote it
+            values.put(name, value);
+        }
+    }
+
+    // Leading number of a value, e.g. the max fare of a FareStats row
+    private static double score(String value) {
+        int space = value.indexOf(' ');
+        return Double.parseDouble(space < 0 ? value : value.substring(0, space));
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+
+// Range-partitioned sort for job 2 of the two-job TopK* mode.
+//
+// With -Dtopk.sort.reducers=N (N > 1) the sort job no longer runs on a single
+// reducer: the driver samples the job's sort keys (the SortMapper output, see
+// MapOutputSample), picks N - 1 split points in the job's own sort order and
+// hands them to TotalOrderPartitioner, so reducer 0 gets the highest values,
+// reducer 1 the next range and so on. Each reducer keeps its local top K and
+// TopKMerge picks the global top K from those rows.
+//
+// With -Dtopk.full.ranking=true the reducers write every row instead, and the
+// output part files read in order are the complete ranked list.
+//
+// Counts are small integers with a long tail of ties, so equal sampled split
+// points are collapsed and fewer than N reducers may run.
+public final class TotalOrderSort {
+    public static final String REDUCERS = "topk.sort.reducers";
+    public static final String SAMPLE_ROWS = "topk.sort.sample.rows";
+    public static final String FULL_RANKING = "topk.full.ranking";
+
+    public static final int DEFAULT_SAMPLE_ROWS = 100000;
+
+    private TotalOrderSort() {
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getInt(REDUCERS, 1) > 1;
+    }
+
+    // Runs the sort job (input, mapper, reducer and key classes already set)
+    // and leaves the top K, or the full ranking, in outputDir
+    public static boolean run(Job job, Path outputDir, int k)
+            throws IOException, InterruptedException, ClassNotFoundException {
+        Configuration conf = job.getConfiguration();
+        boolean fullRanking = conf.getBoolean(FULL_RANKING, false);
+        Path partitionFile = new Path(outputDir + "_partitions");
+        Path sortedDir = fullRanking ? outputDir : new Path(outputDir + "_sorted");
+
+        int reducers = writePartitionFile(job, partitionFile, conf.getInt(REDUCERS, 1));
+        job.setNumReduceTasks(reducers);
+        if (reducers > 1) {
+            job.setPartitionerClass(TotalOrderPartitioner.class);
+            TotalOrderPartitioner.setPartitionFile(conf, partitionFile);
+        }
+        if (fullRanking) {
+            conf.setInt("topk.k", Integer.MAX_VALUE);
+        }
+        FileOutputFormat.setOutputPath(job, sortedDir);
+
+        boolean ok = job.waitForCompletion(true);
+        partitionFile.getFileSystem(conf).delete(partitionFile, false);
+        if (ok && !fullRanking) {
+            TopKMerge.merge(conf, sortedDir, outputDir, k);
+        }
+        return ok;
+    }
+
+    // Writes the distinct split points among `reducers` evenly spaced
+    // quantiles of the sampled keys; returns the number of reducers they give
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int writePartitionFile(Job job, Path partitionFile, int reducers)
+            throws IOException, InterruptedException {
+        Configuration conf = job.getConfiguration();
+        KeyCollector collector = new KeyCollector(conf);
+        MapOutputSample.run(job, conf, conf.getInt(SAMPLE_ROWS, DEFAULT_SAMPLE_ROWS), collector);
+
+        List<Writable> keys = collector.keys;
+        RawComparator comparator = job.getSortComparator();
+        Collections.sort(keys, comparator);
+
+        List<Writable> splits = new ArrayList<Writable>();
+        for (int i = 1; i < reducers && !keys.isEmpty(); i++) {
+            Writable split = keys.get((int) ((long) i * keys.size() / reducers));
+            if (splits.isEmpty() || comparator.compare(splits.get(splits.size() - 1), split) < 0) {
+                splits.add(split);
+            }
+        }
+        if (splits.isEmpty()) {
+            return 1;
+        }
+
+        FileSystem fs = partitionFile.getFileSystem(conf);
+        fs.delete(partitionFile, false);
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(fs.makeQualified(partitionFile)),
+                SequenceFile.Writer.keyClass(job.getMapOutputKeyClass()),
+                SequenceFile.Writer.valueClass(NullWritable.class))) {
+            for (Writable split : splits) {
+                writer.append(split, NullWritable.get());
+            }
+        }
+        return splits.size() + 1;
+    }
+
+    // Map output sink keeping a copy of every sampled key
+    private static class KeyCollector extends RecordWriter<Writable, Object> {
+        private final Configuration conf;
+        private final List<Writable> keys = new ArrayList<Writable>();
+
+        KeyCollector(Configuration conf) {
+            this.conf = conf;
+        }
+
+        @Override
+        public void write(Writable key, Object value) {
+            keys.add(WritableUtils.clone(key, conf));
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+}
@@ -0,0 +1,284 @@
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.io.Text;
+
+// Zero-copy scanner for one train.csv row held in a Text buffer.
+//
+// Row layout:
+//   key,fare_amount,pickup_datetime,pickup_longitude,pickup_latitude,
+//   dropoff_longitude,dropoff_latitude,passenger_count
+//
+// scan() records the field offsets in a single pass over the UTF-8 bytes and
+// the accessors parse year, month, hour, fare and the four coordinates in
+// place, so the stage-1 mappers no longer build a String, a String[] and a
+// handful of substrings for every one of the ~55M rows.
+public class TripCsvScanner implements TripRow {
+    public static final int KEY = 0;
+    public static final int FARE = 1;
+    public static final int PICKUP_DATETIME = 2;
+    public static final int PICKUP_LONGITUDE = 3;
+    public static final int PICKUP_LATITUDE = 4;
+    public static final int DROPOFF_LONGITUDE = 5;
+    public static final int DROPOFF_LATITUDE = 6;
+
+    // Every query needs the first 7 columns; passenger_count is never read
+    private static final int REQUIRED_FIELDS = 7;
+
+    private static final byte[] HEADER_KEY = "key".getBytes(StandardCharsets.UTF_8);
+
+    // Exact powers of ten usable by the fast double path
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    // Significant digits every double keeps exactly through its shortest form
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final int[] starts = new int[REQUIRED_FIELDS];
+    private final int[] ends = new int[REQUIRED_FIELDS];
+    private byte[] bytes;
+
+    // Locate the first 7 fields of the row.
+    // Returns false for the header row and for rows with fewer than 7 fields.
+    public boolean scan(Text row) {
+        return scan(row.getBytes(), 0, row.getLength());
+    }
+
+    public boolean scan(byte[] buffer, int offset, int length) {
+        bytes = buffer;
+        int end = offset + length;
+        int field = 0;
+        int fieldStart = offset;
+        for (int i = offset; i < end && field < REQUIRED_FIELDS; i++) {
+            if (buffer[i] == ',') {
+                starts[field] = fieldStart;
+                ends[field] = i;
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+        if (field < REQUIRED_FIELDS) {
+            // Last required column runs to the end of the line
+            if (field != REQUIRED_FIELDS - 1) return false;
+            starts[field] = fieldStart;
+            ends[field] = end;
+        }
+        return !isHeader();
+    }
+
+    private boolean isHeader() {
+        if (ends[KEY] - starts[KEY] != HEADER_KEY.length) return false;
+        for (int i = 0; i < HEADER_KEY.length; i++) {
+            if ((bytes[starts[KEY] + i] | 0x20) != HEADER_KEY[i]) return false;
+        }
+        return true;
+    }
+
+    // Pickup datetime is "YYYY-MM-DD HH:MM:SS UTC"
+
+    // Year of the pickup, or -1 if the first four characters are not digits
+    @Override
+    public int year() {
+        int start = starts[PICKUP_DATETIME];
+        if (ends[PICKUP_DATETIME] - start < 4) return -1;
+        int year = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            year = year * 10 + digit;
+        }
+        return year;
+    }
+
+    // Month of the pickup (1-12)
+    @Override
+    public int month() {
+        return twoDigits(PICKUP_DATETIME, 5);
+    }
+
+    // Hour of the pickup (0-23)
+    @Override
+    public int hour() {
+        return twoDigits(PICKUP_DATETIME, 11);
+    }
+
+    // Pickup time in seconds since 1970-01-01 00:00:00 UTC
+    public long pickupEpochSecond() {
+        int year = year();
+        int month = month();
+        int day = twoDigits(PICKUP_DATETIME, 8);
+        int hour = hour();
+        int minute = twoDigits(PICKUP_DATETIME, 14);
+        int second = twoDigits(PICKUP_DATETIME, 17);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour > 23 || minute > 59 || second > 60) {
+            throw new NumberFormatException("Not a valid pickup datetime");
+        }
+        return daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+    }
+
+    // Days since 1970-01-01 in the proleptic Gregorian calendar
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    @Override
+    public double fare() {
+        return parseDouble(FARE);
+    }
+
+    @Override
+    public double pickupLongitude() {
+        return parseDouble(PICKUP_LONGITUDE);
+    }
+
+    @Override
+    public double pickupLatitude() {
+        return parseDouble(PICKUP_LATITUDE);
+    }
+
+    @Override
+    public double dropoffLongitude() {
+        return parseDouble(DROPOFF_LONGITUDE);
+    }
+
+    @Override
+    public double dropoffLatitude() {
+        return parseDouble(DROPOFF_LATITUDE);
+    }
+
+    // Rounds the coordinates straight from the text (see fixedPoint)
+    @Override
+    public long pickupPoint(int decimals) {
+        return FixedPoint.pack(fixedPoint(PICKUP_LONGITUDE, decimals), fixedPoint(PICKUP_LATITUDE, decimals));
+    }
+
+    @Override
+    public long dropoffPoint(int decimals) {
+        return FixedPoint.pack(fixedPoint(DROPOFF_LONGITUDE, decimals), fixedPoint(DROPOFF_LATITUDE, decimals));
+    }
+
+    private int twoDigits(int field, int offset) {
+        int pos = starts[field] + offset;
+        if (pos + 2 > ends[field]) {
+            throw new NumberFormatException("Field " + field + " too short");
+        }
+        int tens = bytes[pos] - '0';
+        int ones = bytes[pos + 1] - '0';
+        if (tens < 0 || tens > 9 || ones < 0 || ones > 9) {
+            throw new NumberFormatException("Not a two digit number in field " + field);
+        }
+        return tens * 10 + ones;
+    }
+
+    private double parseDouble(int field) {
+        return parseDouble(bytes, starts[field], ends[field]);
+    }
+
+    // Plain "[-]digits[.digits]" values with at most 2^53 as mantissa and 22
+    // fraction digits are converted with one exact division, which rounds the
+    // same way as Double.parseDouble. Anything else (exponents, NaN, very long
+    // mantissas) falls back to Double.parseDouble so results never differ.
+    // Also used by StageLineScanner.
+    static double parseDouble(byte[] bytes, int pos, int end) {
+        while (pos < end && bytes[pos] <= ' ') pos++;
+        while (end > pos && bytes[end - 1] <= ' ') end--;
+
+        int i = pos;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenPoint) fractionDigits++;
+                if (mantissa > MAX_EXACT_MANTISSA) return slowParseDouble(bytes, pos, end);
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return slowParseDouble(bytes, pos, end);
+            }
+        }
+        if (digits == 0 || fractionDigits >= POWERS_OF_TEN.length) {
+            return slowParseDouble(bytes, pos, end);
+        }
+
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    // The field scaled by 10^decimals and rounded half-up, read from the text
+    // digits without going through a double. Equals
+    // FixedPoint.quantize(parseDouble(field), decimals): a plain decimal with
+    // at most 15 significant digits is the shortest decimal form of its
+    // double, which is what quantize() rounds. Longer mantissas, exponents
+    // and anything else take that double path instead.
+    public int fixedPoint(int field, int decimals) {
+        int pos = starts[field];
+        int end = ends[field];
+        while (pos < end && bytes[pos] <= ' ') pos++;
+        while (end > pos && bytes[end - 1] <= ' ') end--;
+
+        int i = pos;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long scaled = 0;
+        int digits = 0;
+        int significant = 0;
+        int fractionDigits = 0;
+        int firstDropped = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (significant > 0 || b != '0') significant++;
+                if (!seenPoint || fractionDigits < decimals) {
+                    scaled = scaled * 10 + (b - '0');
+                    if (seenPoint) fractionDigits++;
+                    if (scaled > Integer.MAX_VALUE) throw new ArithmeticException("Overflow");
+                } else if (fractionDigits++ == decimals) {
+                    firstDropped = b - '0';
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return FixedPoint.quantize(parseDouble(field), decimals);
+            }
+        }
+        if (digits == 0 || significant > MAX_EXACT_DIGITS) {
+            return FixedPoint.quantize(parseDouble(field), decimals);
+        }
+
+        for (int f = fractionDigits; f < decimals; f++) {
+            scaled *= 10;
+            if (scaled > Integer.MAX_VALUE) throw new ArithmeticException("Overflow");
+        }
+        if (firstDropped >= 5 && ++scaled > Integer.MAX_VALUE) {
+            throw new ArithmeticException("Overflow");
+        }
+        return (int) (negative ? -scaled : scaled);
+    }
+
+    private static double slowParseDouble(byte[] bytes, int start, int end) {
+        return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+    }
+}
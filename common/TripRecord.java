@@ -0,0 +1,158 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.Writable;
+
+// One trip of the binary trip store (see TripStore).
+//
+// Year and month come from the partition directory, so they are available
+// even when the pickup time column is not read. A value that did not parse
+// when train.csv was ingested is stored as NaN and its accessor throws
+// NumberFormatException, like TripCsvScanner does for the same row.
+public class TripRecord implements TripRow, Writable {
+    // Pickup time of a record read without the PICKUP_TIME column, or of a
+    // row whose pickup datetime did not parse when it was ingested
+    public static final int NO_TIME = Integer.MIN_VALUE;
+
+    private int year;
+    private int month;
+    private int pickupTime;
+    private double fare;
+    private double pickupLon;
+    private double pickupLat;
+    private double dropoffLon;
+    private double dropoffLat;
+
+    public TripRecord() {
+    }
+
+    public void setPartition(int year, int month) {
+        this.year = year;
+        this.month = month;
+    }
+
+    // Pickup time in seconds since 1970-01-01 00:00:00 UTC
+    public void setPickupTime(int pickupTime) {
+        this.pickupTime = pickupTime;
+    }
+
+    public void setFare(double fare) {
+        this.fare = fare;
+    }
+
+    public void setPickup(double lon, double lat) {
+        this.pickupLon = lon;
+        this.pickupLat = lat;
+    }
+
+    public void setDropoff(double lon, double lat) {
+        this.dropoffLon = lon;
+        this.dropoffLat = lat;
+    }
+
+    public int getPickupTime() {
+        return pickupTime;
+    }
+
+    // Raw stored values, NaN included, for TripStore.Writer
+    double getFareValue() {
+        return fare;
+    }
+
+    double getPickupLonValue() {
+        return pickupLon;
+    }
+
+    double getPickupLatValue() {
+        return pickupLat;
+    }
+
+    double getDropoffLonValue() {
+        return dropoffLon;
+    }
+
+    double getDropoffLatValue() {
+        return dropoffLat;
+    }
+
+    @Override
+    public int year() {
+        return year;
+    }
+
+    @Override
+    public int month() {
+        return month;
+    }
+
+    // Needs the PICKUP_TIME column
+    @Override
+    public int hour() {
+        if (pickupTime == NO_TIME) {
+            throw new NumberFormatException("No pickup_time value");
+        }
+        return Math.floorMod(pickupTime, 86400) / 3600;
+    }
+
+    @Override
+    public double fare() {
+        return parsed(fare, "fare");
+    }
+
+    @Override
+    public double pickupLongitude() {
+        return parsed(pickupLon, "pickup_longitude");
+    }
+
+    @Override
+    public double pickupLatitude() {
+        return parsed(pickupLat, "pickup_latitude");
+    }
+
+    @Override
+    public double dropoffLongitude() {
+        return parsed(dropoffLon, "dropoff_longitude");
+    }
+
+    @Override
+    public double dropoffLatitude() {
+        return parsed(dropoffLat, "dropoff_latitude");
+    }
+
+    private static double parsed(double value, String column) {
+        if (Double.isNaN(value)) {
+            throw new NumberFormatException("No " + column + " value");
+        }
+        return value;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeShort(year);
+        out.writeByte(month);
+        out.writeInt(pickupTime);
+        out.writeDouble(fare);
+        out.writeDouble(pickupLon);
+        out.writeDouble(pickupLat);
+        out.writeDouble(dropoffLon);
+        out.writeDouble(dropoffLat);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        year = in.readShort();
+        month = in.readByte();
+        pickupTime = in.readInt();
+        fare = in.readDouble();
+        pickupLon = in.readDouble();
+        pickupLat = in.readDouble();
+        dropoffLon = in.readDouble();
+        dropoffLat = in.readDouble();
+    }
+
+    @Override
+    public String toString() {
+        return year + "-" + month + " t=" + pickupTime + " fare=" + fare + " pickup=" + pickupLon + ","
+                + pickupLat + " dropoff=" + dropoffLon + "," + dropoffLat;
+    }
+}
@@ -0,0 +1,52 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+// The trip fields the stage-1 mappers read, from either input format.
+//
+// Implemented by TripCsvScanner (raw train.csv lines) and TripRecord (rows of
+// the binary trip store), so each mapper keeps one set of filters for both.
+// Accessors throw NumberFormatException for a value that could not be parsed.
+public interface TripRow {
+    int year();
+
+    // 1-12
+    int month();
+
+    // 0-23
+    int hour();
+
+    double fare();
+
+    double pickupLongitude();
+
+    double pickupLatitude();
+
+    double dropoffLongitude();
+
+    double dropoffLatitude();
+
+    // Pickup point rounded like "%.Nf" to `decimals` places, FixedPoint.pack()ed
+    default long pickupPoint(int decimals) {
+        return FixedPoint.pack(FixedPoint.quantize(pickupLongitude(), decimals),
+                FixedPoint.quantize(pickupLatitude(), decimals));
+    }
+
+    default long dropoffPoint(int decimals) {
+        return FixedPoint.pack(FixedPoint.quantize(dropoffLongitude(), decimals),
+                FixedPoint.quantize(dropoffLatitude(), decimals));
+    }
+
+    // The row behind a mapper input value: the TripRecord itself for the trip
+    // store, or the scanned Text or CsvLine for the CSV (null for the header
+    // and short rows)
+    static TripRow of(Writable value, TripCsvScanner scanner) {
+        if (value instanceof TripRecord) {
+            return (TripRecord) value;
+        }
+        if (value instanceof CsvLine) {
+            CsvLine line = (CsvLine) value;
+            return scanner.scan(line.getBytes(), line.getOffset(), line.getLength()) ? scanner : null;
+        }
+        return scanner.scan((Text) value) ? scanner : null;
+    }
+}
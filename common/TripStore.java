@@ -0,0 +1,239 @@
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+
+// Binary, columnar copy of train.csv written once by TripStoreIngest.
+//
+// Layout:
+//   <root>/_tripstore                      marker written after ingestion
+//   <root>/year=2013/month=03/part-r-NNNNN  trips picked up in March 2013
+//
+// Each file is the 4-byte magic "TRP1" followed by row groups of up to
+// ROW_GROUP_ROWS trips. A row group is the row count (int) and then every
+// column as one fixed-width big-endian block, in column order: fare (double),
+// pickup time (int epoch seconds, UTC) and the four coordinates (double).
+// A reader seeks over the blocks of columns a job does not need, and jobs
+// only list the year=/month= directories of the year they query.
+//
+// Coordinates and fares stay doubles rather than floats: a float cannot hold
+// every 5-decimal coordinate, so rounding routes to 5 decimals would no
+// longer match the CSV path.
+public final class TripStore {
+    public static final int FARE = 0;
+    public static final int PICKUP_TIME = 1;
+    public static final int PICKUP_LONGITUDE = 2;
+    public static final int PICKUP_LATITUDE = 3;
+    public static final int DROPOFF_LONGITUDE = 4;
+    public static final int DROPOFF_LATITUDE = 5;
+    public static final int NUM_COLUMNS = 6;
+
+    public static final String[] COLUMN_NAMES = {
+        "fare", "pickup_time", "pickup_longitude", "pickup_latitude", "dropoff_longitude", "dropoff_latitude"
+    };
+    private static final int[] COLUMN_WIDTHS = {8, 4, 8, 8, 8, 8};
+
+    // Columns a job reads, as a comma-separated list of COLUMN_NAMES (all by default)
+    public static final String COLUMNS = "tripstore.columns";
+
+    public static final String MARKER = "_tripstore";
+    public static final int ROW_GROUP_ROWS = 65536;
+    private static final byte[] MAGIC = "TRP1".getBytes(StandardCharsets.US_ASCII);
+
+    private TripStore() {
+    }
+
+    public static boolean isStore(Path root, Configuration conf) throws IOException {
+        return root.getFileSystem(conf).exists(new Path(root, MARKER));
+    }
+
+    // "year=2013/month=03"
+    public static String partition(int year, int month) {
+        return "year=" + year + "/month=" + (month < 10 ? "0" : "") + month;
+    }
+
+    // Directory holding all months of one year
+    public static Path yearPath(Path root, int year) {
+        return new Path(root, "year=" + year);
+    }
+
+    // {year, month} of a file inside a partition directory
+    public static int[] parsePartition(Path file) throws IOException {
+        Path monthDir = file.getParent();
+        Path yearDir = monthDir == null ? null : monthDir.getParent();
+        if (yearDir == null || !monthDir.getName().startsWith("month=")
+                || !yearDir.getName().startsWith("year=")) {
+            throw new IOException("Not inside a year=/month= partition: " + file);
+        }
+        return new int[] {
+            Integer.parseInt(yearDir.getName().substring("year=".length())),
+            Integer.parseInt(monthDir.getName().substring("month=".length()))
+        };
+    }
+
+    public static void setColumns(Configuration conf, int... columns) {
+        StringBuilder sb = new StringBuilder();
+        for (int column : columns) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(COLUMN_NAMES[column]);
+        }
+        conf.set(COLUMNS, sb.toString());
+    }
+
+    public static boolean[] getColumns(Configuration conf) {
+        boolean[] read = new boolean[NUM_COLUMNS];
+        String[] names = conf.getTrimmedStrings(COLUMNS);
+        if (names.length == 0) {
+            Arrays.fill(read, true);
+            return read;
+        }
+        for (String name : names) {
+            int column = Arrays.asList(COLUMN_NAMES).indexOf(name);
+            if (column < 0) {
+                throw new IllegalArgumentException("Unknown " + COLUMNS + " entry: " + name);
+            }
+            read[column] = true;
+        }
+        return read;
+    }
+
+    // Buffers trips and writes them out one row group at a time
+    public static class Writer {
+        private final DataOutputStream out;
+        private final int[] pickupTimes = new int[ROW_GROUP_ROWS];
+        private final double[][] values = new double[NUM_COLUMNS][];
+        private final ByteBuffer block = ByteBuffer.allocate(ROW_GROUP_ROWS * 8);
+        private int rows;
+
+        public Writer(DataOutputStream out) throws IOException {
+            this.out = out;
+            for (int column = 0; column < NUM_COLUMNS; column++) {
+                if (column != PICKUP_TIME) values[column] = new double[ROW_GROUP_ROWS];
+            }
+            out.write(MAGIC);
+        }
+
+        public void append(TripRecord trip) throws IOException {
+            pickupTimes[rows] = trip.getPickupTime();
+            values[FARE][rows] = trip.getFareValue();
+            values[PICKUP_LONGITUDE][rows] = trip.getPickupLonValue();
+            values[PICKUP_LATITUDE][rows] = trip.getPickupLatValue();
+            values[DROPOFF_LONGITUDE][rows] = trip.getDropoffLonValue();
+            values[DROPOFF_LATITUDE][rows] = trip.getDropoffLatValue();
+            if (++rows == ROW_GROUP_ROWS) {
+                writeRowGroup();
+            }
+        }
+
+        private void writeRowGroup() throws IOException {
+            out.writeInt(rows);
+            for (int column = 0; column < NUM_COLUMNS; column++) {
+                block.clear();
+                if (column == PICKUP_TIME) {
+                    block.asIntBuffer().put(pickupTimes, 0, rows);
+                } else {
+                    block.asDoubleBuffer().put(values[column], 0, rows);
+                }
+                out.write(block.array(), 0, rows * COLUMN_WIDTHS[column]);
+            }
+            rows = 0;
+        }
+
+        public void close() throws IOException {
+            if (rows > 0) {
+                writeRowGroup();
+            }
+            out.close();
+        }
+    }
+
+    // Reads the requested columns of one file; the others stay NaN
+    // (TripRecord.NO_TIME for the pickup time)
+    public static class Reader {
+        private final FSDataInputStream in;
+        private final long length;
+        private final boolean[] columns;
+        private final int year;
+        private final int month;
+        private final int[] pickupTimes = new int[ROW_GROUP_ROWS];
+        private final double[][] values = new double[NUM_COLUMNS][];
+        private final byte[] block = new byte[ROW_GROUP_ROWS * 8];
+        private int rows;
+        private int next;
+
+        public Reader(FSDataInputStream in, long length, boolean[] columns, int year, int month)
+                throws IOException {
+            this.in = in;
+            this.length = length;
+            this.columns = columns;
+            this.year = year;
+            this.month = month;
+            for (int column = 0; column < NUM_COLUMNS; column++) {
+                if (column != PICKUP_TIME) {
+                    values[column] = new double[ROW_GROUP_ROWS];
+                    Arrays.fill(values[column], Double.NaN);
+                }
+            }
+            Arrays.fill(pickupTimes, TripRecord.NO_TIME);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a trip store file");
+            }
+        }
+
+        public boolean next(TripRecord trip) throws IOException {
+            if (next == rows && !readRowGroup()) {
+                return false;
+            }
+            trip.setPartition(year, month);
+            trip.setPickupTime(pickupTimes[next]);
+            trip.setFare(values[FARE][next]);
+            trip.setPickup(values[PICKUP_LONGITUDE][next], values[PICKUP_LATITUDE][next]);
+            trip.setDropoff(values[DROPOFF_LONGITUDE][next], values[DROPOFF_LATITUDE][next]);
+            next++;
+            return true;
+        }
+
+        private boolean readRowGroup() throws IOException {
+            if (in.getPos() >= length) {
+                return false;
+            }
+            rows = in.readInt();
+            next = 0;
+            if (rows <= 0 || rows > ROW_GROUP_ROWS) {
+                throw new IOException("Corrupt row group of " + rows + " rows");
+            }
+            for (int column = 0; column < NUM_COLUMNS; column++) {
+                int bytes = rows * COLUMN_WIDTHS[column];
+                if (!columns[column]) {
+                    long target = in.getPos() + bytes;
+                    if (target > length) throw new EOFException("Truncated row group");
+                    in.seek(target);
+                    continue;
+                }
+                in.readFully(block, 0, bytes);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+                if (column == PICKUP_TIME) {
+                    buffer.asIntBuffer().get(pickupTimes, 0, rows);
+                } else {
+                    buffer.asDoubleBuffer().get(values[column], 0, rows);
+                }
+            }
+            return true;
+        }
+
+        public float getProgress() throws IOException {
+            return length == 0 ? 1.0f : Math.min(1.0f, in.getPos() / (float) length);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+// Reads TripStore files as TripRecord values (keys are NullWritable).
+//
+// A month file is one split: row groups are not aligned to HDFS blocks, and a
+// month of trips is a few tens of MB, so each map task reads one month.
+public class TripStoreInputFormat extends FileInputFormat<NullWritable, TripRecord> {
+
+    // Adds the stage-1 input of a query job. For a trip store only the
+    // TargetYear's month directories are listed and only the given columns
+    // are read; any other path is read as train.csv, skipping the splits its
+    // pickup time index rules out (see PrunedTextInputFormat), through
+    // memory-mapped windows with -Dcsv.mmap=true (see MappedCsvInputFormat).
+    public static void addInput(Job job, Path input, int... columns) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (!TripStore.isStore(input, conf)) {
+            job.setInputFormatClass(MappedCsvInputFormat.isEnabled(conf)
+                    ? MappedCsvInputFormat.class : PrunedTextInputFormat.class);
+            FileInputFormat.addInputPath(job, input);
+            return;
+        }
+        job.setInputFormatClass(TripStoreInputFormat.class);
+        TripStore.setColumns(conf, columns);
+        Path yearPath = TripStore.yearPath(input, TargetYear.get(conf));
+        FileInputFormat.addInputPath(job, new Path(yearPath, "month=*"));
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        return false;
+    }
+
+    @Override
+    public RecordReader<NullWritable, TripRecord> createRecordReader(InputSplit split,
+            TaskAttemptContext context) {
+        return new TripStoreRecordReader();
+    }
+
+    public static class TripStoreRecordReader extends RecordReader<NullWritable, TripRecord> {
+        private TripStore.Reader reader;
+        private final TripRecord trip = new TripRecord();
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            Path file = ((FileSplit) split).getPath();
+            FileSystem fs = file.getFileSystem(conf);
+            int[] partition = TripStore.parsePartition(file);
+            reader = new TripStore.Reader(fs.open(file), fs.getFileStatus(file).getLen(),
+                    TripStore.getColumns(conf), partition[0], partition[1]);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            return reader.next(trip);
+        }
+
+        @Override
+        public NullWritable getCurrentKey() {
+            return NullWritable.get();
+        }
+
+        @Override
+        public TripRecord getCurrentValue() {
+            return trip;
+        }
+
+        @Override
+        public float getProgress() throws IOException {
+            return reader.getProgress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
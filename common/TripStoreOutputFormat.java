@@ -0,0 +1,31 @@
+import java.io.IOException;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+// Writes TripRecord values as one TripStore file per task (and per
+// MultipleOutputs base path, which TripStoreIngest uses for year=/month=).
+public class TripStoreOutputFormat extends FileOutputFormat<NullWritable, TripRecord> {
+
+    @Override
+    public RecordWriter<NullWritable, TripRecord> getRecordWriter(TaskAttemptContext context)
+            throws IOException {
+        Path file = getDefaultWorkFile(context, "");
+        FSDataOutputStream out = file.getFileSystem(context.getConfiguration()).create(file, false);
+        final TripStore.Writer writer = new TripStore.Writer(out);
+        return new RecordWriter<NullWritable, TripRecord>() {
+            @Override
+            public void write(NullWritable key, TripRecord trip) throws IOException {
+                writer.append(trip);
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) throws IOException {
+                writer.close();
+            }
+        };
+    }
+}
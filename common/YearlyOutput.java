@@ -0,0 +1,38 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+// Binary hand-off between the two stages of the *Pipeline drivers.
+//
+// When enabled on a stage-1 job, its reducers write the usual per-month text
+// files and additionally a SequenceFile copy of every row with the month set
+// to ALL_MONTHS under <stage1 output>/_yearly. Stage 2 reads those binary
+// keys directly instead of re-parsing the text with split("\\s+")/split("__").
+// The leading underscore keeps the directory hidden from FileInputFormat, so
+// the standalone TopK* drivers can still read the stage-1 output as before.
+public final class YearlyOutput {
+    public static final String ENABLED = "pipeline.yearly.output";
+    public static final String NAMED_OUTPUT = "yearly";
+    public static final String BASE_PATH = "_yearly/part";
+
+    private YearlyOutput() {
+    }
+
+    public static void enable(Job job, Class<?> keyClass, Class<?> valueClass) {
+        job.getConfiguration().setBoolean(ENABLED, true);
+        MultipleOutputs.addNamedOutput(job, NAMED_OUTPUT, SequenceFileOutputFormat.class,
+                keyClass, valueClass);
+    }
+
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    // Input glob for stage 2; a glob is needed because FileInputFormat
+    // filters out the hidden directory itself
+    public static Path input(Path stage1Output) {
+        return new Path(stage1Output, "_yearly/part-*");
+    }
+}